@@ -0,0 +1,137 @@
+package image_processing.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import common.engine.SettingsSet;
+import image_processing.session.BatchConverter;
+import image_processing.session.Configuration;
+import image_processing.transformations.AbstractTransformation;
+import streaming.session.PlotterConfiguration;
+
+/**
+ * The images on which the benchmarks are run: either an image from the data/images directory, or a synthetic image
+ * of a given size, named "synthetic-<size>"
+ * 
+ * Note: the benchmarks must be run from the project root directory, for the images, presets and Plotter configuration
+ * to be found
+ * 
+ * @author Terence
+ *
+ */
+public abstract class BenchmarkImages {
+
+    /**
+     * The directory containing the benchmarked images
+     */
+    private static final String IMAGES_DIRECTORY = "data/images";
+
+    /**
+     * The preset with which the Transformations are computed
+     */
+    private static final String PRESET_FILE = "data/presets/true-to-original-fine-outlines.json";
+
+    /**
+     * The prefix of the synthetic images names
+     */
+    private static final String SYNTHETIC_IMAGE_PREFIX = "synthetic-";
+
+    /**
+     * The seed used to draw the synthetic images, so that they are identical from a run to another
+     */
+    private static final long SYNTHETIC_IMAGE_SEED = 42;
+
+    /**
+     * The number of shapes drawn on the synthetic images
+     */
+    private static final int NB_SYNTHETIC_SHAPES = 64;
+
+    /**
+     * The preset settings, as loaded before any Transformation regenerates its brush palette, null until the
+     * Configurations are initialized
+     */
+    private static SettingsSet presetSettings = null;
+
+    /**
+     * Init once the Configurations needed by the Transformations, headless and without saving the last configuration
+     */
+    public static synchronized void initConfigurations() {
+        if (presetSettings != null) {
+            return;
+        }
+        PlotterConfiguration.initSingleton();
+        Configuration.initHeadlessSingleton(new File(PRESET_FILE));
+        presetSettings = Configuration.Instance.getCurrentSettings();
+    }
+
+    /**
+     * Get the file of a benchmarked image, drawing and saving it in a temporary file if it is a synthetic one
+     *
+     * @param imageName the name of the image, in the data/images directory or synthetic
+     * @return the image file
+     * @throws IOException if the synthetic image cannot be saved
+     */
+    public static File getImageFile(String imageName) throws IOException {
+        if (!imageName.startsWith(SYNTHETIC_IMAGE_PREFIX)) {
+            return new File(IMAGES_DIRECTORY, imageName);
+        }
+        File imageFile = File.createTempFile(imageName + "-", ".png");
+        imageFile.deleteOnExit();
+        ImageIO.write(generateSyntheticImage(Integer.parseInt(imageName.substring(SYNTHETIC_IMAGE_PREFIX.length()))),
+                "png", imageFile);
+        return imageFile;
+    }
+
+    /**
+     * Draw a synthetic square image, made of gradients and random shapes, as a picture would
+     *
+     * @param size the width and height of the image, in pixels
+     * @return the synthetic image
+     */
+    public static BufferedImage generateSyntheticImage(int size) {
+        Random random = new Random(SYNTHETIC_IMAGE_SEED);
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new java.awt.GradientPaint(0, 0, Color.white, size, size, new Color(0x3060A0)));
+        g.fillRect(0, 0, size, size);
+        for (int idShape = 0; idShape < NB_SYNTHETIC_SHAPES; idShape++) {
+            g.setColor(new Color(random.nextInt(0x1000000)));
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            int w = 1 + random.nextInt(size / 4);
+            int h = 1 + random.nextInt(size / 4);
+            if (idShape % 2 == 0) {
+                g.fillOval(x, y, w, h);
+            } else {
+                g.fillRect(x, y, w, h);
+            }
+        }
+        g.dispose();
+        return img;
+    }
+
+    /**
+     * Apply all the Transformations to an image, with the benchmarks preset
+     *
+     * @param imageFile the image file to which to apply the Transformations
+     * @return the computed Transformations, sorted by step
+     */
+    public static AbstractTransformation[] computeTransformations(File imageFile) {
+        initConfigurations();
+        AbstractTransformation[] transformations = new BatchConverter(presetSettings, new File("."))
+                .computeTransformations(imageFile, null);
+        if (transformations == null) {
+            throw new IllegalStateException("Failed to compute the Transformations of " + imageFile.getName());
+        }
+        return transformations;
+    }
+
+}
@@ -0,0 +1,213 @@
+package image_processing.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.engine.Path;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ColorKernels;
+import image_processing.engine.ColorPalette;
+import image_processing.engine.Image;
+import image_processing.engine.LabelRaster;
+import image_processing.engine.canny.JCanny;
+import image_processing.enums.ColorQuantizationMethod;
+import image_processing.enums.ColorSelectionMethod;
+import image_processing.enums.ColorSpace;
+import image_processing.generators.ColorPaletteGenerator;
+import image_processing.generators.ImageFineOutliner;
+import image_processing.generators.ImageGenerator;
+
+/**
+ * Benchmarks of the image-processing generators, on the images of the data/images directory and on synthetic images
+ * 
+ * @author Terence
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class GeneratorsBenchmark {
+
+    /**
+     * The name of the benchmarked image
+     */
+    @Param({ "tulip.png", "coeur.png", "frog.png", "the-great-wave.png", "the-hobbit.jpg",
+            "casuarius-uniappendiculatus-occipitalis.jpg", "synthetic-512", "synthetic-2048" })
+    public String image;
+
+    /**
+     * The number of colors of the quantized images
+     */
+    private static final int NB_COLORS = 16;
+
+    /**
+     * The blurring radius
+     */
+    private static final int BLURRING_RADIUS = 2;
+
+    /**
+     * The Canny high threshold, as a number of standard deviations above the mean
+     */
+    private static final int CANNY_HIGH_THRESHOLD = 1;
+
+    /**
+     * The Canny low threshold, as a fraction of the high threshold
+     */
+    private static final double CANNY_LOW_THRESHOLD = 0.5;
+
+    /**
+     * The benchmarked source image
+     */
+    private Image sourceImage;
+
+    /**
+     * The quantized color palette of the source image
+     */
+    private ColorPalette colorPalette;
+
+    /**
+     * The colors of the quantized color palette
+     */
+    private int[] paletteColors;
+
+    /**
+     * The RGB colors of the source image pixels
+     */
+    private int[] pixelsColors;
+
+    /**
+     * The red channels of the source image pixels
+     */
+    private int[] pixelsReds;
+
+    /**
+     * The green channels of the source image pixels
+     */
+    private int[] pixelsGreens;
+
+    /**
+     * The blue channels of the source image pixels
+     */
+    private int[] pixelsBlues;
+
+    /**
+     * The monochrome image of the most represented quantized color
+     */
+    private BufferedImage monochromeImage;
+
+    /**
+     * The merged monochrome images of all the quantized colors, as outlined by the fine outlining
+     */
+    private BufferedImage mergedMonochromesImage;
+
+    /**
+     * The Canny edge detector, reusing its scratch buffers from one detection to the next
+     */
+    private final JCanny canny = new JCanny();
+
+    /**
+     * Load the source image and prepare the inputs of the generators
+     *
+     * @throws IOException if the image cannot be loaded
+     */
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkImages.initConfigurations();
+        sourceImage = new Image(BenchmarkImages.getImageFile(image));
+        colorPalette = ColorPaletteGenerator.generateReducedPaletteColorFromImage(sourceImage, NB_COLORS,
+                ColorQuantizationMethod.FAVOR_COLORS_TRUE_TO_ORIGINALS, ColorSelectionMethod.USE_MEDIAN_COLOR,
+                ColorSpace.SRGB, CancellationToken.NONE);
+        Vector<Integer> colors = colorPalette.getColors();
+        paletteColors = new int[colors.size()];
+        for (int idColor = 0; idColor < paletteColors.length; idColor++) {
+            paletteColors[idColor] = colors.get(idColor);
+        }
+        IntBuffer pixels = sourceImage.getPixels();
+        pixelsColors = new int[sourceImage.getWidth() * sourceImage.getHeight()];
+        for (int i = 0; i < pixelsColors.length; i++) {
+            pixelsColors[i] = pixels.get(i) & 0xFFFFFF;
+        }
+        pixelsReds = new int[pixelsColors.length];
+        pixelsGreens = new int[pixelsColors.length];
+        pixelsBlues = new int[pixelsColors.length];
+        ColorKernels.unpackChannels(pixelsColors, pixelsColors.length, ColorSpace.SRGB, pixelsReds, pixelsGreens,
+                pixelsBlues);
+
+        LabelRaster labelRaster = ImageGenerator.generateLabelRaster(sourceImage, colorPalette, ColorSpace.SRGB,
+                CancellationToken.NONE);
+        int mostRepresentedLabel = 0;
+        boolean[] allLabels = new boolean[labelRaster.getNbLabels()];
+        for (int label = 0; label < labelRaster.getNbLabels(); label++) {
+            if (labelRaster.getNbPixels(label) > labelRaster.getNbPixels(mostRepresentedLabel)) {
+                mostRepresentedLabel = label;
+            }
+            allLabels[label] = true;
+        }
+        monochromeImage = labelRaster.createMonochromeImage(mostRepresentedLabel);
+        mergedMonochromesImage = labelRaster.createMergedImage(allLabels, 0x000000, CancellationToken.NONE);
+    }
+
+    @Benchmark
+    public Image blur() {
+        return ImageGenerator.generateBlurredImage(sourceImage, BLURRING_RADIUS, 1.0, CancellationToken.NONE);
+    }
+
+    @Benchmark
+    public LabelRaster recolor() {
+        return ImageGenerator.generateLabelRaster(sourceImage, colorPalette, ColorSpace.SRGB, CancellationToken.NONE);
+    }
+
+    @Benchmark
+    public int[] closestColorsScalar() {
+        int[] closestColors = new int[pixelsColors.length];
+        for (int i = 0; i < pixelsColors.length; i++) {
+            closestColors[i] = colorPalette.getClosestColor(pixelsColors[i], ColorSpace.SRGB);
+        }
+        return closestColors;
+    }
+
+    @Benchmark
+    public int[] closestColorsKernels() {
+        int[] indexes = new int[pixelsColors.length];
+        ColorKernels.computeClosestColorIndexes(pixelsReds, pixelsGreens, pixelsBlues, pixelsColors.length,
+                paletteColors, ColorSpace.SRGB, -1, indexes);
+        return indexes;
+    }
+
+    @Benchmark
+    public ColorPalette reduceColorPalette() {
+        return ColorPaletteGenerator.generateReducedPaletteColorFromImage(sourceImage, NB_COLORS,
+                ColorQuantizationMethod.FAVOR_COLORS_TRUE_TO_ORIGINALS, ColorSelectionMethod.USE_MEDIAN_COLOR,
+                ColorSpace.SRGB, CancellationToken.NONE);
+    }
+
+    @Benchmark
+    public long[] cannyEdges() {
+        return canny.detectEdges(monochromeImage, CANNY_HIGH_THRESHOLD, CANNY_LOW_THRESHOLD,
+                CancellationToken.NONE);
+    }
+
+    @Benchmark
+    public Vector<Path> fineOutline() {
+        return ImageFineOutliner.generateImageFineOutlinePaths(mergedMonochromesImage, CancellationToken.NONE);
+    }
+
+}
@@ -0,0 +1,111 @@
+package image_processing.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.engine.Path;
+import image_processing.engine.CancellationToken;
+import image_processing.transformations.AbstractTransformation;
+import image_processing.transformations.PathsGenerationTransformation;
+import image_processing.transformations.PathsOptimizationTransformation;
+import image_processing.transformations.TransformationStep;
+
+/**
+ * Benchmarks of the paths generation, optimization and G-Code export, on the Transformations of the images of the
+ * data/images directory and of synthetic images
+ * 
+ * Note: the paths generation is benchmarked through the update of its Transformation, from the outputs of the
+ * Transformations it depends on
+ * 
+ * @author Terence
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class PathsBenchmark {
+
+    /**
+     * The name of the benchmarked image
+     */
+    @Param({ "tulip.png", "coeur.png", "frog.png", "the-great-wave.png", "the-hobbit.jpg",
+            "casuarius-uniappendiculatus-occipitalis.jpg", "synthetic-512", "synthetic-2048" })
+    public String image;
+
+    /**
+     * The paths generation Transformation of the benchmarked image
+     */
+    private PathsGenerationTransformation pathsGeneration;
+
+    /**
+     * The paths optimization Transformation of the benchmarked image
+     */
+    private PathsOptimizationTransformation pathsOptimization;
+
+    /**
+     * The generated path with the most lines, among the paths of all the inks
+     */
+    private Path longestPath;
+
+    /**
+     * The temporary directory in which the G-Code is exported
+     */
+    private File exportDirectory;
+
+    /**
+     * Compute all the Transformations of the benchmarked image
+     *
+     * @throws IOException if the image or the export directory cannot be created
+     */
+    @Setup
+    public void setup() throws IOException {
+        AbstractTransformation[] transformations = BenchmarkImages
+                .computeTransformations(BenchmarkImages.getImageFile(image));
+        pathsGeneration = (PathsGenerationTransformation) transformations[TransformationStep.PATHS_GENERATION
+                .ordinal()];
+        pathsOptimization = (PathsOptimizationTransformation) transformations[TransformationStep.PATHS_OPTIMIZATION
+                .ordinal()];
+        longestPath = null;
+        for (Path path : pathsGeneration.getPathsPerInk().values()) {
+            if (longestPath == null || path.getNbLines() > longestPath.getNbLines()) {
+                longestPath = path;
+            }
+        }
+        exportDirectory = Files.createTempDirectory("plotter-benchmark-").toFile();
+        exportDirectory.deleteOnExit();
+    }
+
+    @Benchmark
+    public AbstractTransformation generatePaths() {
+        pathsGeneration.updateTransformation(pathsGeneration.getSettingsValues(), CancellationToken.NONE);
+        return pathsGeneration;
+    }
+
+    @Benchmark
+    public Path optimizeLinesDirections() {
+        return Path.optimizeLinesDirections(longestPath);
+    }
+
+    @Benchmark
+    public boolean exportGCode() {
+        return pathsOptimization.exportGCode(exportDirectory);
+    }
+
+}
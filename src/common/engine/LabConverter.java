@@ -0,0 +1,215 @@
+package common.engine;
+
+/**
+ * A class converting RGB colors into the CIELAB color space, through precomputed tables
+ * 
+ * The sRGB channels are linearized and weighted into the X, Y and Z coordinates, relative to the sRGB white, by
+ * per-channel tables; the non-linear function of the CIELAB coordinates is then tabulated on TABLE_STEPS steps. The
+ * conversion only uses fixed-point integers, and every step of it being monotonic, the CIELAB bounds of a box of RGB
+ * colors are given by its corners.
+ * 
+ * The L*, a* and b* channels are rounded to a quarter of their unit, and packed in a single int
+ * 
+ * @author Terence
+ *
+ */
+public abstract class LabConverter {
+
+    /**
+     * The number of fractional bits of the fixed-point X, Y and Z coordinates and of their non-linear function
+     */
+    private static final int FRACTION_BITS = 16;
+
+    /**
+     * The number of bits of the steps of the tabulated non-linear function, over the [0, 1] range of the XYZ
+     * coordinates
+     */
+    private static final int TABLE_BITS = 15;
+
+    /**
+     * The number of steps of the tabulated non-linear function
+     */
+    private static final int TABLE_STEPS = 1 << TABLE_BITS;
+
+    /**
+     * The number of units of the CIELAB channels per unit of the L*, a* and b* coordinates
+     */
+    private static final int UNITS = 4;
+
+    /**
+     * The sRGB to XYZ conversion matrix, for the D65 illuminant
+     */
+    private static final double[][] SRGB_TO_XYZ = { { 0.4124564, 0.3575761, 0.1804375 },
+            { 0.2126729, 0.7151522, 0.0721750 }, { 0.0193339, 0.1191920, 0.9503041 } };
+
+    /**
+     * The fixed-point contributions of each value of the red, green and blue channels to the X, Y and Z coordinates,
+     * relative to the sRGB white, indexed by [coordinate][channel * 256 + value]
+     */
+    private static final int[][] XYZ_CONTRIBUTIONS = new int[3][3 * 256];
+
+    /**
+     * The fixed-point non-linear function of the CIELAB coordinates, tabulated on the [0, 1] range
+     */
+    private static final int[] NON_LINEAR_FUNCTION = new int[TABLE_STEPS + 1];
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            double channel = value / 255.0;
+            double linearChannel = channel <= 0.04045 ? channel / 12.92 : Math.pow((channel + 0.055) / 1.055, 2.4);
+            for (int coord = 0; coord < 3; coord++) {
+                double white = SRGB_TO_XYZ[coord][0] + SRGB_TO_XYZ[coord][1] + SRGB_TO_XYZ[coord][2];
+                for (int chan = 0; chan < 3; chan++) {
+                    XYZ_CONTRIBUTIONS[coord][chan * 256 + value] = (int) Math
+                            .round(SRGB_TO_XYZ[coord][chan] * linearChannel / white * (1 << FRACTION_BITS));
+                }
+            }
+        }
+
+        /* The function is kept non-decreasing, the cube root and the linear segment not exactly meeting once rounded */
+        for (int step = 0; step <= TABLE_STEPS; step++) {
+            double t = (double) step / TABLE_STEPS;
+            int f = (int) Math.round((t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116)
+                    * (1 << FRACTION_BITS));
+            NON_LINEAR_FUNCTION[step] = step > 0 ? Math.max(f, NON_LINEAR_FUNCTION[step - 1]) : f;
+        }
+    }
+
+    /**
+     * Get the tabulated non-linear function of an X, Y or Z coordinate of a color
+     * 
+     * @param color the RGB color
+     * @param coord the coordinate: 0 for X, 1 for Y, 2 for Z
+     * @return the fixed-point non-linear function of the coordinate
+     */
+    private static int getNonLinearCoordinate(int color, int coord) {
+        int[] contributions = XYZ_CONTRIBUTIONS[coord];
+        int t = contributions[(color >> 16) & 0xFF] + contributions[256 + ((color >> 8) & 0xFF)]
+                + contributions[512 + (color & 0xFF)];
+        int step = (t + (1 << (FRACTION_BITS - TABLE_BITS - 1))) >> (FRACTION_BITS - TABLE_BITS);
+        return NON_LINEAR_FUNCTION[Math.min(TABLE_STEPS, step)];
+    }
+
+    /**
+     * Round a fixed-point value
+     * 
+     * @param value the fixed-point value
+     * @return the closest integer
+     */
+    private static int round(int value) {
+        return (value + (1 << (FRACTION_BITS - 1))) >> FRACTION_BITS;
+    }
+
+    /**
+     * Compute the L* channel from the non-linear Y coordinate
+     * 
+     * @param fY the fixed-point non-linear Y coordinate
+     * @return the L* channel
+     */
+    private static int computeL(int fY) {
+        return round(116 * UNITS * fY) - 16 * UNITS;
+    }
+
+    /**
+     * Compute the a* channel from the non-linear X and Y coordinates
+     * 
+     * @param fX the fixed-point non-linear X coordinate
+     * @param fY the fixed-point non-linear Y coordinate
+     * @return the a* channel
+     */
+    private static int computeA(int fX, int fY) {
+        return round(500 * UNITS * (fX - fY));
+    }
+
+    /**
+     * Compute the b* channel from the non-linear Y and Z coordinates
+     * 
+     * @param fY the fixed-point non-linear Y coordinate
+     * @param fZ the fixed-point non-linear Z coordinate
+     * @return the b* channel
+     */
+    private static int computeB(int fY, int fZ) {
+        return round(200 * UNITS * (fY - fZ));
+    }
+
+    /**
+     * Convert a RGB color into the CIELAB color space
+     * 
+     * @param color the RGB color to convert
+     * @return the CIELAB color, packing the L*, a* and b* channels
+     */
+    public static int toLab(int color) {
+        int fX = getNonLinearCoordinate(color, 0);
+        int fY = getNonLinearCoordinate(color, 1);
+        int fZ = getNonLinearCoordinate(color, 2);
+        return computeL(fY) << 22 | (computeA(fX, fY) & 0x7FF) << 11 | (computeB(fY, fZ) & 0x7FF);
+    }
+
+    /**
+     * Get the L* channel of a CIELAB color
+     * 
+     * @param lab the CIELAB color
+     * @return the L* channel, between 0 and 100 * UNITS
+     */
+    public static int getL(int lab) {
+        return lab >>> 22;
+    }
+
+    /**
+     * Get the a* channel of a CIELAB color
+     * 
+     * @param lab the CIELAB color
+     * @return the a* channel
+     */
+    public static int getA(int lab) {
+        return (lab << 10) >> 21;
+    }
+
+    /**
+     * Get the b* channel of a CIELAB color
+     * 
+     * @param lab the CIELAB color
+     * @return the b* channel
+     */
+    public static int getB(int lab) {
+        return (lab << 21) >> 21;
+    }
+
+    /**
+     * Compute the squared euclidean distance between two CIELAB colors
+     * 
+     * @param lab0 the first CIELAB color
+     * @param lab1 the second CIELAB color
+     * @return the squared distance between the two colors
+     */
+    public static int distanceBetweenLabColors(int lab0, int lab1) {
+        int dL = getL(lab0) - getL(lab1);
+        int dA = getA(lab0) - getA(lab1);
+        int dB = getB(lab0) - getB(lab1);
+        return dL * dL + dA * dA + dB * dB;
+    }
+
+    /**
+     * Compute the bounds of the CIELAB channels of the colors of a box of RGB colors
+     * 
+     * @param lowColor    the RGB color of the lowest corner of the box
+     * @param highColor   the RGB color of the highest corner of the box
+     * @param minChannels the array receiving the lower bounds of the L*, a* and b* channels
+     * @param maxChannels the array receiving the upper bounds of the L*, a* and b* channels
+     */
+    public static void computeLabBounds(int lowColor, int highColor, int[] minChannels, int[] maxChannels) {
+        int[] lows = new int[3];
+        int[] highs = new int[3];
+        for (int coord = 0; coord < 3; coord++) {
+            lows[coord] = getNonLinearCoordinate(lowColor, coord);
+            highs[coord] = getNonLinearCoordinate(highColor, coord);
+        }
+        minChannels[0] = computeL(lows[1]);
+        maxChannels[0] = computeL(highs[1]);
+        minChannels[1] = computeA(lows[0], highs[1]);
+        maxChannels[1] = computeA(highs[0], lows[1]);
+        minChannels[2] = computeB(lows[1], highs[2]);
+        maxChannels[2] = computeB(highs[1], lows[2]);
+    }
+
+}
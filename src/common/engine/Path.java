@@ -1,6 +1,11 @@
 package common.engine;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
 import java.util.Collections;
 
 import streaming.enums.PlotterSetting;
@@ -159,6 +164,86 @@ public class Path implements Cloneable {
         return lines.size();
     }
 
+    /**
+     * Estimate the size in memory of the Path
+     * 
+     * @return the estimated size of the Path, in bytes
+     */
+    public long getEstimatedSize() {
+        /* a Line object made of 4 doubles, and its reference in the lines list */
+        return 64L * lines.size();
+    }
+
+    /**
+     * Write the Path in a binary stream
+     * 
+     * @param out the stream in which to write the Path
+     * @throws IOException if the Path cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeDouble(zClearHeight);
+        out.writeInt(lines.size());
+        for (Line line : lines) {
+            out.writeDouble(line.x0);
+            out.writeDouble(line.y0);
+            out.writeDouble(line.x1);
+            out.writeDouble(line.y1);
+        }
+    }
+
+    /**
+     * Read a Path from a binary stream, as written by writeTo()
+     * 
+     * @param in the stream from which to read the Path
+     * @return the Path read
+     * @throws IOException if the Path cannot be read
+     */
+    public static Path readFrom(DataInputStream in) throws IOException {
+        double zClearHeight = in.readDouble();
+        int nbLines = in.readInt();
+        ArrayList<Line> lines = new ArrayList<Line>(nbLines);
+        for (int idLine = 0; idLine < nbLines; idLine++) {
+            lines.add(new Line(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble()));
+        }
+        return new Path(lines, zClearHeight);
+    }
+
+    /**
+     * Write paths per ink in a binary stream
+     * 
+     * @param pathsPerInk the paths per ink to write
+     * @param out         the stream in which to write the paths
+     * @throws IOException if the paths cannot be written
+     */
+    public static void writePathsPerInk(HashMap<Ink, Path> pathsPerInk, DataOutputStream out) throws IOException {
+        out.writeInt(pathsPerInk.size());
+        for (Entry<Ink, Path> entry : pathsPerInk.entrySet()) {
+            out.writeUTF(entry.getKey().getName());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * Read paths per ink from a binary stream, as written by writePathsPerInk()
+     * 
+     * @param in the stream from which to read the paths
+     * @return the paths per ink read
+     * @throws IOException if the paths cannot be read, or if one of their ink is not available anymore
+     */
+    public static HashMap<Ink, Path> readPathsPerInk(DataInputStream in) throws IOException {
+        HashMap<Ink, Path> pathsPerInk = new HashMap<Ink, Path>();
+        int nbPaths = in.readInt();
+        for (int idPath = 0; idPath < nbPaths; idPath++) {
+            String inkName = in.readUTF();
+            Ink ink = Ink.getAvailableInkByName(inkName);
+            if (ink == null) {
+                throw new IOException("Unavailable ink " + inkName);
+            }
+            pathsPerInk.put(ink, readFrom(in));
+        }
+        return pathsPerInk;
+    }
+
     /**
      * Get the index in the Path of the specified line, without taking into account its direction
      * 
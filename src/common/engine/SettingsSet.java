@@ -2,6 +2,7 @@ package common.engine;
 
 import java.io.File;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -21,7 +22,7 @@ import image_processing.enums.Setting;
  * @author Terence
  *
  */
-public class SettingsSet implements Cloneable {
+public class SettingsSet implements Cloneable, Jsonizable {
 
     /**
      * A JSONObject representing the settings tree and their values
@@ -37,6 +38,31 @@ public class SettingsSet implements Cloneable {
         this.settings = new JSONObject(settings.toString());
     }
 
+    /**
+     * Get a copy of the SettingsSet, with the specified Setting set at a new value
+     * 
+     * @param setting the Setting to set
+     * @param value   the new Setting value
+     * @return a new SettingsSet, identical except for the specified Setting
+     */
+    public SettingsSet withSettingValue(Setting setting, Object value) {
+        JSONObject newSettings = new JSONObject(settings.toString());
+        newSettings.put(setting.getName(), value);
+        return new SettingsSet(newSettings);
+    }
+
+    /**
+     * Get a copy of the SettingsSet, without the specified Setting
+     * 
+     * @param setting the Setting to remove
+     * @return a new SettingsSet, identical except for the specified Setting which is absent
+     */
+    public SettingsSet withoutSetting(Setting setting) {
+        JSONObject newSettings = new JSONObject(settings.toString());
+        newSettings.remove(setting.getName());
+        return new SettingsSet(newSettings);
+    }
+
     /**
      * Check if the SettingSet contain the specified Setting
      * 
@@ -198,6 +224,54 @@ public class SettingsSet implements Cloneable {
 
     }
 
+    /**
+     * Get a Setting value as a canonical String, i.e. identical for identical values whatever the JSON keys order
+     * 
+     * @param setting the Setting to retrieve
+     * @return the Setting value as a canonical String, or an empty String if the SettingsSet doesn't contain the
+     *         Setting
+     */
+    public String getCanonicalSetting(Setting setting) {
+        return settings.has(setting.getName()) ? toCanonicalString(settings.get(setting.getName())) : "";
+    }
+
+    /**
+     * Convert a JSON value into a canonical String, with the JSONObjects keys sorted
+     * 
+     * @param value the JSON value to convert
+     * @return the canonical String corresponding to the JSON value
+     */
+    private static String toCanonicalString(Object value) {
+        StringBuilder sb = new StringBuilder();
+        if (value instanceof JSONObject) {
+            JSONObject jsonObject = (JSONObject) value;
+            sb.append('{');
+            for (String key : new TreeSet<String>(jsonObject.keySet())) {
+                sb.append(JSONObject.quote(key)).append(':').append(toCanonicalString(jsonObject.get(key))).append(',');
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray jsonArray = (JSONArray) value;
+            sb.append('[');
+            for (int i = 0; i < jsonArray.length(); i++) {
+                sb.append(toCanonicalString(jsonArray.get(i))).append(',');
+            }
+            sb.append(']');
+        } else if (value instanceof String) {
+            sb.append(JSONObject.quote((String) value));
+        } else if (value instanceof Number) {
+            sb.append(JSONObject.numberToString((Number) value));
+        } else {
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public JSONObject toJSonObject() {
+        return new JSONObject(settings.toString());
+    }
+
     @Override
     public String toString() {
         return String.format("[SettingsSet: %s]", settings.toString());
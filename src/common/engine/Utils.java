@@ -7,8 +7,12 @@ import java.awt.Stroke;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
@@ -87,23 +91,45 @@ public abstract class Utils {
             int B = Math.abs(b0 - b1);
             return R + G + B;
         } else if (colorSpace == ColorSpace.SRGB) {
-            double rm = (r0 + r1) / 2.0;
-            int R = (int) Math.pow(r0 - r1, 2);
-            int G = (int) Math.pow(g0 - g1, 2);
-            int B = (int) Math.pow(b0 - b1, 2);
-            int d = (int) ((2 + rm / 256.0) * R + 4 * G + (2 + (255 - rm) / 256) * B);
-            return d;
+            /*
+             * (int) ((2 + rm / 256) * R + 4 * G + (2 + (255 - rm) / 256) * B), with rm the mean of the red channels,
+             * computed exactly on integers
+             */
+            int R = (r0 - r1) * (r0 - r1);
+            int G = (g0 - g1) * (g0 - g1);
+            int B = (b0 - b1) * (b0 - b1);
+            return ((1024 + r0 + r1) * R + 2048 * G + (1534 - r0 - r1) * B) >> 9;
         } else if (colorSpace == ColorSpace.HUMAN_WEIGHTED) {
             int R = Math.abs(r0 - r1) * 30;
             int G = Math.abs(g0 - g1) * 59;
             int B = Math.abs(b0 - b1) * 11;
             return R + G + B;
+        } else if (colorSpace == ColorSpace.LAB) {
+            return LabConverter.distanceBetweenLabColors(LabConverter.toLab(c0), LabConverter.toLab(c1));
         } else {
             System.err.println("Unknown color space");
             return 0;
         }
     }
 
+    /**
+     * Get the distance under which a palette color can be the closest to a color, the color being left to black when
+     * no palette color is closer
+     * 
+     * In the RGB, SRGB and HUMAN_WEIGHTED color spaces, this is the distance between black and white, the largest one.
+     * In the LAB color space, the distance between black and white is exceeded by other pairs of colors, e.g. blue and
+     * yellow: there is no limit, so that a palette color is always the closest
+     * 
+     * @param colorSpace the color space in which the distances are computed
+     * @return the distance under which a palette color can be the closest to a color
+     */
+    public static int getClosestColorMaxDistance(ColorSpace colorSpace) {
+        if (colorSpace == ColorSpace.LAB) {
+            return Integer.MAX_VALUE;
+        }
+        return distanceBetweenColors(0x000000, 0xFFFFFF, colorSpace);
+    }
+
     /**
      * Get the closest Ink from the specified color
      * 
@@ -447,6 +473,55 @@ public abstract class Utils {
         return content;
     }
 
+    /**
+     * Compute the SHA-256 digest of some data
+     * 
+     * @param data the data of which to compute the digest
+     * @return the digest, as an hexadecimal string
+     */
+    public static String sha256(byte[] data) {
+        try {
+            return toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compute the SHA-256 digest of a file content
+     * 
+     * @param file the file of which to compute the digest
+     * @return the digest, as an hexadecimal string
+     * @throws IOException any exception thrown during the reading of the file
+     */
+    public static String sha256(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int nbBytesRead;
+            while ((nbBytesRead = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, nbBytesRead);
+            }
+            return toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Convert bytes into an hexadecimal string
+     * 
+     * @param bytes the bytes to convert
+     * @return the corresponding hexadecimal string
+     */
+    public static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
     /**
      * Compute the estimated travel duration between the two set of coordinates
      * 
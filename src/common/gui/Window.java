@@ -9,6 +9,7 @@ import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
 import javax.swing.UIManager;
 
+import image_processing.engine.ExecutionProfiler;
 import image_processing.gui.StatusBar;
 import image_processing.gui.Toolbox;
 import image_processing.gui.TransformationResultView;
@@ -137,6 +138,7 @@ public class Window extends JFrame {
      * @param args the arguments passed to the application
      */
     public static void main(String[] args) {
+        ExecutionProfiler.Instance.exportReportOnExitIfRequested();
         Project.initProject();
         new Window();
     }
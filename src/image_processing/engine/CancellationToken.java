@@ -0,0 +1,76 @@
+package image_processing.engine;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * A token passed to the long computations, allowing to cancel them
+ * 
+ * The computations poll the token at regular intervals, typically once per row of pixels, and stop by throwing a
+ * CancellationException as soon as it has been cancelled
+ * 
+ * @author Terence
+ *
+ */
+public class CancellationToken {
+
+    /**
+     * A token that is never cancelled, for the computations that cannot be cancelled
+     */
+    public static final CancellationToken NONE = new CancellationToken(false);
+
+    /**
+     * A flag indicating if the token can be cancelled
+     */
+    private final boolean isCancellable;
+
+    /**
+     * A flag indicating if the token has been cancelled
+     */
+    private volatile boolean isCancelled = false;
+
+    /**
+     * Instantiate a new cancellable token
+     */
+    public CancellationToken() {
+        this(true);
+    }
+
+    /**
+     * Instantiate a new token
+     * 
+     * @param isCancellable indicate if the token can be cancelled
+     */
+    private CancellationToken(boolean isCancellable) {
+        this.isCancellable = isCancellable;
+    }
+
+    /**
+     * Cancel the computations polling the token
+     */
+    public void cancel() {
+        if (isCancellable) {
+            isCancelled = true;
+        }
+    }
+
+    /**
+     * Indicate if the token has been cancelled
+     * 
+     * @return true if the token has been cancelled, false otherwise
+     */
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * Stop the current computation if the token has been cancelled
+     * 
+     * @throws CancellationException if the token has been cancelled
+     */
+    public void throwIfCancelled() {
+        if (isCancelled) {
+            throw new CancellationException();
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+package image_processing.engine;
+
+import common.engine.LabConverter;
+import common.engine.Utils;
+import image_processing.enums.ColorSpace;
+
+/**
+ * A lookup table of the closest color of a palette, in a color space, of every RGB color
+ * 
+ * The RGB cube is divided in cells of CELL_BITS bits per channel. The bounds of the distances between the colors of a
+ * cell and each palette color decide, when the table is built, whether a single palette color is the closest to the
+ * whole cell; the colors of the other cells are compared to the only palette colors that can be the closest to them.
+ * The lookups give exactly the same result as ColorPalette.getClosestColor()
+ * 
+ * @author Terence
+ *
+ */
+public class ClosestColorTable {
+
+    /**
+     * The number of bits per channel of the cells
+     */
+    private static final int CELL_BITS = 5;
+
+    /**
+     * The number of cells per channel
+     */
+    private static final int NB_CELLS_PER_CHANNEL = 1 << CELL_BITS;
+
+    /**
+     * The cell value of the cells whose closest palette color depends on the color
+     */
+    private static final short AMBIGUOUS = -2;
+
+    /**
+     * The colors of the palette
+     */
+    private final int[] colors;
+
+    /**
+     * The CIELAB colors of the palette, converted once, or null if the colors are not compared in the LAB color space
+     */
+    private final int[] labColors;
+
+    /**
+     * The color space in which the colors are compared
+     */
+    private final ColorSpace colorSpace;
+
+    /**
+     * The distance under which a palette color can be the closest, as in ColorPalette.getClosestColor()
+     */
+    private final int maxDist;
+
+    /**
+     * The index of the color returned when no palette color is close enough, i.e. of black, or -1 if black is not in
+     * the palette
+     */
+    private final int defaultIndex;
+
+    /**
+     * The index of the closest palette color of each cell, or AMBIGUOUS
+     */
+    private final short[] cells;
+
+    /**
+     * The indexes of the palette colors which can be the closest to the colors of each ambiguous cell, in palette
+     * order, null for the other cells
+     */
+    private final int[][] candidates;
+
+    /**
+     * Build the closest color table of a palette, the cells being computed in parallel
+     * 
+     * @param colors            the colors of the palette
+     * @param colorSpace        the color space in which to compare the colors
+     * @param cancellationToken the token to poll, allowing to abort the build
+     */
+    public ClosestColorTable(int[] colors, ColorSpace colorSpace, CancellationToken cancellationToken) {
+        this.colors = colors;
+        this.colorSpace = colorSpace;
+        if (colorSpace == ColorSpace.LAB) {
+            labColors = new int[colors.length];
+            for (int idColor = 0; idColor < colors.length; idColor++) {
+                labColors[idColor] = LabConverter.toLab(colors[idColor]);
+            }
+        } else {
+            labColors = null;
+        }
+        maxDist = Utils.getClosestColorMaxDistance(colorSpace);
+        int blackIndex = -1;
+        for (int idColor = colors.length - 1; idColor >= 0; idColor--) {
+            if (colors[idColor] == 0x000000) {
+                blackIndex = idColor;
+            }
+        }
+        defaultIndex = blackIndex;
+        cells = new short[NB_CELLS_PER_CHANNEL * NB_CELLS_PER_CHANNEL * NB_CELLS_PER_CHANNEL];
+        candidates = new int[cells.length][];
+
+        /* The cells are laid out as a raster of (green, blue) columns and red rows */
+        TileScheduler.forEachTile(NB_CELLS_PER_CHANNEL * NB_CELLS_PER_CHANNEL, NB_CELLS_PER_CHANNEL, 0,
+                cancellationToken, new TileScheduler.TileKernel() {
+                    @Override
+                    public void apply(TileScheduler.Tile tile) {
+                        int[] minDists = new int[colors.length];
+                        int[] maxDists = new int[colors.length];
+                        for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                            for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                                computeCell(y * NB_CELLS_PER_CHANNEL * NB_CELLS_PER_CHANNEL + x, minDists, maxDists);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Compute the closest palette color of a cell, or its candidates if it is ambiguous
+     * 
+     * @param idCell   the index of the cell
+     * @param minDists a buffer receiving the lower bounds of the distances between the cell and each palette color
+     * @param maxDists a buffer receiving the upper bounds of the distances between the cell and each palette color
+     */
+    private void computeCell(int idCell, int[] minDists, int[] maxDists) {
+        int[] lows = new int[3];
+        for (int chan = 0; chan < 3; chan++) {
+            lows[chan] = ((idCell >> (CELL_BITS * (2 - chan))) & (NB_CELLS_PER_CHANNEL - 1)) << (8 - CELL_BITS);
+        }
+        int bestMaxDist = Integer.MAX_VALUE;
+        if (colorSpace == ColorSpace.LAB) {
+            int cellSize = 1 << (8 - CELL_BITS);
+            int lowColor = lows[0] << 16 | lows[1] << 8 | lows[2];
+            int[] minChannels = new int[3];
+            int[] maxChannels = new int[3];
+            LabConverter.computeLabBounds(lowColor, lowColor + (cellSize - 1) * 0x010101, minChannels, maxChannels);
+            for (int idColor = 0; idColor < colors.length; idColor++) {
+                computeLabDistanceBounds(minChannels, maxChannels, labColors[idColor], minDists, maxDists, idColor);
+                bestMaxDist = Math.min(bestMaxDist, maxDists[idColor]);
+            }
+        } else {
+            for (int idColor = 0; idColor < colors.length; idColor++) {
+                computeDistanceBounds(lows, colors[idColor], minDists, maxDists, idColor);
+                bestMaxDist = Math.min(bestMaxDist, maxDists[idColor]);
+            }
+        }
+
+        /*
+         * The closest color of any color of the cell is at most at bestMaxDist, so only the palette colors which can
+         * be that close can be the closest
+         */
+        int nbCandidates = 0;
+        for (int idColor = 0; idColor < colors.length; idColor++) {
+            if (minDists[idColor] <= bestMaxDist && minDists[idColor] < maxDist) {
+                nbCandidates++;
+            }
+        }
+        if (nbCandidates == 0) {
+            cells[idCell] = (short) defaultIndex;
+        } else if (nbCandidates == 1 && bestMaxDist < maxDist) {
+            for (int idColor = 0; idColor < colors.length; idColor++) {
+                if (minDists[idColor] <= bestMaxDist) {
+                    cells[idCell] = (short) idColor;
+                }
+            }
+        } else {
+            int[] cellCandidates = new int[nbCandidates];
+            int idCandidate = 0;
+            for (int idColor = 0; idColor < colors.length; idColor++) {
+                if (minDists[idColor] <= bestMaxDist && minDists[idColor] < maxDist) {
+                    cellCandidates[idCandidate++] = idColor;
+                }
+            }
+            candidates[idCell] = cellCandidates;
+            cells[idCell] = AMBIGUOUS;
+        }
+    }
+
+    /**
+     * Compute the bounds of the distances between the colors of a cell and a palette color, following
+     * Utils.distanceBetweenColors() whose terms are monotonic in the channels differences
+     * 
+     * @param lows     the lowest red, green and blue values of the cell
+     * @param color    the palette color
+     * @param minDists the lower bounds of the distances, in which to store the bound
+     * @param maxDists the upper bounds of the distances, in which to store the bound
+     * @param idColor  the index of the palette color, where to store the bounds
+     */
+    private void computeDistanceBounds(int[] lows, int color, int[] minDists, int[] maxDists, int idColor) {
+        int cellSize = 1 << (8 - CELL_BITS);
+        int[] values = new int[3];
+        int[] minDeltas = new int[3];
+        int[] maxDeltas = new int[3];
+        for (int chan = 0; chan < 3; chan++) {
+            values[chan] = (color >> (8 * (2 - chan))) & 0xFF;
+            int low = lows[chan];
+            int high = low + cellSize - 1;
+            minDeltas[chan] = values[chan] < low ? low - values[chan] : values[chan] > high ? values[chan] - high : 0;
+            maxDeltas[chan] = Math.max(Math.abs(low - values[chan]), Math.abs(high - values[chan]));
+        }
+        if (colorSpace == ColorSpace.SRGB) {
+            int minRSum = lows[0] + values[0];
+            int maxRSum = lows[0] + cellSize - 1 + values[0];
+            minDists[idColor] = ((1024 + minRSum) * minDeltas[0] * minDeltas[0] + 2048 * minDeltas[1] * minDeltas[1]
+                    + (1534 - maxRSum) * minDeltas[2] * minDeltas[2]) >> 9;
+            maxDists[idColor] = ((1024 + maxRSum) * maxDeltas[0] * maxDeltas[0] + 2048 * maxDeltas[1] * maxDeltas[1]
+                    + (1534 - minRSum) * maxDeltas[2] * maxDeltas[2]) >> 9;
+        } else if (colorSpace == ColorSpace.HUMAN_WEIGHTED) {
+            minDists[idColor] = minDeltas[0] * 30 + minDeltas[1] * 59 + minDeltas[2] * 11;
+            maxDists[idColor] = maxDeltas[0] * 30 + maxDeltas[1] * 59 + maxDeltas[2] * 11;
+        } else {
+            minDists[idColor] = minDeltas[0] + minDeltas[1] + minDeltas[2];
+            maxDists[idColor] = maxDeltas[0] + maxDeltas[1] + maxDeltas[2];
+        }
+    }
+
+    /**
+     * Compute the bounds of the distances between the colors of a cell and a palette color in the LAB color space,
+     * from the bounds of the CIELAB channels of the cell
+     * 
+     * @param minChannels the lower bounds of the L*, a* and b* channels of the cell
+     * @param maxChannels the upper bounds of the L*, a* and b* channels of the cell
+     * @param labColor    the CIELAB palette color
+     * @param minDists    the lower bounds of the distances, in which to store the bound
+     * @param maxDists    the upper bounds of the distances, in which to store the bound
+     * @param idColor     the index of the palette color, where to store the bounds
+     */
+    private static void computeLabDistanceBounds(int[] minChannels, int[] maxChannels, int labColor, int[] minDists,
+            int[] maxDists, int idColor) {
+        int[] values = { LabConverter.getL(labColor), LabConverter.getA(labColor), LabConverter.getB(labColor) };
+        minDists[idColor] = 0;
+        maxDists[idColor] = 0;
+        for (int chan = 0; chan < 3; chan++) {
+            int low = minChannels[chan];
+            int high = maxChannels[chan];
+            int minDelta = values[chan] < low ? low - values[chan] : values[chan] > high ? values[chan] - high : 0;
+            int maxDelta = Math.max(Math.abs(low - values[chan]), Math.abs(high - values[chan]));
+            minDists[idColor] += minDelta * minDelta;
+            maxDists[idColor] += maxDelta * maxDelta;
+        }
+    }
+
+    /**
+     * Get the index of the cell of a color
+     * 
+     * @param color the RGB color
+     * @return the index of the cell containing the color
+     */
+    private static int getCellIndex(int color) {
+        return ((color >> (24 - CELL_BITS)) & (NB_CELLS_PER_CHANNEL - 1)) << (2 * CELL_BITS)
+                | ((color >> (16 - CELL_BITS)) & (NB_CELLS_PER_CHANNEL - 1)) << CELL_BITS
+                | ((color >> (8 - CELL_BITS)) & (NB_CELLS_PER_CHANNEL - 1));
+    }
+
+    /**
+     * Get the indexes of the closest palette colors of a batch of colors
+     * 
+     * The colors of the ambiguous cells are gathered and compared to all the palette colors at once by ColorKernels,
+     * unless the palette is too large for the kernels
+     * 
+     * @param colors  the RGB colors for which to retrieve the closest palette colors
+     * @param length  the number of colors
+     * @param indexes the array receiving the indexes of the closest palette colors, or -1 if there is none
+     */
+    public void getClosestColorIndexes(int[] colors, int length, int[] indexes) {
+        int[] ambiguousColors = new int[length];
+        int[] ambiguousPositions = new int[length];
+        int nbAmbiguousColors = 0;
+        for (int i = 0; i < length; i++) {
+            int idClosestColor = cells[getCellIndex(colors[i])];
+            if (idClosestColor == AMBIGUOUS) {
+                ambiguousColors[nbAmbiguousColors] = colors[i];
+                ambiguousPositions[nbAmbiguousColors++] = i;
+            } else {
+                indexes[i] = idClosestColor;
+            }
+        }
+        if (nbAmbiguousColors == 0) {
+            return;
+        }
+
+        if (this.colors.length > ColorKernels.MAX_NB_PALETTE_COLORS) {
+            for (int i = 0; i < nbAmbiguousColors; i++) {
+                indexes[ambiguousPositions[i]] = getClosestColorIndex(ambiguousColors[i]);
+            }
+        } else {
+            int[] reds = new int[nbAmbiguousColors];
+            int[] greens = new int[nbAmbiguousColors];
+            int[] blues = new int[nbAmbiguousColors];
+            ColorKernels.unpackChannels(ambiguousColors, nbAmbiguousColors, colorSpace, reds, greens, blues);
+            int[] ambiguousIndexes = new int[nbAmbiguousColors];
+            ColorKernels.computeClosestColorIndexes(reds, greens, blues, nbAmbiguousColors, this.colors, colorSpace,
+                    defaultIndex, ambiguousIndexes);
+            for (int i = 0; i < nbAmbiguousColors; i++) {
+                indexes[ambiguousPositions[i]] = ambiguousIndexes[i];
+            }
+        }
+    }
+
+    /**
+     * Get the index of the closest palette color of a color
+     * 
+     * @param color the RGB color for which to retrieve the closest palette color
+     * @return the index of the closest palette color, or -1 if there is none
+     */
+    public int getClosestColorIndex(int color) {
+        int idCell = getCellIndex(color);
+        int idClosestColor = cells[idCell];
+        if (idClosestColor != AMBIGUOUS) {
+            return idClosestColor;
+        }
+
+        /* Compare the color to the candidates of its cell, exactly as ColorPalette.getClosestColor() */
+        int distMin = maxDist;
+        idClosestColor = defaultIndex;
+        int labColor = labColors != null ? LabConverter.toLab(color) : 0;
+        for (int idColor : candidates[idCell]) {
+            int dist = labColors != null ? LabConverter.distanceBetweenLabColors(labColor, labColors[idColor])
+                    : Utils.distanceBetweenColors(color, colors[idColor], colorSpace);
+            if (dist < distMin) {
+                idClosestColor = idColor;
+                distMin = dist;
+            }
+        }
+        return idClosestColor;
+    }
+
+}
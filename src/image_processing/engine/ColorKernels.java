@@ -0,0 +1,212 @@
+package image_processing.engine;
+
+import common.engine.LabConverter;
+import common.engine.Utils;
+import image_processing.enums.ColorSpace;
+
+/**
+ * Batch kernels computing the closest palette colors of rows of colors
+ * 
+ * The colors are first unpacked into one array per channel, so that the kernels loop over plain int arrays, without
+ * branches nor channel extraction, and are vectorized by the JIT compiler. The distances of all the colors to a palette
+ * color are computed at once, each color keeping the minimum of the keys packing its distances and the indexes of the
+ * palette colors: the ties thus go to the first palette color, as in ColorPalette.getClosestColor()
+ * 
+ * In the LAB color space, the colors are unpacked into their L*, a* and b* channels, so that each color and each
+ * palette color is converted only once
+ * 
+ * Note: the absolute values and minimums are computed with sign masks, as the JIT compiler does not vectorize the
+ * loops calling Math.abs() or Math.min()
+ * 
+ * @author Terence
+ *
+ */
+public abstract class ColorKernels {
+
+    /**
+     * The number of bits of the palette color index in the keys
+     */
+    private static final int INDEX_BITS = 8;
+
+    /**
+     * The maximum number of palette colors supported by the kernels, the larger palettes needing a scalar scan
+     */
+    public static final int MAX_NB_PALETTE_COLORS = 1 << INDEX_BITS;
+
+    /**
+     * Unpack the red, green and blue channels of colors, or their L*, a* and b* channels in the LAB color space
+     * 
+     * @param colors     the RGB colors to unpack
+     * @param length     the number of colors to unpack
+     * @param colorSpace the color space in which the colors are to be compared
+     * @param reds       the array receiving the red channels
+     * @param greens     the array receiving the green channels
+     * @param blues      the array receiving the blue channels
+     */
+    public static void unpackChannels(int[] colors, int length, ColorSpace colorSpace, int[] reds, int[] greens,
+            int[] blues) {
+        if (colorSpace == ColorSpace.LAB) {
+            for (int i = 0; i < length; i++) {
+                int lab = LabConverter.toLab(colors[i]);
+                reds[i] = LabConverter.getL(lab);
+                greens[i] = LabConverter.getA(lab);
+                blues[i] = LabConverter.getB(lab);
+            }
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            reds[i] = (colors[i] >> 16) & 0xFF;
+            greens[i] = (colors[i] >> 8) & 0xFF;
+            blues[i] = colors[i] & 0xFF;
+        }
+    }
+
+    /**
+     * Compute the index of the closest palette color of unpacked colors, exactly as ColorPalette.getClosestColor()
+     * 
+     * @param reds          the red channels of the colors, unpacked by unpackChannels() in the same color space
+     * @param greens        the green channels of the colors, unpacked by unpackChannels() in the same color space
+     * @param blues         the blue channels of the colors, unpacked by unpackChannels() in the same color space
+     * @param length        the number of colors
+     * @param paletteColors the RGB colors of the palette, at most MAX_NB_PALETTE_COLORS
+     * @param colorSpace    the color space in which to compare the colors
+     * @param defaultIndex  the index of the colors to which no palette color is close enough
+     * @param indexes       the array receiving the indexes of the closest palette colors
+     */
+    public static void computeClosestColorIndexes(int[] reds, int[] greens, int[] blues, int length,
+            int[] paletteColors, ColorSpace colorSpace, int defaultIndex, int[] indexes) {
+        /* Without distance limit, i.e. in LAB, the distances being under 2^23, the keys never reach the maximum one */
+        int maxDist = Utils.getClosestColorMaxDistance(colorSpace);
+        int maxKey = maxDist < (Integer.MAX_VALUE >> INDEX_BITS) ? maxDist << INDEX_BITS : Integer.MAX_VALUE;
+        int[] keys = indexes;
+        for (int i = 0; i < length; i++) {
+            keys[i] = maxKey | (MAX_NB_PALETTE_COLORS - 1);
+        }
+        for (int idColor = 0; idColor < paletteColors.length; idColor++) {
+            int r = (paletteColors[idColor] >> 16) & 0xFF;
+            int g = (paletteColors[idColor] >> 8) & 0xFF;
+            int b = paletteColors[idColor] & 0xFF;
+            if (colorSpace == ColorSpace.LAB) {
+                int lab = LabConverter.toLab(paletteColors[idColor]);
+                updateLabKeys(reds, greens, blues, length, LabConverter.getL(lab), LabConverter.getA(lab),
+                        LabConverter.getB(lab), idColor, keys);
+            } else if (colorSpace == ColorSpace.SRGB) {
+                updateSrgbKeys(reds, greens, blues, length, r, g, b, idColor, keys);
+            } else if (colorSpace == ColorSpace.HUMAN_WEIGHTED) {
+                updateHumanWeightedKeys(reds, greens, blues, length, r, g, b, idColor, keys);
+            } else {
+                updateRgbKeys(reds, greens, blues, length, r, g, b, idColor, keys);
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            indexes[i] = keys[i] >= maxKey ? defaultIndex : keys[i] & (MAX_NB_PALETTE_COLORS - 1);
+        }
+    }
+
+    /**
+     * Keep the minimum of the keys and of the RGB distances to a palette color, see Utils.distanceBetweenColors()
+     * 
+     * @param reds    the red channels of the colors
+     * @param greens  the green channels of the colors
+     * @param blues   the blue channels of the colors
+     * @param length  the number of colors
+     * @param r       the red channel of the palette color
+     * @param g       the green channel of the palette color
+     * @param b       the blue channel of the palette color
+     * @param idColor the index of the palette color
+     * @param keys    the keys of the closest palette colors, to update
+     */
+    private static void updateRgbKeys(int[] reds, int[] greens, int[] blues, int length, int r, int g, int b,
+            int idColor, int[] keys) {
+        for (int i = 0; i < length; i++) {
+            int dr = reds[i] - r;
+            int dg = greens[i] - g;
+            int db = blues[i] - b;
+            int dist = dr * ((dr >> 31) | 1) + dg * ((dg >> 31) | 1) + db * ((db >> 31) | 1);
+            int delta = ((dist << INDEX_BITS) | idColor) - keys[i];
+            keys[i] += delta & (delta >> 31);
+        }
+    }
+
+    /**
+     * Keep the minimum of the keys and of the sRGB distances to a palette color, see Utils.distanceBetweenColors()
+     * 
+     * @param reds    the red channels of the colors
+     * @param greens  the green channels of the colors
+     * @param blues   the blue channels of the colors
+     * @param length  the number of colors
+     * @param r       the red channel of the palette color
+     * @param g       the green channel of the palette color
+     * @param b       the blue channel of the palette color
+     * @param idColor the index of the palette color
+     * @param keys    the keys of the closest palette colors, to update
+     */
+    private static void updateSrgbKeys(int[] reds, int[] greens, int[] blues, int length, int r, int g, int b,
+            int idColor, int[] keys) {
+        /* The red channels sum is factored out, a single multiplication by a varying factor keeping it vectorized */
+        for (int i = 0; i < length; i++) {
+            int dr = reds[i] - r;
+            int dg = greens[i] - g;
+            int db = blues[i] - b;
+            int drSquared = dr * dr;
+            int dbSquared = db * db;
+            int dist = ((drSquared << 10) + (dg * dg << 11) + 1534 * dbSquared
+                    + (reds[i] + r) * (drSquared - dbSquared)) >> 9;
+            int delta = ((dist << INDEX_BITS) | idColor) - keys[i];
+            keys[i] += delta & (delta >> 31);
+        }
+    }
+
+    /**
+     * Keep the minimum of the keys and of the human-weighted distances to a palette color, see
+     * Utils.distanceBetweenColors()
+     * 
+     * @param reds    the red channels of the colors
+     * @param greens  the green channels of the colors
+     * @param blues   the blue channels of the colors
+     * @param length  the number of colors
+     * @param r       the red channel of the palette color
+     * @param g       the green channel of the palette color
+     * @param b       the blue channel of the palette color
+     * @param idColor the index of the palette color
+     * @param keys    the keys of the closest palette colors, to update
+     */
+    private static void updateHumanWeightedKeys(int[] reds, int[] greens, int[] blues, int length, int r, int g, int b,
+            int idColor, int[] keys) {
+        for (int i = 0; i < length; i++) {
+            int dr = reds[i] - r;
+            int dg = greens[i] - g;
+            int db = blues[i] - b;
+            int dist = dr * ((dr >> 31) | 1) * 30 + dg * ((dg >> 31) | 1) * 59 + db * ((db >> 31) | 1) * 11;
+            int delta = ((dist << INDEX_BITS) | idColor) - keys[i];
+            keys[i] += delta & (delta >> 31);
+        }
+    }
+
+    /**
+     * Keep the minimum of the keys and of the CIELAB distances to a palette color, see
+     * LabConverter.distanceBetweenLabColors()
+     * 
+     * @param ls      the L* channels of the colors
+     * @param as      the a* channels of the colors
+     * @param bs      the b* channels of the colors
+     * @param length  the number of colors
+     * @param l       the L* channel of the palette color
+     * @param a       the a* channel of the palette color
+     * @param b       the b* channel of the palette color
+     * @param idColor the index of the palette color
+     * @param keys    the keys of the closest palette colors, to update
+     */
+    private static void updateLabKeys(int[] ls, int[] as, int[] bs, int length, int l, int a, int b, int idColor,
+            int[] keys) {
+        for (int i = 0; i < length; i++) {
+            int dl = ls[i] - l;
+            int da = as[i] - a;
+            int db = bs[i] - b;
+            int dist = dl * dl + da * da + db * db;
+            int delta = ((dist << INDEX_BITS) | idColor) - keys[i];
+            keys[i] += delta & (delta >> 31);
+        }
+    }
+
+}
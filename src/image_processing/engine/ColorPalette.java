@@ -1,5 +1,9 @@
 package image_processing.engine;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Vector;
 
 import common.engine.Utils;
@@ -18,6 +22,17 @@ public class ColorPalette {
      */
     private Vector<Integer> colors;
 
+    /**
+     * The colors of the color palette as an array, iterated without locking by the concurrent closest colors lookups
+     */
+    private volatile int[] colorsArray = new int[0];
+
+    /**
+     * The closest color tables of the color palette, per color space, built on first use and dropped when a color is
+     * added
+     */
+    private ClosestColorTable[] closestColorTables = new ClosestColorTable[ColorSpace.values().length];
+
     /**
      * Instantiate a new empty color palette
      */
@@ -30,9 +45,13 @@ public class ColorPalette {
      * 
      * @param color the color to add to the color palette
      */
-    public void addColor(int color) {
+    public synchronized void addColor(int color) {
         if (!colors.contains(color)) {
             colors.add(color);
+            int[] newColorsArray = Arrays.copyOf(colorsArray, colorsArray.length + 1);
+            newColorsArray[colorsArray.length] = color;
+            colorsArray = newColorsArray;
+            closestColorTables = new ClosestColorTable[ColorSpace.values().length];
         }
     }
 
@@ -73,9 +92,9 @@ public class ColorPalette {
      * @return the closest color in the color palette
      */
     public int getClosestColor(int color, ColorSpace colorSpace) {
-        int distMin = Utils.distanceBetweenColors(0x000000, 0xFFFFFF, colorSpace);
+        int distMin = Utils.getClosestColorMaxDistance(colorSpace);
         int closestColor = 0;
-        for (int paletteColor : colors) {
+        for (int paletteColor : colorsArray) {
             int dist = Utils.distanceBetweenColors(color, paletteColor, colorSpace);
             if (dist < distMin) {
                 closestColor = paletteColor;
@@ -85,6 +104,51 @@ public class ColorPalette {
         return closestColor;
     }
 
+    /**
+     * Get the closest color table of the color palette in a color space, building it on first use
+     * 
+     * @param colorSpace        the color space to use
+     * @param cancellationToken the token to poll, allowing to abort the build of the table
+     * @return the closest color table, whose indexes are the indexes of the colors in the color palette
+     */
+    public synchronized ClosestColorTable getClosestColorTable(ColorSpace colorSpace,
+            CancellationToken cancellationToken) {
+        if (closestColorTables[colorSpace.ordinal()] == null) {
+            closestColorTables[colorSpace.ordinal()] = new ClosestColorTable(colorsArray, colorSpace,
+                    cancellationToken);
+        }
+        return closestColorTables[colorSpace.ordinal()];
+    }
+
+    /**
+     * Write the color palette in a binary stream
+     * 
+     * @param out the stream in which to write the color palette
+     * @throws IOException if the color palette cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(colors.size());
+        for (int color : colors) {
+            out.writeInt(color);
+        }
+    }
+
+    /**
+     * Read a color palette from a binary stream, as written by writeTo()
+     * 
+     * @param in the stream from which to read the color palette
+     * @return the color palette read
+     * @throws IOException if the color palette cannot be read
+     */
+    public static ColorPalette readFrom(DataInputStream in) throws IOException {
+        ColorPalette palette = new ColorPalette();
+        int nbColors = in.readInt();
+        for (int idColor = 0; idColor < nbColors; idColor++) {
+            palette.addColor(in.readInt());
+        }
+        return palette;
+    }
+
     @Override
     public String toString() {
         String str = "[ColorPalette:\n";
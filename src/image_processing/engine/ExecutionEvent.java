@@ -0,0 +1,74 @@
+package image_processing.engine;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event recorded for each measured Transformation or stage execution, the event duration being its wall time
+ * 
+ * @author Terence
+ *
+ */
+@Name("plotter.Execution")
+@Label("Transformation Execution")
+@Category({ "The Plotter Project", "Image Processing" })
+@Description("The execution of a Transformation, or of a stage within a Transformation")
+public class ExecutionEvent extends Event {
+
+    /**
+     * The name of the Transformation step or stage
+     */
+    @Label("Name")
+    public String name;
+
+    /**
+     * The name of the parent Transformation step, null for a Transformation
+     */
+    @Label("Parent")
+    public String parent;
+
+    /**
+     * The id of the scheduler run during which the execution occurred
+     */
+    @Label("Run")
+    public int run;
+
+    /**
+     * The names of the settings whose change triggered the run
+     */
+    @Label("Changed Settings")
+    public String changedSettings;
+
+    /**
+     * The outcome of the execution
+     */
+    @Label("Outcome")
+    public String outcome;
+
+    /**
+     * The CPU time spent by the executing thread
+     */
+    @Label("CPU Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long cpuTime;
+
+    /**
+     * The bytes allocated by the executing thread
+     */
+    @Label("Allocated")
+    @DataAmount
+    public long allocatedBytes;
+
+    /**
+     * The estimated size of the output result
+     */
+    @Label("Output Size")
+    @DataAmount
+    public long outputSize;
+
+}
@@ -0,0 +1,258 @@
+package image_processing.engine;
+
+import java.util.Vector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The measure of a Transformation execution, or of a stage within it: wall time, CPU time and bytes allocated by the
+ * executing thread, and estimated size of the output
+ * 
+ * A measure is started by the ExecutionProfiler and stopped explicitly, the stages being stopped in the finally block
+ * of the try statement wrapping them
+ * 
+ * Note: the CPU time and allocated bytes only account for the thread that started the measure
+ * 
+ * @author Terence
+ *
+ */
+public class ExecutionMeasure {
+
+    /**
+     * The outcome of a measure stopped without a specific outcome
+     */
+    public static final String OUTCOME_DONE = "done";
+
+    /**
+     * The profiler that started the measure
+     */
+    private final ExecutionProfiler profiler;
+
+    /**
+     * The name of the measured Transformation step or stage
+     */
+    private final String name;
+
+    /**
+     * The measure of the Transformation within which this stage has been executed, null for a Transformation
+     */
+    private final ExecutionMeasure parent;
+
+    /**
+     * The id of the scheduler run during which the execution occurred
+     */
+    private final int runId;
+
+    /**
+     * The names of the settings whose change triggered the run, separated by spaces
+     */
+    private final String changedSettings;
+
+    /**
+     * The measures of the stages executed within this measure
+     */
+    private final Vector<ExecutionMeasure> stages = new Vector<ExecutionMeasure>();
+
+    /**
+     * The JFR event corresponding to the measure
+     */
+    private final ExecutionEvent event = new ExecutionEvent();
+
+    /**
+     * The wall time, CPU time and allocated bytes when the measure started
+     */
+    private final long startWallTime, startCpuTime, startAllocatedBytes;
+
+    /**
+     * The measured wall time and CPU time, in ns
+     */
+    private long wallTime, cpuTime;
+
+    /**
+     * The measured allocated bytes
+     */
+    private long allocatedBytes;
+
+    /**
+     * The estimated size of the output, in bytes
+     */
+    private long outputSize;
+
+    /**
+     * The used heap size when the measure stopped, in bytes
+     */
+    private long usedHeapSize;
+
+    /**
+     * The outcome of the execution, null while the measure is running
+     */
+    private volatile String outcome;
+
+    /**
+     * Instantiate and start a new measure
+     * 
+     * @param profiler        the profiler starting the measure
+     * @param name            the name of the measured Transformation step or stage
+     * @param parent          the measure within which the stage is executed, null for a Transformation
+     * @param runId           the id of the scheduler run during which the execution occurs, ignored for a stage
+     * @param changedSettings the names of the settings whose change triggered the run, separated by spaces, ignored
+     *                        for a stage
+     */
+    ExecutionMeasure(ExecutionProfiler profiler, String name, ExecutionMeasure parent, int runId,
+            String changedSettings) {
+        this.profiler = profiler;
+        this.name = name;
+        this.parent = parent;
+        this.runId = parent != null ? parent.runId : runId;
+        this.changedSettings = parent != null ? parent.changedSettings : changedSettings;
+        event.begin();
+        startWallTime = System.nanoTime();
+        startCpuTime = ExecutionProfiler.getCurrentThreadCpuTime();
+        startAllocatedBytes = ExecutionProfiler.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Stop the measure
+     * 
+     * @param outcome    the outcome of the execution
+     * @param outputSize the estimated size of the output, in bytes
+     */
+    public void stop(String outcome, long outputSize) {
+        if (this.outcome != null) {
+            return;
+        }
+        wallTime = System.nanoTime() - startWallTime;
+        cpuTime = ExecutionProfiler.getCurrentThreadCpuTime() - startCpuTime;
+        allocatedBytes = ExecutionProfiler.getCurrentThreadAllocatedBytes() - startAllocatedBytes;
+        usedHeapSize = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        this.outputSize = outputSize;
+        this.outcome = outcome;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.name = name;
+            event.parent = parent != null ? parent.name : null;
+            event.run = runId;
+            event.changedSettings = changedSettings;
+            event.outcome = outcome;
+            event.cpuTime = cpuTime;
+            event.allocatedBytes = allocatedBytes;
+            event.outputSize = outputSize;
+            event.commit();
+        }
+        profiler.measureStopped(this);
+    }
+
+    /**
+     * Stop the measure, if not already stopped, without specific outcome
+     */
+    public void stop() {
+        stop(OUTCOME_DONE, 0);
+    }
+
+    /**
+     * Add the measure of a stage executed within this measure
+     * 
+     * @param stage the measure of the stage
+     */
+    void addStage(ExecutionMeasure stage) {
+        stages.add(stage);
+    }
+
+    /**
+     * Get the measure within which this stage has been executed
+     * 
+     * @return the parent measure, or null for a Transformation
+     */
+    public ExecutionMeasure getParent() {
+        return parent;
+    }
+
+    /**
+     * Get the name of the measured Transformation step or stage
+     * 
+     * @return the name of the measured Transformation step or stage
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the measured wall time
+     * 
+     * @return the measured wall time, in ns
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * Get the measured CPU time
+     * 
+     * @return the measured CPU time, in ns, or 0 if not supported by the JVM
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * Get the measured allocated bytes
+     * 
+     * @return the measured allocated bytes, or 0 if not supported by the JVM
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Get the outcome of the execution
+     * 
+     * @return the outcome of the execution, or null if the measure is still running
+     */
+    public String getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Generate a JSONObject representing the measure and its stages
+     * 
+     * @return a JSONObject representing the measure
+     */
+    public JSONObject toJSonObject() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("name", name);
+        if (parent == null) {
+            jsonObject.put("run", runId);
+            jsonObject.put("changed_settings", changedSettings);
+        }
+        jsonObject.put("outcome", outcome);
+        jsonObject.put("wall_time_ms", wallTime / 1e6);
+        jsonObject.put("cpu_time_ms", cpuTime / 1e6);
+        jsonObject.put("allocated_bytes", allocatedBytes);
+        jsonObject.put("output_size", outputSize);
+        jsonObject.put("used_heap_size", usedHeapSize);
+        JSONArray stagesJsonArray = new JSONArray();
+        for (ExecutionMeasure stage : stages) {
+            stagesJsonArray.put(stage.toJSonObject());
+        }
+        jsonObject.put("stages", stagesJsonArray);
+        return jsonObject;
+    }
+
+    /**
+     * Append the CSV lines representing the measure and its stages
+     * 
+     * @param sb the StringBuilder to which to append the lines
+     */
+    void appendCsvLines(StringBuilder sb) {
+        sb.append(runId).append(',').append(changedSettings).append(',');
+        sb.append(parent != null ? parent.name : name).append(',').append(parent != null ? name : "").append(',');
+        sb.append(outcome).append(',').append(wallTime / 1e6).append(',').append(cpuTime / 1e6).append(',');
+        sb.append(allocatedBytes).append(',').append(outputSize).append(',').append(usedHeapSize).append('\n');
+        for (ExecutionMeasure stage : stages) {
+            stage.appendCsvLines(sb);
+        }
+    }
+
+}
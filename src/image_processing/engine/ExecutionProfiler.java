@@ -0,0 +1,215 @@
+package image_processing.engine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+
+/**
+ * A profiler measuring the Transformations executions and the stages within them, per scheduler run, emitting a JFR
+ * event for each measure and keeping the latest ones to export them as a JSON or CSV report
+ * 
+ * @author Terence
+ *
+ */
+public class ExecutionProfiler {
+
+    /**
+     * The JVM threads management bean, used to measure the CPU time and allocated bytes
+     */
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The ExecutionProfiler singleton
+     */
+    public static final ExecutionProfiler Instance = new ExecutionProfiler();
+
+    /**
+     * The system property indicating the file in which to export the report when the application exits
+     */
+    public static final String REPORT_FILE_PROPERTY = "plotter.profiling.report";
+
+    /**
+     * The maximum number of Transformations measures kept for the report
+     */
+    private static final int MAX_NB_MEASURES = 10000;
+
+    /**
+     * The header of the CSV reports
+     */
+    private static final String CSV_HEADER = "run,changed_settings,step,stage,outcome,wall_time_ms,cpu_time_ms,"
+            + "allocated_bytes,output_size,used_heap_size\n";
+
+    /**
+     * The id of the last scheduler run
+     */
+    private final AtomicInteger lastRunId = new AtomicInteger();
+
+    /**
+     * The measure running on each thread, within which the stages are measured
+     */
+    private final ThreadLocal<ExecutionMeasure> currentMeasure = new ThreadLocal<ExecutionMeasure>();
+
+    /**
+     * The latest Transformations measures, from the oldest to the newest
+     */
+    private final LinkedList<ExecutionMeasure> measures = new LinkedList<ExecutionMeasure>();
+
+    /**
+     * Instantiate a new execution profiler
+     */
+    private ExecutionProfiler() {
+        if (THREAD_MX_BEAN.isThreadCpuTimeSupported() && !THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+            THREAD_MX_BEAN.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /**
+     * Get a new scheduler run id
+     * 
+     * @return the id of the new run
+     */
+    public int startRun() {
+        return lastRunId.incrementAndGet();
+    }
+
+    /**
+     * Start measuring the execution of a Transformation on the current thread
+     * 
+     * @param name            the name of the Transformation step
+     * @param runId           the id of the scheduler run during which the Transformation is executed
+     * @param changedSettings the names of the settings whose change triggered the run
+     * @return the started measure, to stop once the Transformation is executed
+     */
+    public ExecutionMeasure startTransformation(String name, int runId, Set<String> changedSettings) {
+        ExecutionMeasure measure = new ExecutionMeasure(this, name, null, runId,
+                String.join(" ", new TreeSet<String>(changedSettings)));
+        currentMeasure.set(measure);
+        return measure;
+    }
+
+    /**
+     * Start measuring a stage within the Transformation being executed on the current thread
+     * 
+     * @param name the name of the stage
+     * @return the started measure, to stop once the stage is executed
+     */
+    public ExecutionMeasure startStage(String name) {
+        ExecutionMeasure parent = currentMeasure.get();
+        ExecutionMeasure measure = new ExecutionMeasure(this, name, parent, 0, "");
+        currentMeasure.set(measure);
+        return measure;
+    }
+
+    /**
+     * Callback called when a measure is stopped
+     * 
+     * @param measure the stopped measure
+     */
+    void measureStopped(ExecutionMeasure measure) {
+        if (currentMeasure.get() == measure) {
+            currentMeasure.set(measure.getParent());
+        }
+        if (measure.getParent() != null) {
+            measure.getParent().addStage(measure);
+        } else {
+            synchronized (measures) {
+                measures.add(measure);
+                if (measures.size() > MAX_NB_MEASURES) {
+                    measures.removeFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all the measures kept for the report
+     */
+    public void clear() {
+        synchronized (measures) {
+            measures.clear();
+        }
+    }
+
+    /**
+     * Export the measures kept as a report, as a CSV file if its name ends with .csv, or as a JSON file otherwise
+     * 
+     * @param file the file in which to export the report
+     * @throws IOException if the report cannot be written
+     */
+    public void exportReport(File file) throws IOException {
+        String report;
+        synchronized (measures) {
+            if (file.getName().toLowerCase().endsWith(".csv")) {
+                StringBuilder sb = new StringBuilder(CSV_HEADER);
+                for (ExecutionMeasure measure : measures) {
+                    measure.appendCsvLines(sb);
+                }
+                report = sb.toString();
+            } else {
+                JSONArray measuresJsonArray = new JSONArray();
+                for (ExecutionMeasure measure : measures) {
+                    measuresJsonArray.put(measure.toJSonObject());
+                }
+                report = measuresJsonArray.toString(2);
+            }
+        }
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        bw.write(report);
+        bw.close();
+    }
+
+    /**
+     * Export the report when the application exits, if a report file is set through the REPORT_FILE_PROPERTY system
+     * property
+     */
+    public void exportReportOnExitIfRequested() {
+        String reportFilename = System.getProperty(REPORT_FILE_PROPERTY);
+        if (reportFilename == null || reportFilename.isEmpty()) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("profiling-report-writer") {
+            @Override
+            public void run() {
+                try {
+                    exportReport(new File(reportFilename));
+                } catch (IOException e) {
+                    System.err.println("Cannot export the profiling report " + reportFilename + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the CPU time spent by the current thread
+     * 
+     * @return the CPU time spent by the current thread, in ns, or 0 if not supported by the JVM
+     */
+    static long getCurrentThreadCpuTime() {
+        return THREAD_MX_BEAN.isThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Get the bytes allocated by the current thread
+     * 
+     * @return the bytes allocated by the current thread, or 0 if not supported by the JVM
+     */
+    static long getCurrentThreadAllocatedBytes() {
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadMxBean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            if (threadMxBean.isThreadAllocatedMemorySupported()) {
+                return threadMxBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+}
@@ -1,30 +1,112 @@
 package image_processing.engine;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 
 import javax.imageio.ImageIO;
 
 /**
  * A class representing a raw image
  * 
+ * The pixels are stored once, as a row-major buffer of ARGB ints backing the BufferedImage: reading them through the
+ * buffer or drawing the BufferedImage does not require any copy
+ * 
+ * The pixels of the images of at least OFF_HEAP_MIN_NB_PIXELS pixels are stored off-heap, in a memory-mapped temporary
+ * file, so that very large images neither exhaust the heap nor put pressure on the garbage collector
+ * 
  * @author Terence
  *
  */
 public class Image {
 
     /**
-     * The BufferedImage corresponding to the image
+     * The system property setting the minimum number of pixels of the images stored off-heap
+     */
+    public static final String OFF_HEAP_MIN_NB_PIXELS_PROPERTY = "plotter.image.offHeapMinPixels";
+
+    /**
+     * The minimum number of pixels of the images stored off-heap, 50 megapixels (200 MB) by default
+     */
+    private static final long OFF_HEAP_MIN_NB_PIXELS = Long.getLong(OFF_HEAP_MIN_NB_PIXELS_PROPERTY, 50000000L);
+
+    /**
+     * The prefix of the temporary files in which the off-heap pixels are mapped
+     */
+    private static final String OFF_HEAP_FILE_PREFIX = "plotter-image-";
+
+    /**
+     * The directory of the temporary files in which the off-heap pixels are mapped
+     */
+    private static final File OFF_HEAP_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "plotter-images");
+
+    /**
+     * A flag indicating if the stale temporary files of the previous executions have been deleted
+     */
+    private static boolean areStaleOffHeapFilesDeleted = false;
+
+    /**
+     * The BufferedImage corresponding to the image, with an ARGB color model
      */
     private final BufferedImage bufferedImg;
 
     /**
-     * A 2D array of the image pixels
+     * The ARGB pixels of the image, row by row, shared with the data buffer of the BufferedImage
+     */
+    private final IntBuffer pixels;
+
+    /**
+     * The image width, in pixels
+     */
+    private final int W;
+
+    /**
+     * A data buffer backed by an IntBuffer, allowing to draw and read the off-heap pixels as a BufferedImage
      * 
-     * TODO-050: try to get rid of this array
+     * @author Terence
+     *
      */
-    private final int[][] pixels;
+    private static class IntBufferDataBuffer extends DataBuffer {
+
+        /**
+         * The pixels of the data buffer
+         */
+        private final IntBuffer pixels;
+
+        /**
+         * Instantiate a new data buffer backed by an IntBuffer
+         * 
+         * @param pixels the pixels of the data buffer
+         */
+        private IntBufferDataBuffer(IntBuffer pixels) {
+            super(DataBuffer.TYPE_INT, pixels.capacity());
+            this.pixels = pixels;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return pixels.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            pixels.put(i, val);
+        }
+    }
 
     /**
      * Instantiate a new image from a system file
@@ -32,41 +114,190 @@ public class Image {
      * @param file the file from which to load the image
      */
     public Image(File file) {
-        int W = 0, H = 0;
-        BufferedImage img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
-        try {
-            img = ImageIO.read(file);
-            W = img.getWidth();
-            H = img.getHeight();
-
-        } catch (IOException e) {
-            System.err.println("Cannot open " + file.getAbsolutePath());
-        }
-        bufferedImg = img;
-        pixels = new int[W][H];
-        for (int x = 0; x < W; x++) {
-            bufferedImg.getRGB(x, 0, 1, H, pixels[x], 0, 1);
-        }
+        this(readImageFile(file));
     }
 
     /**
      * Instantiate a new image directly from a BufferedImage
      * 
+     * The BufferedImage is wrapped without any copy if its data buffer is a row-major array or buffer of ARGB pixels,
+     * and converted otherwise
+     * 
      * @param bufferedImg the BufferedImage from which to load the image
      */
     public Image(BufferedImage bufferedImg) {
-        this.bufferedImg = bufferedImg;
-        if (bufferedImg != null) {
-            int W = bufferedImg.getWidth();
+        if (bufferedImg == null) {
+            this.bufferedImg = null;
+            pixels = IntBuffer.allocate(0);
+            W = 0;
+        } else {
+            W = bufferedImg.getWidth();
             int H = bufferedImg.getHeight();
+            IntBuffer imgPixels = getPixelsBuffer(bufferedImg);
+            if (imgPixels != null) {
+                this.bufferedImg = bufferedImg;
+                pixels = imgPixels;
+            } else {
+                pixels = allocatePixels(W, H);
+                int[] row = new int[W];
+                for (int y = 0; y < H; y++) {
+                    pixels.put(y * W, bufferedImg.getRGB(0, y, W, 1, row, 0, W));
+                }
+                this.bufferedImg = createBufferedImage(W, H, pixels);
+            }
+        }
+    }
+
+    /**
+     * Instantiate a new image wrapping a buffer of ARGB pixels, without any copy
+     * 
+     * @param W      the image width, in pixels
+     * @param H      the image height, in pixels
+     * @param pixels the ARGB pixels of the image, row by row, e.g. allocated by allocatePixels(), which must not be
+     *               modified afterwards
+     */
+    public Image(int W, int H, IntBuffer pixels) {
+        this.bufferedImg = createBufferedImage(W, H, pixels);
+        this.pixels = pixels;
+        this.W = W;
+    }
+
+    /**
+     * Allocate the pixels of an image, off-heap if the image has at least OFF_HEAP_MIN_NB_PIXELS pixels
+     * 
+     * The pixels are initialized to 0, i.e. transparent
+     * 
+     * @param W the image width, in pixels
+     * @param H the image height, in pixels
+     * @return the allocated pixels, row by row
+     */
+    public static IntBuffer allocatePixels(int W, int H) {
+        long nbPixels = (long) W * H;
+        if (nbPixels >= OFF_HEAP_MIN_NB_PIXELS && nbPixels * Integer.BYTES <= Integer.MAX_VALUE) {
+            try {
+                return allocateOffHeapPixels((int) nbPixels);
+            } catch (IOException e) {
+                System.err.println("Cannot map the pixels of a " + W + "x" + H + " image, storing them in the heap");
+            }
+        }
+        return IntBuffer.wrap(new int[W * H]);
+    }
 
-            pixels = new int[W][H];
-            for (int x = 0; x < W; x++) {
-                bufferedImg.getRGB(x, 0, 1, H, pixels[x], 0, 1);
+    /**
+     * Allocate pixels in a memory-mapped temporary file
+     * 
+     * The file is deleted right away where the system allows it, the mapping staying valid until the pixels are
+     * garbage collected. Elsewhere, e.g. on Windows where a mapped file cannot be deleted, even on exit, the file is
+     * deleted on the next start, by the first allocation of off-heap pixels
+     * 
+     * @param nbPixels the number of pixels to allocate
+     * @return the allocated pixels
+     * @throws IOException if the temporary file cannot be created or mapped
+     */
+    private static IntBuffer allocateOffHeapPixels(int nbPixels) throws IOException {
+        deleteStaleOffHeapFiles();
+        File file = File.createTempFile(OFF_HEAP_FILE_PREFIX, ".raw", OFF_HEAP_DIRECTORY);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) nbPixels * Integer.BYTES)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+        } finally {
+            if (!file.delete()) {
+                System.err.println("Cannot delete " + file.getAbsolutePath()
+                        + " while its pixels are mapped, it will be deleted on the next start");
             }
+        }
+    }
+
+    /**
+     * Create the directory of the off-heap pixels files, and delete the files left by the previous executions, once
+     * 
+     * Note: the files still mapped, e.g. by another running instance on Windows, cannot be deleted and are kept
+     * 
+     * @throws IOException if the directory cannot be created
+     */
+    private static synchronized void deleteStaleOffHeapFiles() throws IOException {
+        if (areStaleOffHeapFilesDeleted) {
+            return;
+        }
+        if (!OFF_HEAP_DIRECTORY.isDirectory() && !OFF_HEAP_DIRECTORY.mkdirs()) {
+            throw new IOException("Cannot create " + OFF_HEAP_DIRECTORY.getAbsolutePath());
+        }
+        File[] files = OFF_HEAP_DIRECTORY.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(OFF_HEAP_FILE_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        areStaleOffHeapFilesDeleted = true;
+    }
+
+    /**
+     * Load a BufferedImage from a system file
+     * 
+     * @param file the file from which to load the BufferedImage
+     * @return the BufferedImage loaded, or a single transparent pixel if the file cannot be read
+     */
+    private static BufferedImage readImageFile(File file) {
+        try {
+            BufferedImage img = ImageIO.read(file);
+            if (img != null) {
+                return img;
+            }
+        } catch (IOException e) {
+            /* handled below */
+        }
+        System.err.println("Cannot open " + file.getAbsolutePath());
+        return new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Create an ARGB BufferedImage backed by a buffer of pixels: a heap buffer backs a TYPE_INT_ARGB BufferedImage,
+     * and an off-heap one a custom BufferedImage
+     * 
+     * @param W      the image width, in pixels
+     * @param H      the image height, in pixels
+     * @param pixels the ARGB pixels of the image, row by row
+     * @return the BufferedImage backed by the pixels
+     */
+    private static BufferedImage createBufferedImage(int W, int H, IntBuffer pixels) {
+        DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+        WritableRaster raster;
+        if (pixels.hasArray() && pixels.arrayOffset() == 0 && pixels.capacity() == pixels.array().length) {
+            raster = Raster.createPackedRaster(new DataBufferInt(pixels.array(), pixels.capacity()), W, H, W,
+                    colorModel.getMasks(), null);
         } else {
-            pixels = new int[0][0];
+            raster = Raster.createWritableRaster(
+                    new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, W, H, colorModel.getMasks()),
+                    new IntBufferDataBuffer(pixels), null);
+        }
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Get the buffer of the ARGB pixels backing a BufferedImage, if its data buffer only holds its pixels, row by row
+     * 
+     * @param img the BufferedImage of which to get the pixels
+     * @return the pixels backing the BufferedImage, or null if its pixels are stored otherwise
+     */
+    private static IntBuffer getPixelsBuffer(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (raster.getParent() != null || !img.getColorModel().equals(ColorModel.getRGBdefault())
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != img.getWidth()
+                || dataBuffer.getNumBanks() != 1 || dataBuffer.getOffset() != 0
+                || dataBuffer.getSize() != img.getWidth() * img.getHeight()) {
+            return null;
         }
+        if (dataBuffer instanceof DataBufferInt) {
+            return IntBuffer.wrap(((DataBufferInt) dataBuffer).getData());
+        }
+        if (dataBuffer instanceof IntBufferDataBuffer) {
+            return ((IntBufferDataBuffer) dataBuffer).pixels;
+        }
+        return null;
     }
 
     /**
@@ -77,12 +308,46 @@ public class Image {
      * @return the corresponding pixel
      */
     public int getPixel(int x, int y) {
-        return pixels[x][y] & 0xFFFFFF;
+        return pixels.get(y * W + x) & 0xFFFFFF;
+    }
+
+    /**
+     * Copy a row of ARGB pixels from the image
+     * 
+     * @param y   the row to copy
+     * @param row the array in which to copy the row, of at least the image width
+     * @return the array in which the row has been copied
+     */
+    public int[] getRow(int y, int[] row) {
+        pixels.get(y * W, row, 0, W);
+        return row;
+    }
+
+    /**
+     * Retrieve the ARGB pixels of the image, row by row, the pixel (x, y) being at index y * width + x
+     * 
+     * Note: the buffer is shared with the image and its BufferedImage, and must not be modified
+     * 
+     * @return the pixels of the image
+     */
+    public IntBuffer getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Indicate if the pixels of the image are stored off-heap
+     * 
+     * @return true if the pixels are stored off-heap, false if they are stored in the heap
+     */
+    public boolean isOffHeap() {
+        return pixels.isDirect();
     }
 
     /**
      * Retrieve the buffered image
      * 
+     * Note: drawing or reading the BufferedImage of an off-heap image is slower than for an image stored in the heap
+     * 
      * @return the buffered image
      */
     public BufferedImage getBufferedImage() {
@@ -95,7 +360,7 @@ public class Image {
      * @return the image width
      */
     public int getWidth() {
-        return bufferedImg != null ? bufferedImg.getWidth() : 0;
+        return W;
     }
 
     /**
@@ -107,6 +372,81 @@ public class Image {
         return bufferedImg != null ? bufferedImg.getHeight() : 0;
     }
 
+    /**
+     * Write the image in a binary stream
+     * 
+     * @param out the stream in which to write the image
+     * @throws IOException if the image cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeBoolean(bufferedImg != null);
+        if (bufferedImg != null) {
+            writeBufferedImage(bufferedImg, out);
+        }
+    }
+
+    /**
+     * Read an image from a binary stream, as written by writeTo()
+     * 
+     * @param in the stream from which to read the image
+     * @return the image read
+     * @throws IOException if the image cannot be read
+     */
+    public static Image readFrom(DataInputStream in) throws IOException {
+        return new Image(in.readBoolean() ? readBufferedImage(in) : null);
+    }
+
+    /**
+     * Write a BufferedImage in a binary stream, as its dimensions followed by its ARGB pixels row by row
+     * 
+     * @param img the BufferedImage to write
+     * @param out the stream in which to write the BufferedImage
+     * @throws IOException if the BufferedImage cannot be written
+     */
+    public static void writeBufferedImage(BufferedImage img, DataOutputStream out) throws IOException {
+        int W = img.getWidth();
+        int H = img.getHeight();
+        out.writeInt(W);
+        out.writeInt(H);
+        IntBuffer pixels = getPixelsBuffer(img);
+        int[] row = new int[W];
+        ByteBuffer rowBytes = ByteBuffer.allocate(W * Integer.BYTES);
+        for (int y = 0; y < H; y++) {
+            if (pixels != null) {
+                pixels.get(y * W, row, 0, W);
+            } else {
+                img.getRGB(0, y, W, 1, row, 0, W);
+            }
+            rowBytes.clear();
+            rowBytes.asIntBuffer().put(row);
+            out.write(rowBytes.array());
+        }
+    }
+
+    /**
+     * Read a BufferedImage from a binary stream, as written by writeBufferedImage()
+     * 
+     * The pixels of the BufferedImage are stored off-heap if it has at least OFF_HEAP_MIN_NB_PIXELS pixels
+     * 
+     * @param in the stream from which to read the BufferedImage
+     * @return the BufferedImage read, with an ARGB color model
+     * @throws IOException if the BufferedImage cannot be read
+     */
+    public static BufferedImage readBufferedImage(DataInputStream in) throws IOException {
+        int W = in.readInt();
+        int H = in.readInt();
+        IntBuffer pixels = allocatePixels(W, H);
+        int[] row = new int[W];
+        ByteBuffer rowBytes = ByteBuffer.allocate(W * Integer.BYTES);
+        for (int y = 0; y < H; y++) {
+            in.readFully(rowBytes.array());
+            rowBytes.clear();
+            rowBytes.asIntBuffer().get(row);
+            pixels.put(y * W, row);
+        }
+        return createBufferedImage(W, H, pixels);
+    }
+
     /**
      * Save the image in a file
      * 
@@ -0,0 +1,334 @@
+package image_processing.engine;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A raster of color labels, storing for each pixel of an image the index of its color in a palette on a single byte
+ * 
+ * The pixels count and the bounding box of each label are computed once, so that the per-color processing can skip
+ * the colors absent from the image and the areas where a color is absent
+ * 
+ * @author Terence
+ *
+ */
+public class LabelRaster {
+
+    /**
+     * The label of the pixels whose color is not in the palette
+     */
+    public static final int NO_LABEL = 0xFF;
+
+    /**
+     * The maximum number of labels of a raster, the last byte value being reserved to NO_LABEL
+     */
+    public static final int MAX_NB_LABELS = NO_LABEL;
+
+    /**
+     * The raster width, in pixels
+     */
+    private final int W;
+
+    /**
+     * The raster height, in pixels
+     */
+    private final int H;
+
+    /**
+     * The labels of the pixels, row by row, the pixel (x, y) being at index y * W + x
+     */
+    private final byte[] labels;
+
+    /**
+     * The RGB colors of the labels
+     */
+    private final int[] colors;
+
+    /**
+     * The number of pixels of each label
+     */
+    private final long[] nbPixels;
+
+    /**
+     * The bounding box of each label, empty if the label has no pixel
+     */
+    private final Rectangle[] bounds;
+
+    /**
+     * Instantiate a new label raster, and compute the pixels count and bounding box of each label
+     * 
+     * @param W      the raster width, in pixels
+     * @param H      the raster height, in pixels
+     * @param labels the labels of the pixels, row by row, which must not be modified afterwards
+     * @param colors the RGB colors of the labels
+     */
+    public LabelRaster(int W, int H, byte[] labels, int[] colors) {
+        if (colors.length > MAX_NB_LABELS) {
+            throw new IllegalArgumentException(
+                    "A label raster cannot hold more than " + MAX_NB_LABELS + " colors, not " + colors.length);
+        }
+        this.W = W;
+        this.H = H;
+        this.labels = labels;
+        this.colors = colors;
+
+        nbPixels = new long[colors.length];
+        int[] xMin = new int[colors.length];
+        int[] yMin = new int[colors.length];
+        int[] xMax = new int[colors.length];
+        int[] yMax = new int[colors.length];
+        Arrays.fill(xMin, W);
+        Arrays.fill(yMin, H);
+        Arrays.fill(xMax, -1);
+        Arrays.fill(yMax, -1);
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                int label = labels[y * W + x] & 0xFF;
+                if (label != NO_LABEL) {
+                    nbPixels[label]++;
+                    xMin[label] = Math.min(xMin[label], x);
+                    yMin[label] = Math.min(yMin[label], y);
+                    xMax[label] = Math.max(xMax[label], x);
+                    yMax[label] = Math.max(yMax[label], y);
+                }
+            }
+        }
+        bounds = new Rectangle[colors.length];
+        for (int label = 0; label < colors.length; label++) {
+            bounds[label] = nbPixels[label] > 0 ? new Rectangle(xMin[label], yMin[label],
+                    xMax[label] - xMin[label] + 1, yMax[label] - yMin[label] + 1) : new Rectangle();
+        }
+    }
+
+    /**
+     * Retrieve the raster width, in pixels
+     * 
+     * @return the raster width
+     */
+    public int getWidth() {
+        return W;
+    }
+
+    /**
+     * Retrieve the raster height, in pixels
+     * 
+     * @return the raster height
+     */
+    public int getHeight() {
+        return H;
+    }
+
+    /**
+     * Get the number of labels of the raster
+     * 
+     * @return the number of labels
+     */
+    public int getNbLabels() {
+        return colors.length;
+    }
+
+    /**
+     * Get the label of a pixel
+     * 
+     * @param x the pixel x coordinate
+     * @param y the pixel y coordinate
+     * @return the label of the pixel, or NO_LABEL if its color is not in the palette
+     */
+    public int getLabel(int x, int y) {
+        return labels[y * W + x] & 0xFF;
+    }
+
+    /**
+     * Retrieve the labels of the pixels, row by row, the pixel (x, y) being at index y * width + x
+     * 
+     * Note: the array is shared with the raster, and must not be modified
+     * 
+     * @return the labels of the pixels, to be read as unsigned bytes
+     */
+    public byte[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Get the RGB color of a label
+     * 
+     * @param label the label of which to get the color
+     * @return the RGB color of the label
+     */
+    public int getColor(int label) {
+        return colors[label];
+    }
+
+    /**
+     * Get the label of a color
+     * 
+     * @param color the RGB color of which to get the label
+     * @return the label of the color, or NO_LABEL if the color has no label
+     */
+    public int getLabelOfColor(int color) {
+        for (int label = 0; label < colors.length; label++) {
+            if (colors[label] == color) {
+                return label;
+            }
+        }
+        return NO_LABEL;
+    }
+
+    /**
+     * Get the number of pixels of a label
+     * 
+     * @param label the label of which to count the pixels
+     * @return the number of pixels of the label
+     */
+    public long getNbPixels(int label) {
+        return nbPixels[label];
+    }
+
+    /**
+     * Get the bounding box of the pixels of a label
+     * 
+     * @param label the label of which to get the bounding box
+     * @return a copy of the bounding box of the label, empty if the label has no pixel
+     */
+    public Rectangle getBounds(int label) {
+        return new Rectangle(bounds[label]);
+    }
+
+    /**
+     * Create the image of the labels colors, the pixels without label being black
+     * 
+     * @param cancellationToken the token to poll, allowing to abort the creation
+     * @return the image of the labels colors
+     */
+    public Image createColorImage(CancellationToken cancellationToken) {
+        IntBuffer pixels = Image.allocatePixels(W, H);
+        int[] colorsPerLabel = new int[NO_LABEL + 1];
+        Arrays.fill(colorsPerLabel, 0xFF000000);
+        for (int label = 0; label < colors.length; label++) {
+            colorsPerLabel[label] = 0xFF000000 | colors[label];
+        }
+        TileScheduler.forEachTile(W, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                    for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                        pixels.put(y * W + x, colorsPerLabel[labels[y * W + x] & 0xFF]);
+                    }
+                }
+            }
+        });
+        return new Image(W, H, pixels);
+    }
+
+    /**
+     * Create the monochrome image of a label: the pixels of the label have its color, the other ones are transparent
+     * 
+     * Only the bounding box of the label is scanned
+     * 
+     * @param label the label of which to create the monochrome image
+     * @return the monochrome image of the label
+     */
+    public BufferedImage createMonochromeImage(int label) {
+        BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int color = 0xFF000000 | colors[label];
+        Rectangle box = bounds[label];
+        for (int y = box.y; y < box.y + box.height; y++) {
+            for (int x = box.x; x < box.x + box.width; x++) {
+                if ((labels[y * W + x] & 0xFF) == label) {
+                    pixels[y * W + x] = color;
+                }
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Create an image merging the monochrome images of some labels: the pixels of the selected labels have their
+     * color, the other ones the opaque background color
+     * 
+     * @param selectedLabels    the labels to merge, indexed by label
+     * @param backgroundColor   the RGB color of the pixels of the other labels
+     * @param cancellationToken the token to poll, allowing to abort the creation
+     * @return the merged image, or null if no label is selected
+     */
+    public BufferedImage createMergedImage(boolean[] selectedLabels, int backgroundColor,
+            CancellationToken cancellationToken) {
+        int[] colorsPerLabel = new int[NO_LABEL + 1];
+        Arrays.fill(colorsPerLabel, 0xFF000000 | backgroundColor);
+        boolean isAnyLabelSelected = false;
+        for (int label = 0; label < colors.length; label++) {
+            if (selectedLabels[label]) {
+                colorsPerLabel[label] = 0xFF000000 | colors[label];
+                isAnyLabelSelected = true;
+            }
+        }
+        if (!isAnyLabelSelected) {
+            return null;
+        }
+        BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        TileScheduler.forEachTile(W, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                    for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                        pixels[y * W + x] = colorsPerLabel[labels[y * W + x] & 0xFF];
+                    }
+                }
+            }
+        });
+        return img;
+    }
+
+    /**
+     * Estimate the size in memory of the raster
+     * 
+     * @return the estimated size of the raster, in bytes
+     */
+    public long estimateSize() {
+        return (long) W * H + (long) colors.length * (Integer.BYTES + Long.BYTES + 4 * Integer.BYTES);
+    }
+
+    /**
+     * Write the raster in a binary stream
+     * 
+     * @param out the stream in which to write the raster
+     * @throws IOException if the raster cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(W);
+        out.writeInt(H);
+        out.writeInt(colors.length);
+        for (int color : colors) {
+            out.writeInt(color);
+        }
+        out.write(labels);
+    }
+
+    /**
+     * Read a raster from a binary stream, as written by writeTo()
+     * 
+     * @param in the stream from which to read the raster
+     * @return the raster read
+     * @throws IOException if the raster cannot be read
+     */
+    public static LabelRaster readFrom(DataInputStream in) throws IOException {
+        int W = in.readInt();
+        int H = in.readInt();
+        int[] colors = new int[in.readInt()];
+        for (int label = 0; label < colors.length; label++) {
+            colors[label] = in.readInt();
+        }
+        byte[] labels = new byte[W * H];
+        in.readFully(labels);
+        return new LabelRaster(W, H, labels, colors);
+    }
+
+}
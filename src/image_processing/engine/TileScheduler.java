@@ -0,0 +1,285 @@
+package image_processing.engine;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A scheduler splitting a raster into square tiles, and applying a kernel to the tiles in parallel on a ForkJoinPool
+ * 
+ * The kernels write the pixels of their tile in a shared output, so that the results are stitched in place. A kernel
+ * reading the neighbours of its pixels, e.g. a convolution, declares the radius of the neighbourhood it reads as a
+ * halo: only the pixels whose whole neighbourhood lies in the raster are then tiled, the halo of a tile always lying
+ * in the raster
+ * 
+ * @author Terence
+ *
+ */
+public abstract class TileScheduler {
+
+    /**
+     * The width and height of the tiles, in pixels, small enough for a tile of int pixels to fit in the CPU caches
+     */
+    public static final int TILE_SIZE = 128;
+
+    /**
+     * The pool on which the tiles are processed
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * A kernel applied to each tile of a raster
+     * 
+     * @author Terence
+     *
+     */
+    public interface TileKernel {
+
+        /**
+         * Apply the kernel to the pixels of a tile
+         * 
+         * Note: the kernel is applied concurrently to several tiles, and must only write the pixels of its tile
+         * 
+         * @param tile the tile to process
+         */
+        public void apply(Tile tile);
+    }
+
+    /**
+     * A rectangular area of a raster, processed by a single kernel application
+     * 
+     * @author Terence
+     *
+     */
+    public static class Tile {
+
+        /**
+         * The bounds of the tile, the lower bounds being included and the upper ones excluded
+         */
+        private final int x0, y0, x1, y1;
+
+        /**
+         * The radius of the neighbourhood read around each pixel of the tile
+         */
+        private final int halo;
+
+        /**
+         * Instantiate a new tile
+         * 
+         * @param x0   the first column of the tile
+         * @param y0   the first row of the tile
+         * @param x1   the column following the last one of the tile
+         * @param y1   the row following the last one of the tile
+         * @param halo the radius of the neighbourhood read around each pixel of the tile
+         */
+        private Tile(int x0, int y0, int x1, int y1, int halo) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.halo = halo;
+        }
+
+        /**
+         * Get the first column of the tile
+         * 
+         * @return the first column of the tile, included
+         */
+        public int getX0() {
+            return x0;
+        }
+
+        /**
+         * Get the first row of the tile
+         * 
+         * @return the first row of the tile, included
+         */
+        public int getY0() {
+            return y0;
+        }
+
+        /**
+         * Get the column following the last one of the tile
+         * 
+         * @return the last column of the tile, excluded
+         */
+        public int getX1() {
+            return x1;
+        }
+
+        /**
+         * Get the row following the last one of the tile
+         * 
+         * @return the last row of the tile, excluded
+         */
+        public int getY1() {
+            return y1;
+        }
+
+        /**
+         * Get the first column of the tile extended by its halo
+         * 
+         * @return the first column of the tile halo, included
+         */
+        public int getHaloX0() {
+            return x0 - halo;
+        }
+
+        /**
+         * Get the first row of the tile extended by its halo
+         * 
+         * @return the first row of the tile halo, included
+         */
+        public int getHaloY0() {
+            return y0 - halo;
+        }
+
+        /**
+         * Get the column following the last one of the tile extended by its halo
+         * 
+         * @return the last column of the tile halo, excluded
+         */
+        public int getHaloX1() {
+            return x1 + halo;
+        }
+
+        /**
+         * Get the row following the last one of the tile extended by its halo
+         * 
+         * @return the last row of the tile halo, excluded
+         */
+        public int getHaloY1() {
+            return y1 + halo;
+        }
+    }
+
+    /**
+     * A task processing a range of tiles, split in halves until a single tile remains
+     * 
+     * @author Terence
+     *
+     */
+    private static class TilesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The tiles of the raster
+         */
+        private final Tile[] tiles;
+
+        /**
+         * The range of tiles to process, the first one being included and the last one excluded
+         */
+        private final int idFirstTile, idLastTile;
+
+        /**
+         * The kernel to apply to the tiles
+         */
+        private final TileKernel kernel;
+
+        /**
+         * The token to poll before processing a tile
+         */
+        private final CancellationToken cancellationToken;
+
+        /**
+         * Instantiate a new task processing a range of tiles
+         * 
+         * @param tiles             the tiles of the raster
+         * @param idFirstTile       the first tile to process, included
+         * @param idLastTile        the last tile to process, excluded
+         * @param kernel            the kernel to apply to the tiles
+         * @param cancellationToken the token to poll before processing a tile
+         */
+        private TilesTask(Tile[] tiles, int idFirstTile, int idLastTile, TileKernel kernel,
+                CancellationToken cancellationToken) {
+            this.tiles = tiles;
+            this.idFirstTile = idFirstTile;
+            this.idLastTile = idLastTile;
+            this.kernel = kernel;
+            this.cancellationToken = cancellationToken;
+        }
+
+        @Override
+        protected void compute() {
+            if (idLastTile - idFirstTile == 1) {
+                cancellationToken.throwIfCancelled();
+                kernel.apply(tiles[idFirstTile]);
+            } else {
+                int idMiddleTile = (idFirstTile + idLastTile) >>> 1;
+                invokeAll(new TilesTask(tiles, idFirstTile, idMiddleTile, kernel, cancellationToken),
+                        new TilesTask(tiles, idMiddleTile, idLastTile, kernel, cancellationToken));
+            }
+        }
+    }
+
+    /**
+     * Apply a kernel in parallel to all the tiles of a raster, and wait for its completion
+     * 
+     * @param W                 the width of the raster, in pixels
+     * @param H                 the height of the raster, in pixels
+     * @param halo              the radius of the neighbourhood read by the kernel around each pixel: only the pixels
+     *                          at least at this distance from the raster borders are tiled
+     * @param cancellationToken the token to poll before processing each tile, allowing to abort the processing
+     * @param kernel            the kernel to apply to each tile
+     * @throws java.util.concurrent.CancellationException if the processing has been aborted
+     */
+    public static void forEachTile(int W, int H, int halo, CancellationToken cancellationToken, TileKernel kernel) {
+        int nbTilesX = (W - 2 * halo + TILE_SIZE - 1) / TILE_SIZE;
+        int nbTilesY = (H - 2 * halo + TILE_SIZE - 1) / TILE_SIZE;
+        if (nbTilesX <= 0 || nbTilesY <= 0) {
+            return;
+        }
+
+        /* The tiles are sorted row by row, so that the neighbouring tiles are processed closely in time */
+        Tile[] tiles = new Tile[nbTilesX * nbTilesY];
+        for (int idTileY = 0; idTileY < nbTilesY; idTileY++) {
+            for (int idTileX = 0; idTileX < nbTilesX; idTileX++) {
+                int x0 = halo + idTileX * TILE_SIZE;
+                int y0 = halo + idTileY * TILE_SIZE;
+                tiles[idTileY * nbTilesX + idTileX] = new Tile(x0, y0, Math.min(x0 + TILE_SIZE, W - halo),
+                        Math.min(y0 + TILE_SIZE, H - halo), halo);
+            }
+        }
+
+        processTiles(tiles, kernel, cancellationToken);
+    }
+
+    /**
+     * Apply a kernel in parallel to independent items, e.g. the labels of a raster, and wait for its completion
+     * 
+     * Each item is a tile of a single pixel, whose column is the index of the item
+     * 
+     * @param nbItems           the number of items
+     * @param cancellationToken the token to poll before processing each item, allowing to abort the processing
+     * @param kernel            the kernel to apply to each item
+     * @throws java.util.concurrent.CancellationException if the processing has been aborted
+     */
+    public static void forEachItem(int nbItems, CancellationToken cancellationToken, TileKernel kernel) {
+        if (nbItems <= 0) {
+            return;
+        }
+        Tile[] tiles = new Tile[nbItems];
+        for (int idItem = 0; idItem < nbItems; idItem++) {
+            tiles[idItem] = new Tile(idItem, 0, idItem + 1, 1, 0);
+        }
+        processTiles(tiles, kernel, cancellationToken);
+    }
+
+    /**
+     * Apply a kernel to tiles on the pool, or on the calling thread if there is a single tile
+     * 
+     * @param tiles             the tiles to process
+     * @param kernel            the kernel to apply to each tile
+     * @param cancellationToken the token to poll before processing each tile
+     */
+    private static void processTiles(Tile[] tiles, TileKernel kernel, CancellationToken cancellationToken) {
+        TilesTask task = new TilesTask(tiles, 0, tiles.length, kernel, cancellationToken);
+        if (tiles.length == 1) {
+            task.compute();
+        } else {
+            POOL.invoke(task);
+        }
+    }
+
+}
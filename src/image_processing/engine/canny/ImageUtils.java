@@ -28,69 +28,6 @@ import java.awt.image.BufferedImage;
 // TODO-022: add doc, move and clean all code in the canny package
 public abstract class ImageUtils {
 
-    public static BufferedImage mergeImages(BufferedImage[] images, int backgroundColor) {
-        if (images.length == 0) {
-            return null;
-        }
-        int W = -1;
-        int H = -1;
-        for (int idImg = 0; idImg < images.length; idImg++) {
-            if (images[idImg] != null) {
-                W = images[idImg].getWidth();
-                H = images[idImg].getHeight();
-                break;
-            }
-        }
-        if (W == -1) {
-            return null;
-        }
-        backgroundColor |= 0xFF000000;
-
-        BufferedImage mergedImg = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
-        for (int x = 0; x < W; x++) {
-            for (int y = 0; y < H; y++) {
-                int color = backgroundColor;
-                for (BufferedImage img : images) {
-                    if (img != null) {
-                        int c = img.getRGB(x, y);
-                        if (c != 0x00000000) {
-                            color = c;
-                            break;
-                        }
-                    }
-                }
-                mergedImg.setRGB(x, y, color);
-            }
-        }
-        return mergedImg;
-    }
-
-    public static BufferedImage EdgesToImg(BufferedImage edges, int gaussianRadius, int color) {
-        color = 0xFF000000 | color;
-        int edgesW = edges.getWidth();
-        int edgesH = edges.getHeight();
-        int deltaSize = 2 + 2 + 2 * gaussianRadius; // TODO-022: add this margin to original picture before blurring?
-        int imgW = edgesW + deltaSize;
-        int imgH = edgesH + deltaSize;
-        BufferedImage img = new BufferedImage(imgW, imgH, BufferedImage.TYPE_INT_ARGB);
-        for (int x = 0; x < imgW; x++) {
-            for (int y = 0; y < imgH; y++) {
-                if (x >= deltaSize / 2 && x < edgesW + deltaSize / 2 && y >= deltaSize / 2
-                        && y < edgesH + deltaSize / 2) {
-                    int edgeColor = edges.getRGB(x - deltaSize / 2, y - deltaSize / 2);
-                    if (edgeColor == 0xFF000000) {
-//                        img.setRGB(x, y, 0xFFFFFFFF);
-                    } else {
-                        img.setRGB(x, y, color);
-                    }
-                } else {
-//                    img.setRGB(x, y, 0xFFFFFFFF);
-                }
-            }
-        }
-        return img;
-    }
-
     /**
      * Send this method a BufferedImage to get an RGB array (int, value 0-255).
      * 
@@ -19,205 +19,394 @@ package image_processing.engine.canny;
 
 import java.awt.image.BufferedImage;
 
-public abstract class JCanny {
-    private static final int GAUSSIAN_RADIUS = 0;
-    private static final double GAUSSIAN_INTENSITY = 1;
-
-    private static int stDev; // Standard deviation in magnitude of image's pixels
-    private static int mean; // Mean of magnitude in image's pixels
-    private static int numDev; // Number of standard deviations above mean for high threshold
-    private static double tHi; // Hysteresis high threshold; Definitely edge pixels, do not examine
-    private static double tLo; // Hysteresis low threshold; possible edge pixel, examine further.
-    private static double tFract; // Low threshold is this fraction of high threshold
-    private static int[][] dir; // Gradient direction mask. Equals Math.atan2(gy/gx)
-    private static int[][] gx; // Mask resulting from horizontal 3x3 Sobel mask
-    private static int[][] gy; // Mask resulting from vertical 3x3 Sobel mask
-    private static double[][] mag; // Direction mask. Equals Math.sqrt(gx^2 * gy^2)
+import image_processing.engine.CancellationToken;
+import image_processing.engine.TileScheduler;
+
+/**
+ * A Canny edge detector, whose scratch buffers are kept and reused by the successive detections of images of the same
+ * size
+ * 
+ * The pixels are stored row by row in flat arrays. The Sobel gradients, their squared magnitudes, the magnitude
+ * statistics and the gradient directions are computed by a single fused pass over bands of rows, in parallel.
+ * 
+ * The detection is split in two stages: the edge candidates, i.e. the pixels kept by the non-maximum suppression and
+ * the magnitude statistics, do not depend on the thresholds, and can be kept to detect the edges with other thresholds
+ * by the hysteresis only.
+ * 
+ * An instance detects the edges of a single image at a time, but several instances can detect edges concurrently
+ * 
+ * @author robert
+ */
+public class JCanny {
+    private static final byte DIR_0 = 0; // Check left and right neighbors
+    private static final byte DIR_45 = 1; // Check diagonal (upper right and lower left) neighbors
+    private static final byte DIR_90 = 2; // Check top and bottom neighbors
+    private static final byte DIR_135 = 3; // Check diagonal (upper left and lower right) neighbors
+
+    private int width; // Width of the image, and of the rows of the flat arrays
+    private int height; // Height of the image
+    private int stDev; // Standard deviation in magnitude of image's pixels
+    private int mean; // Mean of magnitude in image's pixels
+    private int numDev; // Number of standard deviations above mean for high threshold
+    private double tHi; // Hysteresis high threshold; Definitely edge pixels, do not examine
+    private double tLo; // Hysteresis low threshold; possible edge pixel, examine further.
+    private double tFract; // Low threshold is this fraction of high threshold
+    private int[] gray; // Grayscale values of image's pixels
+    private int[] mag; // Squared gradient magnitude, gx^2 + gy^2, of the pixels not on the image borders
+    private byte[] dir; // Gradient direction, quantized to one of the four DIR_ values
+    private int[] suppressed; // Squared gradient magnitude, null for the pixels suppressed by the non-maximum step,
+                              // and for all the pixels between the detections
+    private int[] pending; // Stack of the edge pixels whose neighbors are still to examine by the hysteresis
+    private CancellationToken token; // Token polled once per row, allowing to abort the detection
 
     /**
-     * This function accepts a single-channel (grayscale, red, blue, Y, etc) image and returns an image with detected
-     * edges. Currently computes hysteresis thresholds based on an a given ratio, but in the future all parameters will
-     * be passed in from an external source to allow another program to optimize them.
+     * The edge candidates of an image, i.e. the pixels not suppressed by the non-maximum step, with their squared
+     * gradient magnitudes, and the magnitude statistics of the image. They are stored sparsely, as the candidates are
+     * few, and do not change once computed.
      * 
-     * @param img              A BufferedImage that is to undergo Canny edge detector.
-     * @param numberDeviations Set high threshold as a function of number of standard deviations above the mean. mean +
-     *                         std. dev: 68% of pixel magnitudes fall below this value mean + 2 * std. dev: 95% of pixel
-     *                         magnitudes fall below this value mean + 3 * std. dev: 99.7% of pixel magnitudes fall
-     *                         below this value
-     * @param fract            Set low threshold as a fraction of the high threshold
-     * @return edges A binary image of the edges in the input image.
+     * @author Terence
+     *
      */
-    public static BufferedImage CannyEdges(BufferedImage img, int numberDeviations, double fract, int outlineColor) {
-        int[][] raw = null;
-        int[][] blurred = null;
-        BufferedImage edges = null;
-        numDev = numberDeviations;
-        tFract = fract;
+    public static class EdgeCandidates {
+        private final int width; // Width of the image
+        private final int height; // Height of the image
+        private final int mean; // Mean of magnitude in image's pixels
+        private final int stDev; // Standard deviation in magnitude of image's pixels
+        private final int[] pixels; // Indexes of the candidate pixels, row by row, in increasing order
+        private final int[] magnitudes; // Squared gradient magnitudes of the candidate pixels
 
-        // More specific bounds checking later
-        if (img != null && numberDeviations > 0 && fract > 0) {
-            raw = ImageUtils.GSArray(img);
-            blurred = Gaussian.BlurGS(raw, GAUSSIAN_RADIUS, GAUSSIAN_INTENSITY);
-            gx = Sobel.Horizontal(blurred); // Convolved with 3x3 horizontal Sobel mask
-            gy = Sobel.Vertical(blurred); // Convolved with 3x3 vertical Sobel mask
-
-            Magnitude(); // Find the gradient magnitude at each pixel
-            Direction(); // Find the gradient direction at each pixel
-            Suppression(); // Using the direction and magnitude images, identify candidate points
+        private EdgeCandidates(int width, int height, int mean, int stDev, int[] pixels, int[] magnitudes) {
+            this.width = width;
+            this.height = height;
+            this.mean = mean;
+            this.stDev = stDev;
+            this.pixels = pixels;
+            this.magnitudes = magnitudes;
+        }
 
-            edges = ImageUtils.GSImg(Hysteresis());
+        /**
+         * Estimate the size in memory of the candidates
+         * 
+         * @return the estimated size of the candidates, in bytes
+         */
+        public long estimateSize() {
+            return (long) pixels.length * 2 * Integer.BYTES;
         }
+    }
 
-        return ImageUtils.EdgesToImg(edges, GAUSSIAN_RADIUS, outlineColor);
+    /**
+     * This function accepts a single-channel (grayscale, red, blue, Y, etc) image and returns the detected edges as a
+     * bitset of its pixels. Currently computes hysteresis thresholds based on an a given ratio, but in the future all
+     * parameters will be passed in from an external source to allow another program to optimize them.
+     * 
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean. mean +
+     *                          std. dev: 68% of pixel magnitudes fall below this value mean + 2 * std. dev: 95% of
+     *                          pixel magnitudes fall below this value mean + 3 * std. dev: 99.7% of pixel magnitudes
+     *                          fall below this value
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param cancellationToken The token to poll, allowing to abort the detection
+     * @return edges A bitset of the image pixels, row by row, whose bits are set for the edge pixels.
+     */
+    public long[] detectEdges(BufferedImage img, int numberDeviations, double fract,
+            CancellationToken cancellationToken) {
+        return detectEdges(computeCandidates(img, cancellationToken), numberDeviations, fract, cancellationToken);
     }
 
     /**
-     * Send this method the horizontal and vertical Sobel convolutions to create the gradient magnitude image.
+     * This function accepts a single-channel (grayscale, red, blue, Y, etc) image and returns its edge candidates,
+     * from which the edges can be detected with any thresholds.
      * 
-     * @return void
+     * @param img               A BufferedImage that is to undergo Canny edge detector.
+     * @param cancellationToken The token to poll, allowing to abort the detection
+     * @return candidates The edge candidates of the image.
      */
-    private static void Magnitude() {
-        double sum = 0;
-        double var = 0;
-        int height = gx.length;
-        int width = gx[0].length;
-        double pixelTotal = height * width;
-        mag = new double[height][width];
+    public EdgeCandidates computeCandidates(BufferedImage img, CancellationToken cancellationToken) {
+        token = cancellationToken;
+        mean = 0;
+        stDev = 0;
+
+        // More specific bounds checking later
+        if (img.getWidth() <= 4 || img.getHeight() <= 4) {
+            return new EdgeCandidates(img.getWidth(), img.getHeight(), mean, stDev, new int[0], new int[0]);
+        }
 
-        for (int r = 0; r < height; r++) {
-            for (int c = 0; c < width; c++) {
-                mag[r][c] = Math.sqrt(gx[r][c] * gx[r][c] + gy[r][c] * gy[r][c]);
+        allocateBuffers(img.getWidth(), img.getHeight());
+        if (gray == null) {
+            gray = new int[width * height];
+            mag = new int[width * height];
+            dir = new byte[width * height];
+        }
+        Grayscale(img); // Average the channels of each pixel
+        Gradient(); // Find the gradient magnitude, its statistics and the gradient direction at each pixel
+        Suppression(); // Using the direction and magnitude images, identify candidate points
 
-                sum += mag[r][c];
+        int nbCandidates = 0;
+        for (int i = 0; i < width * height; i++) {
+            if (suppressed[i] != 0) {
+                nbCandidates++;
+            }
+        }
+        int[] pixels = new int[nbCandidates];
+        int[] magnitudes = new int[nbCandidates];
+        int idCandidate = 0;
+        for (int i = 0; i < width * height; i++) {
+            if (suppressed[i] != 0) {
+                pixels[idCandidate] = i;
+                magnitudes[idCandidate] = suppressed[i];
+                suppressed[i] = 0; // The suppressed magnitudes are kept null between the detections
+                idCandidate++;
             }
         }
+        return new EdgeCandidates(width, height, mean, stDev, pixels, magnitudes);
+    }
 
-        mean = (int) Math.round(sum / pixelTotal);
+    /**
+     * This function accepts the edge candidates of an image and returns the edges detected with the given thresholds,
+     * as a bitset of the image pixels.
+     * 
+     * @param candidates        The edge candidates of the image, as computed by computeCandidates().
+     * @param numberDeviations  Set high threshold as a function of number of standard deviations above the mean.
+     * @param fract             Set low threshold as a fraction of the high threshold
+     * @param cancellationToken The token to poll, allowing to abort the detection
+     * @return edges A bitset of the image pixels, row by row, whose bits are set for the edge pixels.
+     */
+    public long[] detectEdges(EdgeCandidates candidates, int numberDeviations, double fract,
+            CancellationToken cancellationToken) {
+        long[] edges = new long[(candidates.width * candidates.height + Long.SIZE - 1) / Long.SIZE];
+        numDev = numberDeviations;
+        tFract = fract;
+        token = cancellationToken;
 
-        // Get variance
-        for (int r = 0; r < height; r++) {
-            for (int c = 0; c < width; c++) {
-                double diff = mag[r][c] - mean;
+        // More specific bounds checking later
+        if (numberDeviations > 0 && fract > 0 && candidates.pixels.length > 0) {
+            allocateBuffers(candidates.width, candidates.height);
+            Hysteresis(candidates, edges); // Using the thresholds, keep the edge pixels
+        }
 
-                var += (diff * diff);
-            }
+        return edges;
+    }
+
+    /**
+     * Allocate the scratch buffers of the hysteresis, unless they already have the size of the image. The buffers of
+     * the gradient are released, to be allocated by the next computation of edge candidates.
+     * 
+     * @param imgWidth  int, the width of the image
+     * @param imgHeight int, the height of the image
+     */
+    private void allocateBuffers(int imgWidth, int imgHeight) {
+        if (suppressed == null || width != imgWidth || height != imgHeight) {
+            width = imgWidth;
+            height = imgHeight;
+            gray = null;
+            mag = null;
+            dir = null;
+            suppressed = new int[width * height];
+            pending = new int[width * height];
         }
+    }
 
-        stDev = (int) Math.sqrt(var / pixelTotal);
+    /**
+     * Call this method to fill the grayscale array with the average of the channels of the image pixels, in bands of
+     * rows processed in parallel.
+     * 
+     * @param img BufferedImage, the input image from which to extract grayscale
+     */
+    private void Grayscale(BufferedImage img) {
+        TileScheduler.forEachTile(1, height, 0, token, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                int[] row = new int[width];
+                for (int r = tile.getY0(); r < tile.getY1(); r++) {
+                    img.getRGB(0, r, width, 1, row, 0, width);
+                    for (int c = 0; c < width; c++) {
+                        int bits = row[c];
+                        // Rounded average, (sum + 1) / 3 being Math.round(sum / 3.0)
+                        gray[r * width + c] = (((bits >> 16) & 0xff) + ((bits >> 8) & 0xff) + (bits & 0xff) + 1) / 3;
+                    }
+                }
+            }
+        });
     }
 
     /**
-     * Send this method the horizontal and vertical Sobel convolutions to create the gradient direction image.
+     * Call this method to convolve the grayscale array with the horizontal and vertical 3x3 Sobel masks, and derive
+     * the squared gradient magnitude, its mean and standard deviation, and the gradient direction, in a single pass.
+     * 
+     * The rows not on the image borders are processed in bands in parallel, each band summing the magnitudes and
+     * squared magnitudes of its pixels, so that the statistics need no second pass and do not depend on the order in
+     * which the bands are processed.
      * 
      * @return void
      */
-    private static void Direction() {
-        int height = gx.length;
-        int width = gx[0].length;
-        double piRad = 180 / Math.PI;
-        dir = new int[height][width];
-
-        for (int r = 0; r < height; r++) {
-            for (int c = 0; c < width; c++) {
-                double angle = Math.atan2(gy[r][c], gx[r][c]) * piRad; // Convert radians to degrees
-
-                // Check for negative angles
-                if (angle < 0) {
-                    angle += 360.;
-                }
+    private void Gradient() {
+        int nbBands = (height - 2 + TileScheduler.TILE_SIZE - 1) / TileScheduler.TILE_SIZE;
+        double[] sums = new double[nbBands];
+        long[] squaredSums = new long[nbBands];
 
-                // Each pixels ACTUAL angle is examined and placed in 1 of four groups (for the four searched 45-degree
-                // neighbors)
-                // Reorder this for optimization
-                if (angle <= 22.5 || (angle >= 157.5 && angle <= 202.5) || angle >= 337.5) {
-                    dir[r][c] = 0; // Check left and right neighbors
-                } else if ((angle >= 22.5 && angle <= 67.5) || (angle >= 202.5 && angle <= 247.5)) {
-                    dir[r][c] = 45; // Check diagonal (upper right and lower left) neighbors
-                } else if ((angle >= 67.5 && angle <= 112.5) || (angle >= 247.5 && angle <= 292.5)) {
-                    dir[r][c] = 90; // Check top and bottom neighbors
-                } else {
-                    dir[r][c] = 135; // Check diagonal (upper left and lower right) neighbors
+        // The rows not on the image borders are laid out as a raster of a single column, each tile being a band
+        TileScheduler.forEachTile(1, height - 2, 0, token, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                double sum = 0;
+                long squaredSum = 0;
+                for (int r = tile.getY0() + 1; r < tile.getY1() + 1; r++) {
+                    for (int c = 1; c < width - 1; c++) {
+                        int i = r * width + c;
+                        int topLeft = gray[i - width - 1];
+                        int topRight = gray[i - width + 1];
+                        int bottomLeft = gray[i + width - 1];
+                        int bottomRight = gray[i + width + 1];
+                        int gx = topRight - topLeft + 2 * (gray[i + 1] - gray[i - 1]) + bottomRight - bottomLeft;
+                        int gy = bottomLeft - topLeft + 2 * (gray[i + width] - gray[i - width]) + bottomRight
+                                - topRight;
+                        int squaredMagnitude = gx * gx + gy * gy;
+                        mag[i] = squaredMagnitude;
+                        sum += Math.sqrt(squaredMagnitude);
+                        squaredSum += squaredMagnitude;
+                        dir[i] = Direction(gx, gy);
+                    }
                 }
+                sums[tile.getY0() / TileScheduler.TILE_SIZE] = sum;
+                squaredSums[tile.getY0() / TileScheduler.TILE_SIZE] = squaredSum;
             }
+        });
+
+        double sum = 0;
+        long squaredSum = 0;
+        for (int idBand = 0; idBand < nbBands; idBand++) {
+            sum += sums[idBand];
+            squaredSum += squaredSums[idBand];
+        }
+        double pixelTotal = (double) (height - 2) * (width - 2);
+        mean = (int) Math.round(sum / pixelTotal);
+
+        // Variance around the rounded mean, expanded as the sum of (magnitude - mean)^2
+        double var = squaredSum - 2. * mean * sum + pixelTotal * mean * mean;
+        stDev = (int) Math.sqrt(Math.max(0, var) / pixelTotal);
+    }
+
+    /**
+     * Quantize the direction of a gradient into one of the four searched 45-degree neighbors, without computing its
+     * angle: the tangents of 22.5 and 67.5 degrees being sqrt(2) - 1 and sqrt(2) + 1, the slope |gy| / |gx| is compared
+     * to them exactly on integers.
+     * 
+     * @param gx int, the horizontal gradient
+     * @param gy int, the vertical gradient
+     * @return the quantized direction, one of the DIR_ values
+     */
+    private static byte Direction(int gx, int gy) {
+        int absGx = Math.abs(gx);
+        int absGy = Math.abs(gy);
+        int doubledSquaredGx = 2 * gx * gx;
+        if ((absGy + absGx) * (absGy + absGx) <= doubledSquaredGx) {
+            return DIR_0; // |gy| <= (sqrt(2) - 1) * |gx|
+        } else if (absGy >= absGx && (absGy - absGx) * (absGy - absGx) >= doubledSquaredGx) {
+            return DIR_90; // |gy| >= (sqrt(2) + 1) * |gx|
+        } else if ((gx ^ gy) >= 0) {
+            return DIR_45; // Gradients of the same sign
+        } else {
+            return DIR_135;
         }
     }
 
     /**
-     * Call this method to use gradient direction and magnitude to suppress lesser pixels.
+     * Call this method to use gradient direction and magnitude to suppress lesser pixels, i.e. the pixels whose
+     * magnitude is lower than the one of both their neighbors along the gradient direction. The bands of rows are
+     * processed in parallel, the magnitudes being read and the suppressed ones written in separate arrays.
      * 
      * @return void
      */
-    private static void Suppression() {
-        int height = mag.length - 1;
-        int width = mag[0].length - 1;
-
-        for (int r = 1; r < height; r++) {
-            for (int c = 1; c < width; c++) {
-                double magnitude = mag[r][c];
-
-                switch (dir[r][c]) {
-                case 0:
-                    if (magnitude < mag[r][c - 1] && magnitude < mag[r][c + 1]) {
-                        mag[r - 1][c - 1] = 0;
-                    }
-                    break;
-                case 45:
-                    if (magnitude < mag[r - 1][c + 1] && magnitude < mag[r + 1][c - 1]) {
-                        mag[r - 1][c - 1] = 0;
-                    }
-                    break;
-                case 90:
-                    if (magnitude < mag[r - 1][c] && magnitude < mag[r + 1][c]) {
-                        mag[r - 1][c - 1] = 0;
-                    }
-                    break;
-                case 135:
-                    if (magnitude < mag[r - 1][c - 1] && magnitude < mag[r + 1][c + 1]) {
-                        mag[r - 1][c - 1] = 0;
+    private void Suppression() {
+        TileScheduler.forEachTile(1, height - 2, 0, token, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                for (int r = tile.getY0() + 1; r < tile.getY1() + 1; r++) {
+                    for (int c = 1; c < width - 1; c++) {
+                        int i = r * width + c;
+                        int magnitude = mag[i];
+                        int offset; // Offset of the neighbors along the gradient direction
+
+                        // The pixels next to the image borders lack neighbors, and are suppressed, so that the
+                        // hysteresis never reaches the image borders
+                        if (r == 1 || r == height - 2 || c == 1 || c == width - 2) {
+                            suppressed[i] = 0;
+                            continue;
+                        }
+
+                        switch (dir[i]) {
+                        case DIR_0:
+                            offset = 1;
+                            break;
+                        case DIR_45:
+                            offset = width - 1;
+                            break;
+                        case DIR_90:
+                            offset = width;
+                            break;
+                        default:
+                            offset = width + 1;
+                            break;
+                        }
+
+                        suppressed[i] = magnitude < mag[i - offset] && magnitude < mag[i + offset] ? 0 : magnitude;
                     }
-                    break;
                 }
             }
-        }
+        });
     }
 
     /**
-     * Call this method to use an upper and lower threshold to decided which non-suppressed pixels are edges.
+     * Call this method to use an upper and lower threshold to decided which non-suppressed pixels are edges: the
+     * pixels above the high threshold, and the pixels above the low threshold connected to them through other such
+     * pixels. The edges are flooded from each pixel above the high threshold with a stack, the bitset of the edges
+     * marking the flooded pixels, so that each pixel is examined a bounded number of times. The squared magnitudes are
+     * compared to the squared thresholds, the null magnitudes never being edges.
      * 
-     * @return bin int[][], the binary image showing edges in the original.
+     * @param candidates EdgeCandidates, the edge candidates of the image
+     * @param edges      long[], the bitset of the image pixels receiving the edges
      */
-    private static int[][] Hysteresis() {
-        int height = mag.length - 1;
-        int width = mag[0].length - 1;
-        int[][] bin = new int[height - 1][width - 1];
-
-        tHi = mean + (numDev * stDev); // Magnitude greater than or equal to high threshold is an edge pixel
+    private void Hysteresis(EdgeCandidates candidates, long[] edges) {
+        tHi = candidates.mean + (numDev * candidates.stDev); // Magnitude greater than or equal to high threshold
         tLo = tHi * tFract; // Magnitude less than low threshold not an edge, equal or greater possible edge
+        int squaredTHi = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(tHi * tHi)));
+        int squaredTLo = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(tLo * tLo)));
+        int[] neighbors = { -width - 1, -width, -width + 1, -1, 1, width - 1, width, width + 1 };
 
-        for (int r = 1; r < height; r++) {
-            for (int c = 1; c < width; c++) {
-                double magnitude = mag[r][c];
-
-                if (magnitude >= tHi) {
-                    bin[r - 1][c - 1] = 255;
-                } else if (magnitude < tLo) {
-                    bin[r - 1][c - 1] = 0;
-                } else { // This could be separate method or lambda
-                    boolean connected = false;
-
-                    for (int nr = -1; nr < 2; nr++) {
-                        for (int nc = -1; nc < 2; nc++) {
-                            if (mag[r + nr][c + nc] >= tHi) {
-                                connected = true;
-                            }
+        // The candidates are scattered in the null dense array of the suppressed magnitudes, read by the flood
+        for (int idCandidate = 0; idCandidate < candidates.pixels.length; idCandidate++) {
+            suppressed[candidates.pixels[idCandidate]] = candidates.magnitudes[idCandidate];
+        }
+
+        for (int idCandidate = 0; idCandidate < candidates.pixels.length; idCandidate++) {
+            int i = candidates.pixels[idCandidate];
+
+            if (idCandidate % width == 0) {
+                token.throwIfCancelled();
+            }
+            if (suppressed[i] >= squaredTHi && (edges[i / Long.SIZE] & (1L << i)) == 0) {
+                edges[i / Long.SIZE] |= 1L << i;
+                int nbPending = 0;
+                pending[nbPending++] = i;
+
+                // The pixels next to the image borders being suppressed, the neighbors always lie in the image
+                while (nbPending > 0) {
+                    int p = pending[--nbPending];
+
+                    for (int offset : neighbors) {
+                        int n = p + offset;
+
+                        if (suppressed[n] >= squaredTLo && (edges[n / Long.SIZE] & (1L << n)) == 0) {
+                            edges[n / Long.SIZE] |= 1L << n;
+                            pending[nbPending++] = n;
                         }
                     }
-
-                    bin[r - 1][c - 1] = (connected) ? 255 : 0;
                 }
             }
         }
 
-        return bin;
+        for (int idCandidate = 0; idCandidate < candidates.pixels.length; idCandidate++) {
+            suppressed[candidates.pixels[idCandidate]] = 0;
+        }
     }
 }
@@ -10,4 +10,6 @@ public enum ColorQuantizationMethod {
     USE_AVAILABLE_INKS, /* use the available inks colors */
     FAVOR_CONTRASTS, /* use the bucket cutting method, favoring the largest color delta */
     FAVOR_COLORS_TRUE_TO_ORIGINALS, /* use the bucket cutting method with the classic recursive cut */
+    REFINE_WITH_K_MEANS, /* use the k-means clustering, seeded with k-means++ */
+    MINIMIZE_VARIANCE, /* use Wu's method, cutting the boxes of largest color variance */
 }
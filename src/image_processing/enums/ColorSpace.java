@@ -9,5 +9,6 @@ package image_processing.enums;
 public enum ColorSpace {
     RGB, /* the basic RGB color space */
     SRGB, /* the standard sRGB color space */
-    HUMAN_WEIGHTED /* an human-weighted color space */
+    HUMAN_WEIGHTED, /* an human-weighted color space */
+    LAB /* the perceptually uniform CIELAB color space */
 }
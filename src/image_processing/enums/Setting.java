@@ -12,6 +12,9 @@ public enum Setting {
 
     IMAGE_FILE("Source Image"), /* the input image path */
     IMAGE_DPI("Image DPI"), /* the input image DPI */
+    LIMIT_IMPORT_RESOLUTION("Limit Import Resolution"), /* import the input image at the maximum useful resolution */
+    IMPORT_SCALE("Import Scale"), /* the scale at which the input image is imported, absent if full */
+    PREVIEW_SCALE("Preview Scale"), /* the scale at which the input image is imported for a preview, absent if full */
     COLOR_SPACE("Color Space"), /* the color space to use for all color-related computations */
 
     NB_QUANTIZATION_COLORS("Number of Colors to keep"), /* the number of color to keep */
@@ -36,6 +39,7 @@ public enum Setting {
                                                                      * use multicolor thick outlining instead of black
                                                                      * thick outlining
                                                                      */
+    THIN_THICK_OUTLINES("Thin Thick Outlines"), /* thin the thick outlines into their centerlines */
     OUTLINE_LPMM("Lines Per Mm"), /* the thick outling lines per mm */
     CANNY_HIGH_THRESHOLD("High Threshold"), /* the Canny high threshold value used for the outlining */
     CANNY_LOW_THRESHOLD("Low Threshold"), /* the Canny low threshold value used for the outlining */
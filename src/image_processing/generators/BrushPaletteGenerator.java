@@ -13,9 +13,6 @@ import image_processing.enums.ColorAttributionMethod;
 import image_processing.enums.ColorSpace;
 import image_processing.enums.Setting;
 import image_processing.session.Configuration;
-import image_processing.session.Project;
-import image_processing.transformations.ColorQuantizationTransformation;
-import image_processing.transformations.TransformationStep;
 
 /**
  * An abstract class used to generate BrushPalettes
@@ -75,8 +72,6 @@ public abstract class BrushPaletteGenerator {
             int nbLevelsPerColor, double graySaturationThreshold, ColorSpace colorSpace,
             ColorAttributionMethod colorAttributionMethod) {
         if (colorAttributionMethod == ColorAttributionMethod.ASSIGN_CLOSEST_QUANTIZED_INK) {
-            ColorQuantizationTransformation trans = (ColorQuantizationTransformation) Project.Instance
-                    .getTransformation(TransformationStep.COLOR_QUANTIZATION);
             return generateBrushPaletteFromInks(
                     Configuration.Instance.getCurrentSettings().getIntSetting(Setting.NB_QUANTIZATION_COLORS));
         } else {
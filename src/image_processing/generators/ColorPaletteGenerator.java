@@ -1,35 +1,257 @@
 package image_processing.generators;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
 
+import common.engine.Utils;
+import image_processing.engine.CancellationToken;
 import image_processing.engine.ColorPalette;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
+import image_processing.engine.TileScheduler;
 import image_processing.enums.ColorQuantizationMethod;
 import image_processing.enums.ColorSelectionMethod;
+import image_processing.enums.ColorSpace;
 
 /**
  * An abstract class used to generate ColorPalettes
  * 
+ * The palettes are generated by cutting a color histogram of the image, each bin gathering the pixels whose colors
+ * are equal once reduced to HISTOGRAM_BITS_PER_CHANNEL bits per channel, so that the generation is linear in the
+ * number of pixels and bins
+ * 
  * @author Terence
  *
  */
 public abstract class ColorPaletteGenerator {
 
     /**
-     * Generate a ColorPalette with a reduced number of colors from the specified pixels colors
+     * The system property setting the maximum number of pixels added to the color histogram, the pixels of larger
+     * images being sampled evenly; no pixel is skipped if not set
+     */
+    public static final String MAX_SAMPLED_NB_PIXELS_PROPERTY = "plotter.palette.maxSampledPixels";
+
+    /**
+     * The maximum number of pixels added to the color histogram, 0 to add all of them
+     */
+    private static final long MAX_SAMPLED_NB_PIXELS = Long.getLong(MAX_SAMPLED_NB_PIXELS_PROPERTY, 0L);
+
+    /**
+     * The number of bits per channel of the histogram bins
+     */
+    private static final int HISTOGRAM_BITS_PER_CHANNEL = 6;
+
+    /**
+     * The number of values of a color channel
+     */
+    private static final int NB_CHANNEL_VALUES = 256;
+
+    /**
+     * The seed of the k-means++ seeding, fixed so that the palette only depends on the image and the settings
+     */
+    private static final long K_MEANS_SEED = 0x5EEDL;
+
+    /**
+     * The maximum number of k-means iterations, the refinement stopping earlier once no bin changes of cluster
+     */
+    private static final int K_MEANS_MAX_NB_ITERATIONS = 32;
+
+    /**
+     * The number of bits per channel of the cells of the moments tables of Wu's method
+     */
+    private static final int WU_BITS_PER_CHANNEL = 5;
+
+    /**
+     * A color histogram, storing the non-empty bins in compact arrays
+     */
+    private static class ColorHistogram {
+
+        /**
+         * The number of non-empty bins
+         */
+        private final int nbBins;
+
+        /**
+         * The number of pixels of each bin
+         */
+        private final long[] counts;
+
+        /**
+         * The mean RGB color of the pixels of each bin
+         */
+        private final int[] colors;
+
+        /**
+         * The sums of the red, green and blue channels of the pixels of each bin
+         */
+        private final long[][] sums;
+
+        /**
+         * Instantiate a histogram from the pixels counts and channels sums of all the bins, empty or not
+         * 
+         * @param allCounts the number of pixels of each bin
+         * @param allSums   the sums of the red, green and blue channels of the pixels of each bin
+         */
+        private ColorHistogram(long[] allCounts, long[][] allSums) {
+            int nbNonEmptyBins = 0;
+            for (long count : allCounts) {
+                if (count > 0) {
+                    nbNonEmptyBins++;
+                }
+            }
+            nbBins = nbNonEmptyBins;
+            counts = new long[nbBins];
+            colors = new int[nbBins];
+            sums = new long[3][nbBins];
+            int idBin = 0;
+            for (int bin = 0; bin < allCounts.length; bin++) {
+                long count = allCounts[bin];
+                if (count > 0) {
+                    counts[idBin] = count;
+                    for (int chan = 0; chan < 3; chan++) {
+                        sums[chan][idBin] = allSums[chan][bin];
+                        colors[idBin] |= (int) ((allSums[chan][bin] + count / 2) / count) << (8 * (2 - chan));
+                    }
+                    idBin++;
+                }
+            }
+        }
+
+        /**
+         * Get the value of a channel of the mean color of a bin
+         * 
+         * @param idBin the bin of which to get the channel value
+         * @param chan  the channel: 0 for red, 1 for green and 2 for blue
+         * @return the channel value, between 0 and 255
+         */
+        private int getChannel(int idBin, int chan) {
+            return (colors[idBin] >> (8 * (2 - chan))) & 0xFF;
+        }
+    }
+
+    /**
+     * Compute the color histogram of an image
+     * 
+     * @param sourceImg         the image of which to compute the histogram
+     * @param cancellationToken the token to poll, allowing to abort the computation
+     * @return the color histogram of the image
+     */
+    private static ColorHistogram computeHistogram(Image sourceImg, CancellationToken cancellationToken) {
+        int W = sourceImg.getWidth();
+        int H = sourceImg.getHeight();
+        IntBuffer pixels = sourceImg.getPixels();
+        int shift = 8 - HISTOGRAM_BITS_PER_CHANNEL;
+        long[] counts = new long[1 << (3 * HISTOGRAM_BITS_PER_CHANNEL)];
+        long[][] sums = new long[3][counts.length];
+
+        /* Add every step-th pixel, so that at most MAX_SAMPLED_NB_PIXELS are added */
+        long nbPixels = (long) W * H;
+        long step = 1;
+        if (MAX_SAMPLED_NB_PIXELS > 0 && nbPixels > MAX_SAMPLED_NB_PIXELS) {
+            step = (nbPixels + MAX_SAMPLED_NB_PIXELS - 1) / MAX_SAMPLED_NB_PIXELS;
+        }
+        long i = 0;
+        for (int y = 0; y < H; y++) {
+            cancellationToken.throwIfCancelled();
+            for (; i < (long) (y + 1) * W; i += step) {
+                int px = pixels.get((int) i);
+                int r = (px >> 16) & 0xFF;
+                int g = (px >> 8) & 0xFF;
+                int b = px & 0xFF;
+                int bin = (r >> shift) << (2 * HISTOGRAM_BITS_PER_CHANNEL) | (g >> shift) << HISTOGRAM_BITS_PER_CHANNEL
+                        | (b >> shift);
+                counts[bin]++;
+                sums[0][bin] += r;
+                sums[1][bin] += g;
+                sums[2][bin] += b;
+            }
+        }
+        return new ColorHistogram(counts, sums);
+    }
+
+    /**
+     * Sort a range of bins by the value of a channel of their mean color, with a stable counting sort
      * 
-     * @param pixelsColors            a list containing the pixels colors from which to generate the reduced color
-     *                                palette
+     * @param histogram the histogram of the bins
+     * @param bins      the bins ids, of which to sort the range
+     * @param start     the first index of the range, included
+     * @param end       the last index of the range, excluded
+     * @param chan      the channel by which to sort: 0 for red, 1 for green and 2 for blue
+     */
+    private static void sortBins(ColorHistogram histogram, int[] bins, int start, int end, int chan) {
+        int[] offsets = new int[NB_CHANNEL_VALUES + 1];
+        for (int i = start; i < end; i++) {
+            offsets[histogram.getChannel(bins[i], chan) + 1]++;
+        }
+        for (int value = 0; value < NB_CHANNEL_VALUES; value++) {
+            offsets[value + 1] += offsets[value];
+        }
+        int[] sortedBins = new int[end - start];
+        for (int i = start; i < end; i++) {
+            sortedBins[offsets[histogram.getChannel(bins[i], chan)]++] = bins[i];
+        }
+        System.arraycopy(sortedBins, 0, bins, start, sortedBins.length);
+    }
+
+    /**
+     * Select the color of a range of bins
+     * 
+     * @param histogram            the color histogram of the bins
+     * @param bins                 the bins ids, of which the range is reordered by the median selection
+     * @param start                the first index of the range, included
+     * @param end                  the last index of the range, excluded
+     * @param colorSelectionMethod the color selection method to use to select the color
+     * @return the selected RGB color
+     */
+    private static int selectColor(ColorHistogram histogram, int[] bins, int start, int end,
+            ColorSelectionMethod colorSelectionMethod) {
+        long nbPixels = 0;
+        for (int i = start; i < end; i++) {
+            nbPixels += histogram.counts[bins[i]];
+        }
+        int color = 0;
+        if (colorSelectionMethod == ColorSelectionMethod.USE_MEDIAN_COLOR) {
+            /* compute bucket median color, channel by channel */
+            for (int chan = 0; chan < 3; chan++) {
+                // TODO-051: we should use the color space here
+                sortBins(histogram, bins, start, end, chan);
+                long nbLowerPixels = 0;
+                int i = start;
+                while (nbLowerPixels + histogram.counts[bins[i]] <= nbPixels / 2) {
+                    nbLowerPixels += histogram.counts[bins[i++]];
+                }
+                color |= histogram.getChannel(bins[i], chan) << (8 * (2 - chan));
+            }
+        } else {
+            /* compute bucket average color */
+            for (int chan = 0; chan < 3; chan++) {
+                long sum = 0;
+                for (int i = start; i < end; i++) {
+                    sum += histogram.sums[chan][bins[i]];
+                }
+                color |= (int) (sum / nbPixels) << (8 * (2 - chan));
+            }
+        }
+        return color;
+    }
+
+    /**
+     * Generate a ColorPalette with a reduced number of colors from the specified color histogram
+     * 
+     * @param histogram               the color histogram from which to generate the reduced color palette
      * @param nbColors                the number of colors of the palette
      * @param colorQuantizationMethod the color quantization method to use to generate the reduced color palette
      * @param colorSelectionMethod    the color selection method to use to generate the reduced color palette
+     * @param colorSpace              the color space in which to compare the colors
+     * @param cancellationToken       the token to poll, allowing to abort the generation
      * @return the reduced color palette
      */
-    private static ColorPalette generateReducedColorPalette(ArrayList<Integer> pixelsColors, int nbColors,
-            ColorQuantizationMethod colorQuantizationMethod, ColorSelectionMethod colorSelectionMethod) {
+    private static ColorPalette generateReducedColorPalette(ColorHistogram histogram, int nbColors,
+            ColorQuantizationMethod colorQuantizationMethod, ColorSelectionMethod colorSelectionMethod,
+            ColorSpace colorSpace, CancellationToken cancellationToken) {
         if (colorQuantizationMethod == ColorQuantizationMethod.FAVOR_COLORS_TRUE_TO_ORIGINALS) {
             int idFirstSetBit = Integer.toBinaryString(nbColors).indexOf('1');
             int idLastSetBit = Integer.toBinaryString(nbColors).lastIndexOf('1');
@@ -42,119 +264,513 @@ public abstract class ColorPaletteGenerator {
             nbColors /= 2;
         } else if (colorQuantizationMethod == ColorQuantizationMethod.FAVOR_CONTRASTS) {
             nbColors--;
+        } else if (colorQuantizationMethod == ColorQuantizationMethod.REFINE_WITH_K_MEANS) {
+            return generateKMeansColorPalette(histogram, nbColors, colorSelectionMethod, colorSpace,
+                    cancellationToken);
+        } else if (colorQuantizationMethod == ColorQuantizationMethod.MINIMIZE_VARIANCE) {
+            return generateVarianceMinimizingColorPalette(histogram, nbColors, colorSelectionMethod, colorSpace,
+                    cancellationToken);
         } else {
             System.err.println("Unsupported color quantization method: " + colorQuantizationMethod);
             return null;
         }
-        return cutPalette(new ColorPalette(), pixelsColors, nbColors, colorQuantizationMethod, colorSelectionMethod);
+        int[] bins = new int[histogram.nbBins];
+        for (int idBin = 0; idBin < bins.length; idBin++) {
+            bins[idBin] = idBin;
+        }
+        return cutPalette(new ColorPalette(), histogram, bins, 0, bins.length, nbColors, colorQuantizationMethod,
+                colorSelectionMethod, cancellationToken);
     }
 
-    // TODO-011: clean that function, rename it and add doc
-    private static ColorPalette cutPalette(ColorPalette colorPalette, List<Integer> pixels, int nbCuts,
-            ColorQuantizationMethod colorQuantizationMethod, ColorSelectionMethod colorSelectionMethod) {
-        if (pixels.size() == 0) { // TODO-011: remove that? probably an issue with the cut
+    /**
+     * Recursively cut a box of bins in two halves of the same number of pixels along its widest channel, adding to
+     * the palette the color of each box once there is no cut left to do
+     * 
+     * A box of a single bin cannot be cut, and both its halves are then the box itself
+     * 
+     * @param colorPalette            the palette to which to add the colors of the boxes
+     * @param histogram               the color histogram of the bins
+     * @param bins                    the bins ids, the box being a range of them, reordered by the cuts
+     * @param start                   the first index of the box range, included
+     * @param end                     the last index of the box range, excluded
+     * @param nbCuts                  the number of cuts left to do on the box
+     * @param colorQuantizationMethod the color quantization method to use to cut the box
+     * @param colorSelectionMethod    the color selection method to use to select the color of a box
+     * @param cancellationToken       the token to poll, allowing to abort the cut
+     * @return the palette, with the colors of the box added
+     */
+    private static ColorPalette cutPalette(ColorPalette colorPalette, ColorHistogram histogram, int[] bins,
+            int start, int end, int nbCuts, ColorQuantizationMethod colorQuantizationMethod,
+            ColorSelectionMethod colorSelectionMethod, CancellationToken cancellationToken) {
+        cancellationToken.throwIfCancelled();
+        if (start == end) {
             System.err.println("error: tried to cut empty palette");
             return colorPalette;
         }
         if (nbCuts > 0) {
-            /* split pixel buck in two */
-            // TODO-011: clean that function
-            int minR = 0xFF0000, minG = 0x00FF00, minB = 0x0000FF;
-            int maxR = 0, maxG = 0, maxB = 0;
-            for (int i = 0; i < pixels.size(); i++) {
-                int px = pixels.get(i);
-                int r = px & 0xFF0000;
-                int g = px & 0x00FF00;
-                int b = px & 0x0000FF;
-                if (r < minR) {
-                    minR = r;
-                }
-                if (r > maxR) {
-                    maxR = r;
-                }
-                if (g < minG) {
-                    minG = g;
-                }
-                if (g > maxG) {
-                    maxG = g;
-                }
-                if (b < minB) {
-                    minB = b;
-                }
-                if (b > maxB) {
-                    maxB = b;
-                }
-            }
-            int deltaR = (maxR - minR) >> 16;
-            int deltaG = (maxG - minG) >> 8;
-            int deltaB = maxB - minB;
-            int filter = 0;
-
-            if (deltaR >= deltaG && deltaR >= deltaB) {
-                filter = 0xFF0000;
-            } else if (deltaG >= deltaR && deltaG >= deltaB) {
-                filter = 0x00FF00;
-            } else {
-                filter = 0x0000FF;
+            long nbPixels = 0;
+            for (int i = start; i < end; i++) {
+                nbPixels += histogram.counts[bins[i]];
+            }
+
+            /* Find the channel with the largest range of values */
+            int[] min = new int[] { 0xFF, 0xFF, 0xFF };
+            int[] max = new int[] { 0, 0, 0 };
+            for (int i = start; i < end; i++) {
+                for (int chan = 0; chan < 3; chan++) {
+                    min[chan] = Math.min(min[chan], histogram.getChannel(bins[i], chan));
+                    max[chan] = Math.max(max[chan], histogram.getChannel(bins[i], chan));
+                }
+            }
+            int widestChan = 0;
+            for (int chan = 1; chan < 3; chan++) {
+                if (max[chan] - min[chan] > max[widestChan] - min[widestChan]) {
+                    widestChan = chan;
+                }
             }
-            int filterFinal = filter;
-            Collections.sort(pixels, new Comparator<Integer>() {
-                @Override
-                public int compare(Integer o1, Integer o2) {
-                    return (o1 & filterFinal) - (o2 & filterFinal); // TODO-011: can we use a single &?
+
+            /*
+             * Split the box at its median along that channel, the bin containing the median going to the half which
+             * gets the closest to half the pixels
+             */
+            int middle = end;
+            if (end - start > 1) {
+                sortBins(histogram, bins, start, end, widestChan);
+                long nbLowerPixels = 0;
+                middle = start;
+                while (middle < end - 1 && 2 * (nbLowerPixels + histogram.counts[bins[middle]]) <= nbPixels) {
+                    nbLowerPixels += histogram.counts[bins[middle++]];
+                }
+                if (middle == start || (middle < end - 1
+                        && 2 * nbLowerPixels + histogram.counts[bins[middle]] < nbPixels)) {
+                    middle++;
                 }
-            });
-            // TODO-011: is a new arraylist necessary?
+            }
+            int upperStart = end - start > 1 ? middle : start;
+
             if (colorQuantizationMethod == ColorQuantizationMethod.FAVOR_COLORS_TRUE_TO_ORIGINALS) {
-                cutPalette(colorPalette, new ArrayList(pixels.subList(0, pixels.size() / 2)), nbCuts / 2,
-                        colorQuantizationMethod, colorSelectionMethod);
-                cutPalette(colorPalette, new ArrayList(pixels.subList(pixels.size() / 2, pixels.size())), nbCuts / 2,
-                        colorQuantizationMethod, colorSelectionMethod);
+                cutPalette(colorPalette, histogram, bins, start, middle, nbCuts / 2, colorQuantizationMethod,
+                        colorSelectionMethod, cancellationToken);
+                cutPalette(colorPalette, histogram, bins, upperStart, end, nbCuts / 2, colorQuantizationMethod,
+                        colorSelectionMethod, cancellationToken);
             } else if (colorQuantizationMethod == ColorQuantizationMethod.FAVOR_CONTRASTS) {
-                cutPalette(colorPalette, new ArrayList(pixels.subList(pixels.size() / 2, pixels.size())), 0,
-                        colorQuantizationMethod, colorSelectionMethod);
-                cutPalette(colorPalette, new ArrayList(pixels.subList(0, pixels.size() / 2)), nbCuts - 1,
-                        colorQuantizationMethod, colorSelectionMethod);
+                cutPalette(colorPalette, histogram, bins, upperStart, end, 0, colorQuantizationMethod,
+                        colorSelectionMethod, cancellationToken);
+                cutPalette(colorPalette, histogram, bins, start, middle, nbCuts - 1, colorQuantizationMethod,
+                        colorSelectionMethod, cancellationToken);
             } else {
                 System.err.println("Unsupported color quantization method: " + colorQuantizationMethod);
                 return null;
             }
         } else {
-            int color = 0;
-            if (colorSelectionMethod == ColorSelectionMethod.USE_MEDIAN_COLOR) {
-                /* compute bucket median color */
-                for (int comp = 0; comp < 3; comp++) {
-                    int filter = 0xFF << (comp * 8);
-                    Collections.sort(pixels, new Comparator<Integer>() {
-
-                        @Override
-                        public int compare(Integer o1, Integer o2) {
-                            // TODO-051: we should use the color space here
-                            return (o1 & filter) - (o2 & filter);
+            colorPalette.addColor(selectColor(histogram, bins, start, end, colorSelectionMethod));
+        }
+        return colorPalette;
+    }
+
+    /**
+     * Add to a palette the color of each cluster of bins
+     * 
+     * @param colorPalette         the palette to which to add the colors of the clusters
+     * @param histogram            the color histogram of the bins
+     * @param clusters             the cluster of each bin
+     * @param nbClusters           the number of clusters
+     * @param colorSelectionMethod the color selection method to use to select the color of a cluster
+     * @return the palette, with the colors of the non-empty clusters added
+     */
+    private static ColorPalette addClustersColors(ColorPalette colorPalette, ColorHistogram histogram, int[] clusters,
+            int nbClusters, ColorSelectionMethod colorSelectionMethod) {
+        /* Group the bins cluster by cluster, with a counting sort */
+        int[] offsets = new int[nbClusters + 1];
+        for (int idBin = 0; idBin < histogram.nbBins; idBin++) {
+            offsets[clusters[idBin] + 1]++;
+        }
+        for (int idCluster = 0; idCluster < nbClusters; idCluster++) {
+            offsets[idCluster + 1] += offsets[idCluster];
+        }
+        int[] bins = new int[histogram.nbBins];
+        int[] ends = offsets.clone();
+        for (int idBin = 0; idBin < histogram.nbBins; idBin++) {
+            bins[ends[clusters[idBin]]++] = idBin;
+        }
+
+        for (int idCluster = 0; idCluster < nbClusters; idCluster++) {
+            if (offsets[idCluster] < offsets[idCluster + 1]) {
+                colorPalette.addColor(selectColor(histogram, bins, offsets[idCluster], offsets[idCluster + 1],
+                        colorSelectionMethod));
+            }
+        }
+        return colorPalette;
+    }
+
+    /**
+     * Generate a ColorPalette by clustering the bins of a color histogram with the k-means algorithm
+     * 
+     * The centroids are seeded with k-means++, then each iteration assigns in parallel every bin to its closest
+     * centroid and moves the centroids to the mean color of their pixels, until no bin changes of cluster. Each
+     * iteration is measured as a stage of the ExecutionProfiler, so that the number of iterations and their timings
+     * are reported
+     * 
+     * @param histogram            the color histogram from which to generate the palette
+     * @param nbColors             the number of colors of the palette
+     * @param colorSelectionMethod the color selection method to use to select the color of a cluster
+     * @param colorSpace           the color space in which to compare the colors
+     * @param cancellationToken    the token to poll, allowing to abort the generation
+     * @return the generated color palette
+     */
+    private static ColorPalette generateKMeansColorPalette(ColorHistogram histogram, int nbColors,
+            ColorSelectionMethod colorSelectionMethod, ColorSpace colorSpace, CancellationToken cancellationToken) {
+        int nbBins = histogram.nbBins;
+        int nbClusters = Math.min(nbColors, nbBins);
+        int[] centroids = new int[nbClusters];
+
+        /*
+         * Pick the first centroid among the bins with a probability proportional to their number of pixels, then
+         * each next one with a probability also proportional to the squared distance to the closest centroid
+         */
+        ExecutionMeasure kMeansSeedingStage = ExecutionProfiler.Instance.startStage("K-means++ seeding");
+        try {
+            Random random = new Random(K_MEANS_SEED);
+            double[] minSquaredDists = new double[nbBins];
+            Arrays.fill(minSquaredDists, 1);
+            for (int idCluster = 0; idCluster < nbClusters; idCluster++) {
+                cancellationToken.throwIfCancelled();
+                double totalWeight = 0;
+                for (int idBin = 0; idBin < nbBins; idBin++) {
+                    totalWeight += histogram.counts[idBin] * minSquaredDists[idBin];
+                }
+                double weight = random.nextDouble() * totalWeight;
+                int idPickedBin = nbBins - 1;
+                for (int idBin = 0; idBin < nbBins; idBin++) {
+                    weight -= histogram.counts[idBin] * minSquaredDists[idBin];
+                    if (weight < 0) {
+                        idPickedBin = idBin;
+                        break;
+                    }
+                }
+                centroids[idCluster] = histogram.colors[idPickedBin];
+                for (int idBin = 0; idBin < nbBins; idBin++) {
+                    double dist = Utils.distanceBetweenColors(histogram.colors[idBin], centroids[idCluster],
+                            colorSpace);
+                    minSquaredDists[idBin] = idCluster == 0 ? dist * dist
+                            : Math.min(minSquaredDists[idBin], dist * dist);
+                }
+            }
+        } finally {
+            kMeansSeedingStage.stop();
+        }
+
+        /*
+         * Refine the centroids, the bins being laid out in rows of TILE_SIZE bins so that each tile assigns a chunk
+         * of bins
+         */
+        int[] clusters = new int[nbBins];
+        Arrays.fill(clusters, -1);
+        int[] newClusters = new int[nbBins];
+        boolean hasConverged = false;
+        for (int iteration = 0; iteration < K_MEANS_MAX_NB_ITERATIONS && !hasConverged; iteration++) {
+            ExecutionMeasure kMeansIterationStage = ExecutionProfiler.Instance.startStage("K-means iteration");
+            try {
+                TileScheduler.forEachTile(TileScheduler.TILE_SIZE,
+                        (nbBins + TileScheduler.TILE_SIZE - 1) / TileScheduler.TILE_SIZE, 0, cancellationToken,
+                        new TileScheduler.TileKernel() {
+                            @Override
+                            public void apply(TileScheduler.Tile tile) {
+                                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                                    for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                                        int idBin = y * TileScheduler.TILE_SIZE + x;
+                                        if (idBin < nbBins) {
+                                            newClusters[idBin] = getClosestCentroid(histogram.colors[idBin],
+                                                    centroids, colorSpace);
+                                        }
+                                    }
+                                }
+                            }
+                        });
+
+                /* Move each centroid to the mean color of the pixels of its bins */
+                hasConverged = true;
+                long[] nbPixels = new long[nbClusters];
+                long[][] sums = new long[3][nbClusters];
+                for (int idBin = 0; idBin < nbBins; idBin++) {
+                    int idCluster = newClusters[idBin];
+                    if (idCluster != clusters[idBin]) {
+                        clusters[idBin] = idCluster;
+                        hasConverged = false;
+                    }
+                    nbPixels[idCluster] += histogram.counts[idBin];
+                    for (int chan = 0; chan < 3; chan++) {
+                        sums[chan][idCluster] += histogram.sums[chan][idBin];
+                    }
+                }
+                for (int idCluster = 0; idCluster < nbClusters; idCluster++) {
+                    if (nbPixels[idCluster] > 0) {
+                        int color = 0;
+                        for (int chan = 0; chan < 3; chan++) {
+                            color |= (int) ((sums[chan][idCluster] + nbPixels[idCluster] / 2) / nbPixels[idCluster])
+                                    << (8 * (2 - chan));
                         }
-                    });
-                    color |= pixels.get(pixels.size() / 2) & filter;
+                        centroids[idCluster] = color;
+                    }
                 }
-            } else {
+            } finally {
+                kMeansIterationStage.stop();
+            }
+        }
+
+        return addClustersColors(new ColorPalette(), histogram, clusters, nbClusters, colorSelectionMethod);
+    }
 
-                /* compute bucket average color */
-                long r = 0;
-                long g = 0;
-                long b = 0;
-                for (int i = 0; i < pixels.size(); i++) {
-                    int px = pixels.get(i);
-                    r += (px & 0xFF0000) >> 16;
-                    g += (px & 0x00FF00) >> 8;
-                    b += px & 0x0000FF;
+    /**
+     * Get the closest centroid of a color
+     * 
+     * @param color      the color for which to find the closest centroid
+     * @param centroids  the colors of the centroids
+     * @param colorSpace the color space in which to compare the colors
+     * @return the index of the closest centroid
+     */
+    private static int getClosestCentroid(int color, int[] centroids, ColorSpace colorSpace) {
+        int idClosestCentroid = 0;
+        int distMin = Integer.MAX_VALUE;
+        for (int idCentroid = 0; idCentroid < centroids.length; idCentroid++) {
+            int dist = Utils.distanceBetweenColors(color, centroids[idCentroid], colorSpace);
+            if (dist < distMin) {
+                idClosestCentroid = idCentroid;
+                distMin = dist;
+            }
+        }
+        return idClosestCentroid;
+    }
+
+    /**
+     * Get the weights of the squared channels differences approximating the distance of a color space
+     * 
+     * Note: the CIELAB distance not being a weighting of the RGB channels, it is approximated by the sRGB one
+     * 
+     * @param colorSpace the color space
+     * @return the weights of the squared red, green and blue differences
+     */
+    private static double[] getChannelsWeights(ColorSpace colorSpace) {
+        if (colorSpace == ColorSpace.SRGB || colorSpace == ColorSpace.LAB) {
+            return new double[] { 2.5, 4, 2.5 };
+        } else if (colorSpace == ColorSpace.HUMAN_WEIGHTED) {
+            return new double[] { 0.30 * 0.30, 0.59 * 0.59, 0.11 * 0.11 };
+        } else {
+            return new double[] { 1, 1, 1 };
+        }
+    }
+
+    /**
+     * Turn a moments table into a cumulative moments table, in which each cell holds the sum of the moments of all
+     * the cells of lower or equal coordinates
+     * 
+     * @param table the moments table, indexed by (r * side + g) * side + b
+     * @param side  the number of cells per channel of the table
+     */
+    private static void accumulateMoments(double[] table, int side) {
+        for (int r = 1; r < side; r++) {
+            for (int g = 1; g < side; g++) {
+                for (int b = 1; b < side; b++) {
+                    int idCell = (r * side + g) * side + b;
+                    table[idCell] += table[idCell - 1];
+                }
+                for (int b = 1; b < side; b++) {
+                    int idCell = (r * side + g) * side + b;
+                    table[idCell] += table[idCell - side];
+                }
+            }
+            for (int g = 1; g < side; g++) {
+                for (int b = 1; b < side; b++) {
+                    int idCell = (r * side + g) * side + b;
+                    table[idCell] += table[idCell - side * side];
                 }
-                r /= pixels.size();
-                g /= pixels.size();
-                b /= pixels.size();
-                color = (int) (r << 16 | g << 8 | b);
             }
-            colorPalette.addColor(color);
         }
-        return colorPalette;
+    }
+
+    /**
+     * Get the sum of the moments of a box from a cumulative moments table
+     * 
+     * @param table the cumulative moments table
+     * @param side  the number of cells per channel of the table
+     * @param box   the box, as {rMin, rMax, gMin, gMax, bMin, bMax}, the min coordinates being excluded
+     * @return the sum of the moments of the box
+     */
+    private static double getBoxMoment(double[] table, int side, int[] box) {
+        return table[(box[1] * side + box[3]) * side + box[5]] - table[(box[1] * side + box[3]) * side + box[4]]
+                - table[(box[1] * side + box[2]) * side + box[5]] + table[(box[1] * side + box[2]) * side + box[4]]
+                - table[(box[0] * side + box[3]) * side + box[5]] + table[(box[0] * side + box[3]) * side + box[4]]
+                + table[(box[0] * side + box[2]) * side + box[5]] - table[(box[0] * side + box[2]) * side + box[4]];
+    }
+
+    /**
+     * Get the weighted color variance of a box, multiplied by its number of pixels
+     * 
+     * @param moments the cumulative moments tables: pixels counts, red, green and blue sums and weighted squared sums
+     * @param side    the number of cells per channel of the tables
+     * @param box     the box of which to compute the variance
+     * @param weights the weights of the squared channels differences
+     * @return the weighted variance of the box, multiplied by its number of pixels
+     */
+    private static double getBoxVariance(double[][] moments, int side, int[] box, double[] weights) {
+        double nbPixels = getBoxMoment(moments[0], side, box);
+        if (nbPixels == 0) {
+            return 0;
+        }
+        double variance = getBoxMoment(moments[4], side, box);
+        for (int chan = 0; chan < 3; chan++) {
+            double sum = getBoxMoment(moments[1 + chan], side, box);
+            variance -= weights[chan] * sum * sum / nbPixels;
+        }
+        return variance;
+    }
+
+    /**
+     * Cut a box in two along the channel and at the position minimizing the sum of the variances of the halves
+     * 
+     * @param moments the cumulative moments tables: pixels counts, red, green and blue sums and weighted squared sums
+     * @param side    the number of cells per channel of the tables
+     * @param box     the box to cut, becoming the lower half
+     * @param weights the weights of the squared channels differences
+     * @return the upper half, or null if the box cannot be cut
+     */
+    private static int[] cutBox(double[][] moments, int side, int[] box, double[] weights) {
+        double[] boxMoments = new double[4];
+        for (int idMoment = 0; idMoment < 4; idMoment++) {
+            boxMoments[idMoment] = getBoxMoment(moments[idMoment], side, box);
+        }
+
+        /* Maximizing the sum of the squared means of the halves minimizes the sum of their variances */
+        double maxScore = -1;
+        int cutChan = -1;
+        int cutPosition = -1;
+        for (int chan = 0; chan < 3; chan++) {
+            for (int position = box[2 * chan] + 1; position < box[2 * chan + 1]; position++) {
+                int[] lowerBox = box.clone();
+                lowerBox[2 * chan + 1] = position;
+                double lowerNbPixels = getBoxMoment(moments[0], side, lowerBox);
+                double upperNbPixels = boxMoments[0] - lowerNbPixels;
+                if (lowerNbPixels == 0 || upperNbPixels == 0) {
+                    continue;
+                }
+                double score = 0;
+                for (int idChan = 0; idChan < 3; idChan++) {
+                    double lowerSum = getBoxMoment(moments[1 + idChan], side, lowerBox);
+                    double upperSum = boxMoments[1 + idChan] - lowerSum;
+                    score += weights[idChan]
+                            * (lowerSum * lowerSum / lowerNbPixels + upperSum * upperSum / upperNbPixels);
+                }
+                if (score > maxScore) {
+                    maxScore = score;
+                    cutChan = chan;
+                    cutPosition = position;
+                }
+            }
+        }
+        if (cutChan < 0) {
+            return null;
+        }
+        int[] upperBox = box.clone();
+        upperBox[2 * cutChan] = cutPosition;
+        box[2 * cutChan + 1] = cutPosition;
+        return upperBox;
+    }
+
+    /**
+     * Generate a ColorPalette from a color histogram with Wu's method: the color cube is recursively cut, always
+     * cutting the box of largest color variance at the position minimizing the variances of its halves
+     * 
+     * The moments are cumulated in tables of WU_BITS_PER_CHANNEL bits per channel, so that the moments of any box are
+     * computed in constant time
+     * 
+     * @param histogram            the color histogram from which to generate the palette
+     * @param nbColors             the number of colors of the palette
+     * @param colorSelectionMethod the color selection method to use to select the color of a box
+     * @param colorSpace           the color space whose distance weights the channels variances
+     * @param cancellationToken    the token to poll, allowing to abort the generation
+     * @return the generated color palette
+     */
+    private static ColorPalette generateVarianceMinimizingColorPalette(ColorHistogram histogram, int nbColors,
+            ColorSelectionMethod colorSelectionMethod, ColorSpace colorSpace, CancellationToken cancellationToken) {
+        int side = (1 << WU_BITS_PER_CHANNEL) + 1;
+        int shift = 8 - WU_BITS_PER_CHANNEL;
+        double[] weights = getChannelsWeights(colorSpace);
+
+        /* Compute the cumulative moments tables, the cells of coordinate 0 being left empty */
+        int[] cells = new int[histogram.nbBins];
+        double[][] moments = new double[5][side * side * side];
+        ExecutionMeasure wuMomentsStage = ExecutionProfiler.Instance.startStage("Wu moments");
+        try {
+            for (int idBin = 0; idBin < histogram.nbBins; idBin++) {
+                cells[idBin] = (((histogram.getChannel(idBin, 0) >> shift) + 1) * side
+                        + (histogram.getChannel(idBin, 1) >> shift) + 1) * side
+                        + (histogram.getChannel(idBin, 2) >> shift) + 1;
+                double count = histogram.counts[idBin];
+                moments[0][cells[idBin]] += count;
+                for (int chan = 0; chan < 3; chan++) {
+                    double sum = histogram.sums[chan][idBin];
+                    moments[1 + chan][cells[idBin]] += sum;
+                    moments[4][cells[idBin]] += weights[chan] * sum * sum / count;
+                }
+            }
+            for (double[] table : moments) {
+                cancellationToken.throwIfCancelled();
+                accumulateMoments(table, side);
+            }
+        } finally {
+            wuMomentsStage.stop();
+        }
+
+        /* Cut the box of largest variance until there are as many boxes as colors */
+        Vector<int[]> boxes = new Vector<int[]>();
+        Vector<Double> variances = new Vector<Double>();
+        ExecutionMeasure wuCutsStage = ExecutionProfiler.Instance.startStage("Wu cuts");
+        try {
+            int[] colorCube = new int[] { 0, side - 1, 0, side - 1, 0, side - 1 };
+            boxes.add(colorCube);
+            variances.add(getBoxVariance(moments, side, colorCube, weights));
+            while (boxes.size() < nbColors) {
+                cancellationToken.throwIfCancelled();
+                int idBox = 0;
+                for (int id = 1; id < boxes.size(); id++) {
+                    if (variances.get(id) > variances.get(idBox)) {
+                        idBox = id;
+                    }
+                }
+                if (variances.get(idBox) <= 0) {
+                    break;
+                }
+                int[] box = boxes.get(idBox);
+                int[] upperBox = cutBox(moments, side, box, weights);
+                if (upperBox == null) {
+                    variances.set(idBox, 0.0);
+                    continue;
+                }
+                variances.set(idBox, getBoxVariance(moments, side, box, weights));
+                boxes.add(upperBox);
+                variances.add(getBoxVariance(moments, side, upperBox, weights));
+            }
+        } finally {
+            wuCutsStage.stop();
+        }
+
+        /* Cluster the bins by box */
+        int[] boxPerCell = new int[side * side * side];
+        for (int idBox = 0; idBox < boxes.size(); idBox++) {
+            int[] box = boxes.get(idBox);
+            for (int r = box[0] + 1; r <= box[1]; r++) {
+                for (int g = box[2] + 1; g <= box[3]; g++) {
+                    for (int b = box[4] + 1; b <= box[5]; b++) {
+                        boxPerCell[(r * side + g) * side + b] = idBox;
+                    }
+                }
+            }
+        }
+        int[] clusters = new int[histogram.nbBins];
+        for (int idBin = 0; idBin < histogram.nbBins; idBin++) {
+            clusters[idBin] = boxPerCell[cells[idBin]];
+        }
+        return addClustersColors(new ColorPalette(), histogram, clusters, boxes.size(), colorSelectionMethod);
     }
 
     /**
@@ -164,17 +780,15 @@ public abstract class ColorPaletteGenerator {
      * @param nbColors                the number of colors of the palette
      * @param colorQuantizationMethod the color quantization method to use to generate the reduced color palette
      * @param colorSelectionMethod    the color selection method to use to generate the reduced color palette
+     * @param colorSpace              the color space in which to compare the colors
+     * @param cancellationToken       the token to poll, allowing to abort the generation
      * @return the reduced color palette
      */
     public static ColorPalette generateReducedPaletteColorFromImage(Image sourceImg, int nbColors,
-            ColorQuantizationMethod colorQuantizationMethod, ColorSelectionMethod colorSelectionMethod) {
-        ArrayList<Integer> pixelsList = new ArrayList<Integer>();
-        for (int x = 0; x < sourceImg.getWidth(); x++) {
-            for (int y = 0; y < sourceImg.getHeight(); y++) {
-                pixelsList.add(sourceImg.getPixel(x, y));
-            }
-        }
-        return generateReducedColorPalette(pixelsList, nbColors, colorQuantizationMethod, colorSelectionMethod);
+            ColorQuantizationMethod colorQuantizationMethod, ColorSelectionMethod colorSelectionMethod,
+            ColorSpace colorSpace, CancellationToken cancellationToken) {
+        return generateReducedColorPalette(computeHistogram(sourceImg, cancellationToken), nbColors,
+                colorQuantizationMethod, colorSelectionMethod, colorSpace, cancellationToken);
     }
 
 }
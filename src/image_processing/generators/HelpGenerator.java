@@ -33,11 +33,16 @@ public abstract class HelpGenerator {
             description = "The source image resolution, in Dots Per Inches\n\n"
                     + "<i>image_dpi = image_width_in_pixels / image_width_in_mm * 25.4</i>";
             break;
+        case LIMIT_IMPORT_RESOLUTION:
+            description = "Import the source image at the maximum resolution the Plotter can reproduce, so that large images are processed much faster\n\n"
+                    + "<i>useful_dpi = 2 * 25.4 / max(pen_tip_diameter, 1 / lines_per_mm_max)</i>";
+            break;
         case COLOR_SPACE:
             description = "The color space used for all color-related computation\n\n"
                     + "<b>RGB</b>: the default Red-Green-Blue color space\n"
                     + "<b>sRGB</b>: the standard Red-Green-Blue color space, widely used by monitors, printer and cameras\n"
-                    + "<b>Human-Weighted</b>: a weighted version of the RGB color space, to better reflect the human eye sensitivity\n\n"
+                    + "<b>Human-Weighted</b>: a weighted version of the RGB color space, to better reflect the human eye sensitivity\n"
+                    + "<b>CIELAB</b>: a perceptually uniform color space, in which the distances best match the perceived color differences, for instance between pastel inks\n\n"
                     + "<i>The easiest thing to do is to try the different color spaces and keep the one that best fit your source image.</i>";
             break;
         case NB_QUANTIZATION_COLORS:
@@ -55,7 +60,9 @@ public abstract class HelpGenerator {
             description = "The color quantization method to use to select the colors used for the image re-colorization\n\n"
                     + "<b>Use Available Inks</b>: simply use the inks color available to the Plotter, without any computation\n"
                     + "<b>Favor Contrasts</b>: use a variant of the Bucket-Cutting algorithm that favor large contrasts between the selected colors\n"
-                    + "<b>Favor Colors True to the Originals</b>: use the classic Bucket-Cutting algorithm that favor a reduced set of colors true to the original colors";
+                    + "<b>Favor Colors True to the Originals</b>: use the classic Bucket-Cutting algorithm that favor a reduced set of colors true to the original colors\n"
+                    + "<b>Refine with K-Means</b>: cluster the colors with the K-Means algorithm, minimizing the distance between the original colors and the selected ones in the chosen color space\n"
+                    + "<b>Minimize Variance</b>: use Wu's algorithm, cutting the colors with the largest variance first";
             break;
         case COLOR_SELECTION_METHOD:
             description = "The color selection method used to compute the quantized color from all the original regrouped colors\n\n"
@@ -88,6 +95,9 @@ public abstract class HelpGenerator {
         case MULTICOLOR_THICK_OUTLINING:
             description = "Enable or disable the multicolor option for the thick outlines, which will be drawn according to their own ink color or always with black ink";
             break;
+        case THIN_THICK_OUTLINES:
+            description = "Enable or disable the thinning of the thick outlines into their single pixel wide centerlines, the adjacent outlines being merged";
+            break;
         case OUTLINE_LPMM:
             description = "The number of lines to draw per mm for thick outlines";
             break;
@@ -5,6 +5,7 @@ import java.util.Vector;
 
 import common.engine.Line;
 import common.engine.Path;
+import image_processing.engine.CancellationToken;
 import image_processing.enums.Setting;
 import image_processing.session.Configuration;
 
@@ -31,10 +32,11 @@ public abstract class ImageFineOutliner {
      * 
      * TODO-011: use an Image instead of a BufferedImage?
      * 
-     * @param img the image to outline
+     * @param img               the image to outline
+     * @param cancellationToken the token to poll, allowing to abort the generation
      * @return the fine outline Paths of the specified image
      */
-    public static Vector<Path> generateImageFineOutlinePaths(BufferedImage img) {
+    public static Vector<Path> generateImageFineOutlinePaths(BufferedImage img, CancellationToken cancellationToken) {
         if (img == null) {
             // TODO-011: check if it is still needed
             return null;
@@ -45,6 +47,7 @@ public abstract class ImageFineOutliner {
         /* Find outline points column by column */
         OutlinePointType[][] outlinePointsMap = new OutlinePointType[W][H];
         for (int x = 0; x < W; x++) {
+            cancellationToken.throwIfCancelled();
             int lastColor = img.getRGB(x, 0);
             int lastBorder = -1; // TODO-033: find a better way to handle the background borders
             for (int y = 1; y < H; y++) {
@@ -59,6 +62,7 @@ public abstract class ImageFineOutliner {
 
         /* Find outline points line by line */
         for (int y = 0; y < H; y++) {
+            cancellationToken.throwIfCancelled();
             int lastColor = img.getRGB(0, y);
             int lastBorder = -1;
             for (int x = 0; x < W; x++) {
@@ -74,6 +78,7 @@ public abstract class ImageFineOutliner {
         /* Generate outline paths from outline points */
         Vector<Path> outlinePaths = new Vector<Path>();
         for (int x = 0; x < W; x++) {
+            cancellationToken.throwIfCancelled();
             for (int y = 0; y < H; y++) {
                 if (outlinePointsMap[x][y] == OutlinePointType.OUTLINE_POINT_NOT_YET_IN_A_PATH) {
                     outlinePaths.add(generateFineOutlinePath(x, y, outlinePointsMap));
@@ -1,15 +1,17 @@
 package image_processing.generators;
 
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.util.HashMap;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Vector;
 
 import image_processing.engine.Brush;
 import image_processing.engine.BrushPalette;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ClosestColorTable;
 import image_processing.engine.ColorPalette;
 import image_processing.engine.Image;
+import image_processing.engine.LabelRaster;
+import image_processing.engine.TileScheduler;
 import image_processing.enums.ColorSpace;
 
 /**
@@ -20,24 +22,61 @@ import image_processing.enums.ColorSpace;
  */
 public abstract class ImageGenerator {
 
+    /**
+     * The system property setting the blurring radius from which the Gaussian kernel is approximated by successive box
+     * blurs, whose cost does not depend on the radius
+     */
+    public static final String BOX_BLUR_MIN_RADIUS_PROPERTY = "plotter.blur.boxMinRadius";
+
+    /**
+     * The blurring radius from which the Gaussian kernel is approximated by box blurs, 16 by default
+     */
+    private static final int BOX_BLUR_MIN_RADIUS = Integer.getInteger(BOX_BLUR_MIN_RADIUS_PROPERTY, 16);
+
+    /**
+     * The number of successive box blurs approximating a Gaussian kernel
+     */
+    private static final int NB_BOX_BLURS = 3;
+
+    /**
+     * The number of fractional bits of the fixed-point channels of the blurred pixels
+     */
+    private static final int CHANNEL_FRACTION_BITS = 4;
+
+    /**
+     * The number of fractional bits of the fixed-point weights of the Gaussian kernel
+     */
+    private static final int WEIGHT_FRACTION_BITS = 16;
+
+    /**
+     * The number of rows blurred before being transposed together, so that each of their columns fills a cache line
+     */
+    private static final int TRANSPOSED_BAND_HEIGHT = 16;
+
     /**
      * Generate a blurred image from the source image
      * 
-     * @param sourceImg the image from which to generate the blurred image
-     * @param radius    the blurring radius
-     * @param intensity the blurring intensity
+     * The Gaussian kernel is separable: the rows of the image are blurred into a transposed buffer, whose rows, i.e.
+     * the columns of the image, are then blurred back. The pixels beyond the borders are those of the borders.
+     * 
+     * @param sourceImg         the image from which to generate the blurred image
+     * @param radius            the blurring radius
+     * @param intensity         the blurring intensity
+     * @param cancellationToken the token to poll, allowing to abort the generation
      * @return the generated blurred image
      */
-    public static Image generateBlurredImage(Image sourceImg, int radius, double intensity) {
+    public static Image generateBlurredImage(Image sourceImg, int radius, double intensity,
+            CancellationToken cancellationToken) {
         int W = sourceImg.getWidth();
         int H = sourceImg.getHeight();
-        BufferedImage bufferedImg = sourceImg.getBufferedImage();
-
-        /* Create the blurred image */
-        BufferedImage blurredImg = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
-        Graphics g = blurredImg.getGraphics();
-        g.setColor(Color.white);
-        g.fillRect(0, 0, W, H);
+        IntBuffer sourcePixels = sourceImg.getPixels();
+        IntBuffer blurredPixels = Image.allocatePixels(W, H);
+        if (radius <= 0) {
+            for (int i = 0; i < W * H; i++) {
+                blurredPixels.put(i, 0xFF000000 | sourcePixels.get(i));
+            }
+            return new Image(W, H, blurredPixels);
+        }
 
         /* Compute costly constants */
         double x2SquaredIntensity = 2 * intensity * intensity;
@@ -53,67 +92,323 @@ public abstract class ImageGenerator {
             norm += mask[x + radius];
         }
 
-        /* Convolve the image with the Gaussian kernel horizontally and vertically */
-        for (int axis = 0; axis < 2; axis++) {
-            boolean convoleHorizontally = axis == 0;
-            for (int r = radius; r < H - radius; r++) {
-                for (int c = radius; c < W - radius; c++) {
-                    double[] sum = new double[3];
-
-                    for (int mr = -radius; mr < radius + 1; mr++) {
-                        for (int chan = 0; chan < 3; chan++) {
-                            int raw = (bufferedImg.getRGB(c + (convoleHorizontally ? mr : 0),
-                                    r + (convoleHorizontally ? 0 : mr)) & (0x0000FF << (8 * chan))) >> (8 * chan);
-                            sum[chan] += (mask[mr + radius] * raw);
+        /* Convert the kernel into fixed-point weights, the central one making them sum exactly to one */
+        int[] weights = new int[2 * radius + 1];
+        int weightsSum = 0;
+        int weightsRadius = 0;
+        for (int x = -radius; x < radius + 1; x++) {
+            if (x != 0) {
+                weights[x + radius] = (int) Math.round(mask[x + radius] / norm * (1 << WEIGHT_FRACTION_BITS));
+                weightsSum += weights[x + radius];
+                if (weights[x + radius] != 0) {
+                    weightsRadius = Math.max(weightsRadius, Math.abs(x));
+                }
+            }
+        }
+        weights[radius] = (1 << WEIGHT_FRACTION_BITS) - weightsSum;
+
+        /*
+         * Either drop the null weights of the kernel ends, or approximate the kernel by box blurs of the same
+         * variance if it is still too wide
+         */
+        int[] boxRadii = null;
+        if (weightsRadius < BOX_BLUR_MIN_RADIUS) {
+            weights = Arrays.copyOfRange(weights, radius - weightsRadius, radius + weightsRadius + 1);
+        } else {
+            weights = null;
+            double variance = 0;
+            for (int x = -radius; x < radius + 1; x++) {
+                variance += mask[x + radius] / norm * x * x;
+            }
+            boxRadii = computeBoxRadii(variance);
+        }
+
+        /* Blur the channels one after another, each one being unpacked into a plane of fixed-point values */
+        int[] plane = new int[W * H];
+        int[] transposedPlane = new int[W * H];
+        for (int chan = 0; chan < 3; chan++) {
+            int shift = 8 * chan;
+            TileScheduler.forEachTile(W, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+                @Override
+                public void apply(TileScheduler.Tile tile) {
+                    for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                        for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                            int value = (sourcePixels.get(y * W + x) >> shift) & 0xFF;
+                            plane[y * W + x] = value << CHANNEL_FRACTION_BITS;
                         }
                     }
+                }
+            });
+
+            /* Blur the rows of the image, then the rows of the transposed image, i.e. its columns */
+            blurRows(plane, transposedPlane, W, H, weights, boxRadii, cancellationToken);
+            blurRows(transposedPlane, plane, H, W, weights, boxRadii, cancellationToken);
 
-                    /* Normalize the RGB channels */
-                    int color = 0xFF000000;
-                    for (int chan = 0; chan < 3; chan++) {
-                        sum[chan] /= norm;
-                        color |= ((int) Math.round(sum[chan])) << (8 * chan);
+            /* Pack the rounded channel */
+            TileScheduler.forEachTile(W, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+                @Override
+                public void apply(TileScheduler.Tile tile) {
+                    for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                        for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                            int value = (plane[y * W + x] + (1 << (CHANNEL_FRACTION_BITS - 1)))
+                                    >> CHANNEL_FRACTION_BITS;
+                            int color = shift == 0 ? 0xFF000000 : blurredPixels.get(y * W + x);
+                            blurredPixels.put(y * W + x, color | value << shift);
+                        }
                     }
-                    blurredImg.setRGB(c, r, color);
                 }
+            });
+        }
+
+        return new Image(W, H, blurredPixels);
+    }
+
+    /**
+     * Compute the radii of the successive box blurs whose combination best approximates a Gaussian kernel
+     * 
+     * @param variance the variance of the Gaussian kernel
+     * @return the radii of the NB_BOX_BLURS box blurs
+     */
+    private static int[] computeBoxRadii(double variance) {
+        int lowerWidth = (int) Math.sqrt(12 * variance / NB_BOX_BLURS + 1);
+        if (lowerWidth % 2 == 0) {
+            lowerWidth--;
+        }
+        int nbLowerWidths = (int) Math.round((12 * variance - NB_BOX_BLURS * lowerWidth * lowerWidth
+                - 4 * NB_BOX_BLURS * lowerWidth - 3 * NB_BOX_BLURS) / (-4 * lowerWidth - 4));
+        nbLowerWidths = Math.max(0, Math.min(NB_BOX_BLURS, nbLowerWidths));
+        int[] boxRadii = new int[NB_BOX_BLURS];
+        for (int idBox = 0; idBox < NB_BOX_BLURS; idBox++) {
+            boxRadii[idBox] = idBox < nbLowerWidths ? (lowerWidth - 1) / 2 : (lowerWidth + 1) / 2;
+        }
+        return boxRadii;
+    }
+
+    /**
+     * Blur the rows of a channel plane, and write them transposed, bands of rows being blurred in parallel
+     * 
+     * @param sourcePlane       the plane of the fixed-point channel to blur, made of nbRows rows
+     * @param targetPlane       the plane receiving the transposed blurred channel, made of rowLength rows
+     * @param rowLength         the number of pixels of the rows to blur
+     * @param nbRows            the number of rows to blur
+     * @param weights           the fixed-point weights of the Gaussian kernel, or null to apply box blurs
+     * @param boxRadii          the radii of the box blurs approximating the Gaussian kernel, if there are no weights
+     * @param cancellationToken the token to poll, allowing to abort the blur
+     */
+    private static void blurRows(int[] sourcePlane, int[] targetPlane, int rowLength, int nbRows,
+            int[] weights, int[] boxRadii, CancellationToken cancellationToken) {
+        int maxRadius = 0;
+        if (weights != null) {
+            maxRadius = weights.length / 2;
+        } else {
+            for (int boxRadius : boxRadii) {
+                maxRadius = Math.max(maxRadius, boxRadius);
             }
         }
+        /* The padded rows have an extra pixel, read by the last step of the box blurs */
+        int paddedLength = rowLength + 2 * maxRadius + 1;
+
+        /* The rows are laid out as a raster of a single column, each tile blurring a band of rows */
+        TileScheduler.forEachTile(1, nbRows, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                int[] paddedRow = new int[paddedLength];
+                int[] tapRow = new int[rowLength];
+                int[] blurredRow = new int[rowLength];
+                int[] band = new int[TRANSPOSED_BAND_HEIGHT * rowLength];
+                for (int y0 = tile.getY0(); y0 < tile.getY1(); y0 += TRANSPOSED_BAND_HEIGHT) {
+                    int bandHeight = Math.min(TRANSPOSED_BAND_HEIGHT, tile.getY1() - y0);
+                    for (int idRow = 0; idRow < bandHeight; idRow++) {
+                        System.arraycopy(sourcePlane, (y0 + idRow) * rowLength, blurredRow, 0, rowLength);
+                        if (weights != null) {
+                            padRow(blurredRow, rowLength, weights.length / 2, paddedRow);
+                            convolveRow(paddedRow, rowLength, weights, tapRow, blurredRow);
+                        } else {
+                            for (int boxRadius : boxRadii) {
+                                if (boxRadius > 0) {
+                                    padRow(blurredRow, rowLength, boxRadius, paddedRow);
+                                    boxBlurRow(paddedRow, rowLength, boxRadius, blurredRow);
+                                }
+                            }
+                        }
+                        System.arraycopy(blurredRow, 0, band, idRow * rowLength, rowLength);
+                    }
 
-        return new Image(blurredImg);
+                    /* The band is transposed column by column, each column being written contiguously */
+                    for (int x = 0; x < rowLength; x++) {
+                        int offset = x * nbRows + y0;
+                        for (int idRow = 0; idRow < bandHeight; idRow++) {
+                            targetPlane[offset + idRow] = band[idRow * rowLength + x];
+                        }
+                    }
+                }
+            }
+        });
     }
 
     /**
-     * Generate an Image recolored with the specified color palette
+     * Copy a row into a padded row, the padding repeating the pixels of the row borders
      * 
-     * @param sourceImg                   the source image to recolor
-     * @param colorPalette                the color palette to use to generate the recolored image
-     * @param monochromesPicturesPerColor an HashMap to fill with a monochrome image for every color from the color
-     *                                    palette
-     * @param ColorSpace                  the color space to use to generate the recolored image
-     * @return the generated image
+     * @param row       the row to pad
+     * @param rowLength the number of pixels of the row
+     * @param radius    the number of pixels to add on each side of the row
+     * @param paddedRow the array receiving the padded row
      */
-    public static Image generateRecoloredImage(Image sourceImg, ColorPalette colorPalette,
-            HashMap<Integer, BufferedImage> monochromesPicturesPerColor, ColorSpace colorSpace) {
+    private static void padRow(int[] row, int rowLength, int radius, int[] paddedRow) {
+        for (int x = 0; x < radius; x++) {
+            paddedRow[x] = row[0];
+            paddedRow[radius + rowLength + x] = row[rowLength - 1];
+        }
+        System.arraycopy(row, 0, paddedRow, radius, rowLength);
+    }
+
+    /**
+     * Convolve a padded row with the fixed-point weights of a kernel
+     * 
+     * @param paddedRow  the row to convolve, padded by the radius of the kernel
+     * @param rowLength  the number of pixels of the row
+     * @param weights    the fixed-point weights of the kernel
+     * @param tapRow     a buffer of rowLength pixels, receiving the shifted copies of the row
+     * @param blurredRow the array receiving the convolved row
+     */
+    private static void convolveRow(int[] paddedRow, int rowLength, int[] weights, int[] tapRow, int[] blurredRow) {
+        /*
+         * The weights are applied one after another to the whole row, each one to a copy of the row shifted by its
+         * offset: the loops then read and write the same indexes, and are vectorized
+         */
+        Arrays.fill(blurredRow, 0, rowLength, 1 << (WEIGHT_FRACTION_BITS - 1));
+        for (int k = 0; k < weights.length; k++) {
+            int weight = weights[k];
+            System.arraycopy(paddedRow, k, tapRow, 0, rowLength);
+            for (int x = 0; x < rowLength; x++) {
+                blurredRow[x] += weight * tapRow[x];
+            }
+        }
+        for (int x = 0; x < rowLength; x++) {
+            blurredRow[x] >>= WEIGHT_FRACTION_BITS;
+        }
+    }
+
+    /**
+     * Blur a padded row with a box, the sum of its pixels sliding along the row
+     * 
+     * @param paddedRow  the row to blur, padded by the radius of the box, and followed by an extra pixel
+     * @param rowLength  the number of pixels of the row
+     * @param boxRadius  the radius of the box
+     * @param blurredRow the array receiving the blurred row
+     */
+    private static void boxBlurRow(int[] paddedRow, int rowLength, int boxRadius, int[] blurredRow) {
+        int boxWidth = 2 * boxRadius + 1;
+
+        /* The rounded division by the box width is a multiplication by its fixed-point inverse, exact for the sums */
+        long inverseWidth = ((1L << 32) + boxWidth - 1) / boxWidth;
+        int sum = 0;
+        for (int x = 0; x < boxWidth; x++) {
+            sum += paddedRow[x];
+        }
+        for (int x = 0; x < rowLength; x++) {
+            blurredRow[x] = (int) (((sum + boxWidth / 2) * inverseWidth) >>> 32);
+            sum += paddedRow[x + boxWidth] - paddedRow[x];
+        }
+    }
+
+    /**
+     * Generate a downscaled image from the source image, each pixel being the average of the source pixels it covers
+     * 
+     * @param sourceImg         the image from which to generate the downscaled image
+     * @param scale             the scale of the downscaled image, between 0 and 1
+     * @param cancellationToken the token to poll, allowing to abort the generation
+     * @return the generated downscaled image
+     */
+    public static Image generateDownscaledImage(Image sourceImg, double scale, CancellationToken cancellationToken) {
         int W = sourceImg.getWidth();
         int H = sourceImg.getHeight();
-        BufferedImage recoloredBuffImg = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+        int scaledW = Math.max(1, (int) Math.round(W * scale));
+        int scaledH = Math.max(1, (int) Math.round(H * scale));
+        IntBuffer sourcePixels = sourceImg.getPixels();
+        IntBuffer downscaledPixels = Image.allocatePixels(scaledW, scaledH);
 
-        monochromesPicturesPerColor.clear();
-        for (int color : colorPalette.getColors()) {
-            monochromesPicturesPerColor.put(color, new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB));
-        }
+        TileScheduler.forEachTile(scaledW, scaledH, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                    int x0 = x * W / scaledW;
+                    int x1 = Math.max(x0 + 1, (x + 1) * W / scaledW);
+                    for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                        int y0 = y * H / scaledH;
+                        int y1 = Math.max(y0 + 1, (y + 1) * H / scaledH);
 
-        for (int x = 0; x < W; x++) {
-            for (int y = 0; y < H; y++) {
-                int color = colorPalette.getClosestColor(sourceImg.getPixel(x, y), colorSpace);
-                recoloredBuffImg.setRGB(x, y, 0xFF000000 | color);
-                BufferedImage monochromePicture = monochromesPicturesPerColor.get(color);
-                if (monochromePicture != null) {
-                    monochromePicture.setRGB(x, y, 0xFF000000 | color);
+                        /* Average the ARGB channels of the covered source pixels */
+                        long[] sum = new long[4];
+                        for (int sx = x0; sx < x1; sx++) {
+                            for (int sy = y0; sy < y1; sy++) {
+                                int pixel = sourcePixels.get(sy * W + sx);
+                                for (int chan = 0; chan < 4; chan++) {
+                                    sum[chan] += (pixel >>> (8 * chan)) & 0xFF;
+                                }
+                            }
+                        }
+                        int nbPixels = (x1 - x0) * (y1 - y0);
+                        int color = 0;
+                        for (int chan = 0; chan < 4; chan++) {
+                            color |= ((int) ((sum[chan] + nbPixels / 2) / nbPixels)) << (8 * chan);
+                        }
+                        downscaledPixels.put(y * scaledW + x, color);
+                    }
                 }
             }
+        });
+        return new Image(scaledW, scaledH, downscaledPixels);
+    }
+
+    /**
+     * Generate the label raster of an image recolored with the specified color palette: each pixel is labeled with the
+     * index of its closest color in the palette
+     * 
+     * @param sourceImg         the source image to recolor
+     * @param colorPalette      the color palette to use to recolor the image
+     * @param colorSpace        the color space to use to recolor the image
+     * @param cancellationToken the token to poll, allowing to abort the generation
+     * @return the generated label raster
+     */
+    public static LabelRaster generateLabelRaster(Image sourceImg, ColorPalette colorPalette, ColorSpace colorSpace,
+            CancellationToken cancellationToken) {
+        int W = sourceImg.getWidth();
+        int H = sourceImg.getHeight();
+        IntBuffer sourcePixels = sourceImg.getPixels();
+        byte[] labels = new byte[W * H];
+        Vector<Integer> paletteColors = colorPalette.getColors();
+        int[] colors = new int[paletteColors.size()];
+        for (int label = 0; label < colors.length; label++) {
+            colors[label] = paletteColors.get(label);
         }
-        return new Image(recoloredBuffImg);
+
+        /*
+         * The labels being the indexes of the colors in the palette, the closest color table directly gives them, the
+         * pixels of each tile being looked up in a single batch
+         */
+        ClosestColorTable closestColorTable = colorPalette.getClosestColorTable(colorSpace, cancellationToken);
+        TileScheduler.forEachTile(W, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                int tileW = tile.getX1() - tile.getX0();
+                int[] colors = new int[tileW * (tile.getY1() - tile.getY0())];
+                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                    for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                        colors[(y - tile.getY0()) * tileW + x - tile.getX0()] = sourcePixels.get(y * W + x) & 0xFFFFFF;
+                    }
+                }
+                int[] indexes = new int[colors.length];
+                closestColorTable.getClosestColorIndexes(colors, colors.length, indexes);
+                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                    for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                        int label = indexes[(y - tile.getY0()) * tileW + x - tile.getX0()];
+                        labels[y * W + x] = (byte) (label >= 0 ? label : LabelRaster.NO_LABEL);
+                    }
+                }
+            }
+        });
+        return new LabelRaster(W, H, labels, colors);
     }
 
     /**
@@ -122,31 +417,46 @@ public abstract class ImageGenerator {
      * Every pixel from the source image is replaced in the generated image by the corresponding aimed color of the
      * BrushPalette
      * 
-     * @param sourceImg    the original image
-     * @param brushPalette the BrushPalette with which to generate the new one
+     * @param sourceImg         the original image
+     * @param brushPalette      the BrushPalette with which to generate the new one
+     * @param cancellationToken the token to poll, allowing to abort the generation
      * @return the generated image
      */
-    public static Image generateImagePaintedWithBrushPalette(Image sourceImg, BrushPalette brushPalette) {
+    public static Image generateImagePaintedWithBrushPalette(Image sourceImg, BrushPalette brushPalette,
+            CancellationToken cancellationToken) {
         int W = sourceImg.getWidth();
         int H = sourceImg.getHeight();
-        BufferedImage paintedBuffImg = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = paintedBuffImg.createGraphics();
-        g.setColor(Color.white);
-        g.fillRect(0, 0, W, H);
-
-        for (int x = 0; x < W; x++) {
-            for (int y = 0; y < H; y++) {
-                g.setColor(Color.white);
-                for (Brush brush : brushPalette.getBrushes()) {
-                    if ((sourceImg.getPixel(x, y) & 0xFFFFFF) == brush.getInputColor()) {
-                        g.setColor(new Color(brush.getAimedOutputColor()));
-                        break;
+        IntBuffer sourcePixels = sourceImg.getPixels();
+        IntBuffer paintedPixels = Image.allocatePixels(W, H);
+
+        /* Copy the brushes colors, so that the tiles do not contend on the brushes Vector */
+        Vector<Brush> brushes = brushPalette.getBrushes();
+        int[] inputColors = new int[brushes.size()];
+        int[] aimedOutputColors = new int[brushes.size()];
+        for (int idBrush = 0; idBrush < brushes.size(); idBrush++) {
+            inputColors[idBrush] = brushes.get(idBrush).getInputColor();
+            aimedOutputColors[idBrush] = 0xFF000000 | brushes.get(idBrush).getAimedOutputColor();
+        }
+
+        TileScheduler.forEachTile(W, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                    for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                        int i = y * W + x;
+                        int color = 0xFFFFFFFF;
+                        for (int idBrush = 0; idBrush < inputColors.length; idBrush++) {
+                            if ((sourcePixels.get(i) & 0xFFFFFF) == inputColors[idBrush]) {
+                                color = aimedOutputColors[idBrush];
+                                break;
+                            }
+                        }
+                        paintedPixels.put(i, color);
                     }
                 }
-                g.fillRect(x, y, 1, 1);
             }
-        }
-        return new Image(paintedBuffImg);
+        });
+        return new Image(W, H, paintedPixels);
     }
 
 }
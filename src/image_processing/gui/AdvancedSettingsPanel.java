@@ -75,6 +75,12 @@ public class AdvancedSettingsPanel extends JScrollPane {
         toolbox.add(HelpGenerator.getSettingLabelWithHelp(Setting.IMAGE_DPI));
         toolbox.add(imageDpiSpinner);
 
+        JComponentWithHelp limitImportResolutionCheckBox = HelpGenerator
+                .getSettingCheckboxWithHelp(Setting.LIMIT_IMPORT_RESOLUTION);
+        linkComponentToSetting(limitImportResolutionCheckBox, Setting.LIMIT_IMPORT_RESOLUTION, settingsValues);
+        toolbox.add(limitImportResolutionCheckBox);
+        toolbox.add(new JLabel());
+
         toolbox.add(HelpGenerator.getSettingLabelWithHelp(Setting.COLOR_SPACE));
         ButtonGroup colorSpaceGroup = new ButtonGroup();
         JRadioButton rgbRadio = new JRadioButton("RGB");
@@ -88,6 +94,10 @@ public class AdvancedSettingsPanel extends JScrollPane {
         JRadioButton humanWeightedRadio = new JRadioButton("Human-Weighted");
         colorSpaceGroup.add(humanWeightedRadio);
         toolbox.add(humanWeightedRadio);
+        toolbox.add(new JLabel());
+        JRadioButton labRadio = new JRadioButton("CIELAB");
+        colorSpaceGroup.add(labRadio);
+        toolbox.add(labRadio);
         linkComponentToSetting(colorSpaceGroup, Setting.COLOR_SPACE, settingsValues);
 
         return toolbox;
@@ -131,6 +141,14 @@ public class AdvancedSettingsPanel extends JScrollPane {
         JRadioButton favorColorTrueToOriginalsRadio = new JRadioButton("Favor Colors True to the Originals");
         colorQuantizationMethodGroup.add(favorColorTrueToOriginalsRadio);
         toolbox.add(favorColorTrueToOriginalsRadio);
+        toolbox.add(new JLabel(""));
+        JRadioButton refineWithKMeansRadio = new JRadioButton("Refine with K-Means");
+        colorQuantizationMethodGroup.add(refineWithKMeansRadio);
+        toolbox.add(refineWithKMeansRadio);
+        toolbox.add(new JLabel(""));
+        JRadioButton minimizeVarianceRadio = new JRadioButton("Minimize Variance");
+        colorQuantizationMethodGroup.add(minimizeVarianceRadio);
+        toolbox.add(minimizeVarianceRadio);
         linkComponentToSetting(colorQuantizationMethodGroup, Setting.COLOR_QUANTIZATION_METHOD, settingsValues);
 
         toolbox.add(HelpGenerator.getSettingLabelWithHelp(Setting.COLOR_SELECTION_METHOD));
@@ -242,6 +260,11 @@ public class AdvancedSettingsPanel extends JScrollPane {
         linkComponentToSetting(multicolorOutliningCheckBox, Setting.MULTICOLOR_THICK_OUTLINING, settingsValues);
         toolbox.add(multicolorOutliningCheckBox);
 
+        JComponentWithHelp thinOutlinesCheckBox = HelpGenerator.getSettingCheckboxWithHelp(Setting.THIN_THICK_OUTLINES);
+        linkComponentToSetting(thinOutlinesCheckBox, Setting.THIN_THICK_OUTLINES, settingsValues);
+        toolbox.add(thinOutlinesCheckBox);
+        toolbox.add(new JLabel());
+
         JSpinner highThresholdSpinner = new JSpinner(new SpinnerNumberModel(1, 1, 3, 1));
         linkComponentToSetting(highThresholdSpinner, Setting.CANNY_HIGH_THRESHOLD, settingsValues);
         toolbox.add(HelpGenerator.getSettingLabelWithHelp(Setting.CANNY_HIGH_THRESHOLD));
@@ -1,6 +1,7 @@
 package image_processing.gui;
 
 import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 
 import common.engine.Zoom;
@@ -43,11 +44,17 @@ public class TransformationResultView extends View implements TransformationResu
 
     @Override
     protected void paint(Graphics2D g, int W, int H) {
-        Image originalImage = Project.Instance.getTransformation(TransformationStep.IMAGE_IMPORT).getOutputImage();
+        AbstractTransformation importTransformation = Project.Instance
+                .getTransformation(TransformationStep.IMAGE_IMPORT);
+        Image originalImage = importTransformation.getOutputImage();
         if (originalImage != null) {
-            int trX = (W - originalImage.getWidth()) / 2;
-            int trY = (H - originalImage.getHeight()) / 2;
+            /* The previews are displayed scaled up to the full resolution of the original image */
+            double originalImageScale = importTransformation.getPreviewScale();
+            int trX = (int) Math.round((W - originalImage.getWidth() / originalImageScale) / 2);
+            int trY = (int) Math.round((H - originalImage.getHeight() / originalImageScale) / 2);
+            AffineTransform transform = g.getTransform();
             g.translate(trX, trY);
+            g.scale(1 / transformation.getPreviewScale(), 1 / transformation.getPreviewScale());
             if (!transformation.isOutputImageVectorized()) {
                 if (transformation.getOutputImage() != null) {
                     BufferedImage img = transformation.getOutputImage().getBufferedImage();
@@ -58,7 +65,7 @@ public class TransformationResultView extends View implements TransformationResu
             } else {
                 transformation.drawVectorizedImageOutput(g);
             }
-            g.translate(-trX, -trY);
+            g.setTransform(transform);
         }
     }
 
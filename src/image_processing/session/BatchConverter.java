@@ -0,0 +1,375 @@
+package image_processing.session;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONArray;
+
+import common.engine.SettingsSet;
+import image_processing.engine.BrushPalette;
+import image_processing.engine.ExecutionProfiler;
+import image_processing.enums.Setting;
+import image_processing.listeners.TransformationResultChangeListener;
+import image_processing.transformations.AbstractTransformation;
+import image_processing.transformations.ImageImportTransformation;
+import image_processing.transformations.PathsOptimizationTransformation;
+import image_processing.transformations.RecolorizationTransformation;
+import image_processing.transformations.TransformationStep;
+import streaming.session.PlotterConfiguration;
+
+/**
+ * A headless converter, applying all the Transformations of a preset Configuration to each image of a directory and
+ * exporting their G-Code, several images being converted concurrently
+ * 
+ * Usage: BatchConverter <images directory> <preset> [--workers <number of workers>] [--output <output directory>]
+ * [--report <profiling report file>]
+ * 
+ * @author Terence
+ *
+ */
+public class BatchConverter {
+
+    /**
+     * The directory in which the presets Configuration files are located
+     */
+    private static final String PRESETS_DIRECTORY = "data/presets";
+
+    /**
+     * The preset settings with which to convert the images
+     */
+    private final SettingsSet presetSettings;
+
+    /**
+     * The directory in which to export the G-Code of the images
+     */
+    private final File outputDirectory;
+
+    /**
+     * The cache of the Transformations results, shared by all the images
+     */
+    private final TransformationResultCache resultsCache = new TransformationResultCache(
+            ComputationThread.RESULTS_CACHE_MAX_SIZE);
+
+    /**
+     * The persistent store of the Transformations results, shared by all the images
+     */
+    private final TransformationResultStore resultsStore = new TransformationResultStore(
+            new File(ComputationThread.RESULTS_STORE_DIRECTORY), ComputationThread.RESULTS_STORE_MAX_SIZE);
+
+    /**
+     * Instantiate a new batch converter
+     * 
+     * @param presetSettings  the preset settings with which to convert the images
+     * @param outputDirectory the directory in which to export the G-Code of the images
+     */
+    public BatchConverter(SettingsSet presetSettings, File outputDirectory) {
+        this.presetSettings = presetSettings;
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Convert images concurrently, and wait for all the conversions to complete
+     * 
+     * @param imageFiles the image files to convert
+     * @param nbWorkers  the number of images to convert concurrently
+     * @return the number of images that failed to be converted
+     */
+    public int convert(File[] imageFiles, int nbWorkers) {
+        ExecutorService workers = Executors.newFixedThreadPool(nbWorkers);
+        Future<?>[] conversions = new Future<?>[imageFiles.length];
+        for (int idImage = 0; idImage < imageFiles.length; idImage++) {
+            File imageFile = imageFiles[idImage];
+            String imageLabel = String.format("[%d/%d] %s", idImage + 1, imageFiles.length, imageFile.getName());
+            conversions[idImage] = workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!convert(imageFile, imageLabel)) {
+                        throw new IllegalStateException("Failed to convert " + imageFile.getName());
+                    }
+                }
+            });
+        }
+        int nbFailures = 0;
+        for (Future<?> conversion : conversions) {
+            try {
+                conversion.get();
+            } catch (ExecutionException e) {
+                nbFailures++;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                nbFailures++;
+            }
+        }
+        workers.shutdown();
+        resultsStore.close();
+        return nbFailures;
+    }
+
+    /**
+     * Apply all the Transformations to an image, and export its G-Code
+     * 
+     * @param imageFile  the image file to convert
+     * @param imageLabel the label identifying the image in the progression output
+     * @return true if the image has been converted, false otherwise
+     */
+    private boolean convert(File imageFile, String imageLabel) {
+        long startTime = System.nanoTime();
+        log(imageLabel, "started");
+        AbstractTransformation[] transformations = computeTransformations(imageFile, imageLabel);
+        boolean isConverted = false;
+        try {
+            isConverted = transformations != null
+                    && ((PathsOptimizationTransformation) transformations[TransformationStep.PATHS_OPTIMIZATION
+                            .ordinal()]).exportGCode(outputDirectory);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        log(imageLabel, String.format(Locale.US, "%s in %.1f s", isConverted ? "done" : "failed",
+                (System.nanoTime() - startTime) / 1e9));
+        return isConverted;
+    }
+
+    /**
+     * Apply all the Transformations to an image
+     * 
+     * @param imageFile  the image file to which to apply the Transformations
+     * @param imageLabel the label identifying the image in the progression output, or null to not output the
+     *                   progression
+     * @return the computed Transformations, sorted by step, or null if they could not be computed
+     */
+    public AbstractTransformation[] computeTransformations(File imageFile, String imageLabel) {
+        AbstractTransformation[] transformations = Project.createTransformations();
+        ConversionProgression progression = null;
+        if (imageLabel != null) {
+            progression = new ConversionProgression(imageLabel);
+            for (AbstractTransformation transformation : transformations) {
+                transformation.addListener(progression);
+            }
+        }
+
+        /* Each image is computed on a single worker, the images themselves being converted concurrently */
+        TransformationScheduler scheduler = new TransformationScheduler(transformations, 1, resultsCache,
+                resultsStore, progression);
+        SettingsSet settings = ImageImportTransformation
+                .getImportSettings(presetSettings.withSettingValue(Setting.IMAGE_FILE, imageFile.getPath()));
+        boolean isComputed = false;
+        try {
+            isComputed = scheduler.run(settings, settings.getSettingsNames());
+
+            /*
+             * An empty BrushPalette is regenerated from the image quantized colors: as the GUI does once it is saved in
+             * the Configuration, run the Transformations again with the regenerated BrushPalette
+             */
+            if (isComputed && settings.getSelectedBrushPalette().getNbBrushes() == 0) {
+                settings = withSelectedBrushPalette(settings,
+                        ((RecolorizationTransformation) transformations[TransformationStep.RECOLORIZATION.ordinal()])
+                                .getBrushPalette());
+                HashSet<String> changedSettingsNames = new HashSet<String>();
+                changedSettingsNames.add(Setting.BRUSH_PALETTES.getName());
+                isComputed = scheduler.run(settings, changedSettingsNames);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            scheduler.shutdown();
+        }
+        return isComputed ? transformations : null;
+    }
+
+    /**
+     * Get a copy of a SettingsSet with its selected BrushPalette replaced
+     * 
+     * @param settings     the SettingsSet to copy
+     * @param brushPalette the BrushPalette to select
+     * @return a new SettingsSet, identical except for the selected BrushPalette
+     */
+    private static SettingsSet withSelectedBrushPalette(SettingsSet settings, BrushPalette brushPalette) {
+        BrushPalette[] brushPalettes = settings.getBrushPalettesSetting(Setting.BRUSH_PALETTES);
+        brushPalettes[settings.getIntSetting(Setting.ID_SELECTED_BRUSH_PALETTE)] = brushPalette;
+        JSONArray brushPalettesJsonArray = new JSONArray(brushPalettes.length);
+        for (BrushPalette palette : brushPalettes) {
+            brushPalettesJsonArray.put(palette.toJSonObject());
+        }
+        return settings.withSettingValue(Setting.BRUSH_PALETTES, brushPalettesJsonArray);
+    }
+
+    /**
+     * Print a progression message about an image
+     * 
+     * @param imageLabel the label identifying the image
+     * @param message    the message to print
+     */
+    private static synchronized void log(String imageLabel, String message) {
+        System.out.println(imageLabel + ": " + message);
+    }
+
+    /**
+     * A listener printing the progression of the conversion of an image, with the duration of each Transformation
+     * 
+     * @author Terence
+     *
+     */
+    private static class ConversionProgression
+            implements TransformationResultChangeListener, TransformationScheduler.TransformationStartListener {
+
+        /**
+         * The label identifying the image in the progression output
+         */
+        private final String imageLabel;
+
+        /**
+         * The time at which each Transformation started, in ns
+         */
+        private final HashMap<AbstractTransformation, Long> startTimes = new HashMap<AbstractTransformation, Long>();
+
+        /**
+         * Instantiate a new conversion progression listener
+         * 
+         * @param imageLabel the label identifying the image in the progression output
+         */
+        public ConversionProgression(String imageLabel) {
+            this.imageLabel = imageLabel;
+        }
+
+        @Override
+        public synchronized void transformationStarted(AbstractTransformation transformation) {
+            startTimes.put(transformation, System.nanoTime());
+        }
+
+        @Override
+        public void transformationResultChanged(AbstractTransformation transformation) {
+            Long startTime;
+            synchronized (this) {
+                startTime = startTimes.remove(transformation);
+            }
+            if (startTime != null) {
+                log(imageLabel, String.format(Locale.US, "%s done in %.2f s",
+                        transformation.getTransformationStep().name(), (System.nanoTime() - startTime) / 1e9));
+            }
+        }
+
+        @Override
+        public void transformationProgressionChanged(AbstractTransformation transformation, String progressionLabel,
+                double progression, boolean shouldRepaint) {
+            /* nothing to do, only the Transformations durations are printed */
+        }
+    }
+
+    /**
+     * Resolve a preset, either as the path of a Configuration file or as the name of a preset from the presets
+     * directory
+     * 
+     * @param preset the preset path or name
+     * @return the preset Configuration file, or null if there is none
+     */
+    private static File resolvePresetFile(String preset) {
+        File presetFile = new File(preset);
+        if (presetFile.isFile()) {
+            return presetFile;
+        }
+        presetFile = new File(PRESETS_DIRECTORY, preset.endsWith(".json") ? preset : preset + ".json");
+        return presetFile.isFile() ? presetFile : null;
+    }
+
+    /**
+     * List the image files of a directory that can be read, sorted by name
+     * 
+     * @param imagesDirectory the directory from which to list the images
+     * @return the image files, or null if the directory cannot be read
+     */
+    private static File[] listImageFiles(File imagesDirectory) {
+        String[] readableSuffixes = ImageIO.getReaderFileSuffixes();
+        File[] imageFiles = imagesDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName().toLowerCase();
+                if (!file.isFile() || name.lastIndexOf(".") <= 0) {
+                    return false;
+                }
+                String suffix = name.substring(name.lastIndexOf(".") + 1);
+                for (String readableSuffix : readableSuffixes) {
+                    if (readableSuffix.equalsIgnoreCase(suffix)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        if (imageFiles != null) {
+            Arrays.sort(imageFiles);
+        }
+        return imageFiles;
+    }
+
+    /**
+     * Print the command-line usage and exit
+     */
+    private static void exitWithUsage() {
+        System.err.println("Usage: BatchConverter <images directory> <preset> [--workers <number of workers>]"
+                + " [--output <output directory>] [--report <profiling report file>]");
+        System.err.println("The preset is either a Configuration file or the name of a preset in " + PRESETS_DIRECTORY);
+        System.exit(2);
+    }
+
+    /**
+     * Convert all the images of a directory to G-Code, without GUI
+     * 
+     * @param args the images directory, the preset and the options
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 2) {
+            exitWithUsage();
+        }
+        File imagesDirectory = new File(args[0]);
+        File presetFile = resolvePresetFile(args[1]);
+        int nbWorkers = Runtime.getRuntime().availableProcessors();
+        File outputDirectory = new File(".");
+        for (int idArg = 2; idArg < args.length; idArg++) {
+            if (args[idArg].equals("--workers") && idArg + 1 < args.length) {
+                try {
+                    nbWorkers = Integer.parseInt(args[++idArg]);
+                } catch (NumberFormatException e) {
+                    exitWithUsage();
+                }
+            } else if (args[idArg].equals("--output") && idArg + 1 < args.length) {
+                outputDirectory = new File(args[++idArg]);
+            } else if (args[idArg].equals("--report") && idArg + 1 < args.length) {
+                System.setProperty(ExecutionProfiler.REPORT_FILE_PROPERTY, args[++idArg]);
+            } else {
+                exitWithUsage();
+            }
+        }
+        if (presetFile == null) {
+            System.err.println("Unknown preset " + args[1]);
+            exitWithUsage();
+        }
+        File[] imageFiles = listImageFiles(imagesDirectory);
+        if (imageFiles == null || nbWorkers < 1) {
+            exitWithUsage();
+        }
+
+        ExecutionProfiler.Instance.exportReportOnExitIfRequested();
+        PlotterConfiguration.initSingleton();
+        Configuration.initHeadlessSingleton(presetFile);
+        System.out.println(String.format("Converting %d images with preset %s on %d workers", imageFiles.length,
+                presetFile.getName(), nbWorkers));
+        long startTime = System.nanoTime();
+        int nbFailures = new BatchConverter(Configuration.Instance.getCurrentSettings(), outputDirectory)
+                .convert(imageFiles, nbWorkers);
+        System.out.println(String.format(Locale.US, "Converted %d/%d images in %.1f s",
+                imageFiles.length - nbFailures, imageFiles.length, (System.nanoTime() - startTime) / 1e9));
+        System.exit(nbFailures > 0 ? 1 : 0);
+    }
+
+}
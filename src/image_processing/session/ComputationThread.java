@@ -1,21 +1,99 @@
 package image_processing.session;
 
+import java.awt.Dimension;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
 
 import common.engine.SettingsSet;
+import image_processing.enums.Setting;
 import image_processing.listeners.ComputationProgressionListener;
 import image_processing.listeners.TransformationResultChangeListener;
 import image_processing.transformations.AbstractTransformation;
+import image_processing.transformations.ImageImportTransformation;
 import image_processing.transformations.PathsOptimizationTransformation;
 import image_processing.transformations.TransformationStep;
 
 /**
- * A thread used for all Transformation computation
+ * A thread used for all Transformation computation, the Transformations being scheduled by a TransformationScheduler
+ * 
+ * The thread sleeps until settings change, and coalesces the changes received meanwhile into a single re-computation
+ * 
+ * For large images, the Transformations are first computed on downscaled copies of the source image to quickly display
+ * previews, then refined at full resolution unless the settings change again
  * 
  * @author Terence
  *
  */
-public class ComputationThread extends Thread implements TransformationResultChangeListener {
+public class ComputationThread extends Thread
+        implements TransformationResultChangeListener, TransformationScheduler.TransformationStartListener {
+
+    /**
+     * The maximum estimated size of the cached Transformations results, in bytes
+     */
+    static final long RESULTS_CACHE_MAX_SIZE = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * The directory in which the Transformations results are persisted
+     */
+    static final String RESULTS_STORE_DIRECTORY = ".cache";
+
+    /**
+     * The maximum size of the persisted Transformations results, in bytes
+     */
+    static final long RESULTS_STORE_MAX_SIZE = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * The delay, in ms, without any new change after which a burst of settings changes is recomputed
+     */
+    private static final long CHANGES_BURST_DEBOUNCE_DELAY = 150;
+
+    /**
+     * The scales at which the previews are computed, from the quickest to the finest
+     */
+    private static final double[] PREVIEW_SCALES = { 0.25, 0.5 };
+
+    /**
+     * The minimum number of pixels of the source image for the previews to be computed
+     */
+    private static final long PREVIEW_MIN_NB_PIXELS = 4000000;
+
+    /**
+     * The step of the last Transformation computed for the previews: the paths are generated in mm, so generating
+     * and optimizing them is not quicker at a lower resolution
+     */
+    private static final TransformationStep LAST_PREVIEW_STEP = TransformationStep.FINE_OUTLINING;
+
+    /**
+     * The names of the settings changed by the previews
+     */
+    private static final Set<String> PREVIEW_SETTINGS_NAMES = new HashSet<String>(
+            Arrays.asList(Setting.PREVIEW_SCALE.getName(), Setting.IMAGE_DPI.getName()));
+
+    /**
+     * The names of the settings from which the import resolution is computed
+     */
+    private static final Set<String> IMPORT_RESOLUTION_SETTINGS_NAMES = new HashSet<String>(
+            Arrays.asList(Setting.LIMIT_IMPORT_RESOLUTION.getName(), Setting.IMAGE_DPI.getName(),
+                    Setting.PEN_TIP_DIAMETER.getName(), Setting.LPMM_MAX.getName()));
+
+    /**
+     * The names of the settings changed by the import resolution
+     */
+    private static final Set<String> IMPORT_SETTINGS_NAMES = new HashSet<String>(
+            Arrays.asList(Setting.IMPORT_SCALE.getName(), Setting.IMAGE_DPI.getName()));
+
+    /**
+     * An empty SettingsSet, used to wake up the thread without any changed setting
+     */
+    private static final SettingsSet NO_CHANGED_SETTINGS = new SettingsSet(new JSONObject());
 
     /**
      * The Transformations to compute
@@ -23,29 +101,40 @@ public class ComputationThread extends Thread implements TransformationResultCha
     private final AbstractTransformation[] transformations;
 
     /**
-     * The Transformation currently being computed
+     * The scheduler computing the Transformations
      */
-    private AbstractTransformation transformationBeingComputed;
+    private final TransformationScheduler scheduler;
 
     /**
      * A flag indicating if we should force the recomputing of all the Transformations
      */
-    private boolean forceRecomputingAllTransformations;
+    private volatile boolean forceRecomputingAllTransformations;
 
     /**
      * A flag indicating if we should export the final output G-Code
      */
-    private boolean shouldExportGcode = false;
+    private volatile boolean shouldExportGcode = false;
+
+    /**
+     * The changed settings waiting to trigger a re-computation
+     */
+    private final LinkedBlockingQueue<SettingsSet> pendingChangedSettings = new LinkedBlockingQueue<SettingsSet>();
 
     /**
-     * The settings used for the computations
+     * The time, in ns, at which the last settings change has been received
      */
-    private SettingsSet settings;
+    private volatile long lastChangeTime = System.nanoTime()
+            - TimeUnit.MILLISECONDS.toNanos(CHANGES_BURST_DEBOUNCE_DELAY);
 
     /**
-     * The settings used for the next re-computation
+     * A flag indicating if the last settings change closely followed the previous one, e.g. while dragging a slider
      */
-    private SettingsSet settingsForNextRecomputation;
+    private volatile boolean isChangesBurstOngoing = false;
+
+    /**
+     * A flag indicating if some Transformations results are previews, not refined at full resolution yet
+     */
+    private boolean arePreviewsDisplayed = false;
 
     /**
      * The computation progression listeners
@@ -62,19 +151,27 @@ public class ComputationThread extends Thread implements TransformationResultCha
         for (AbstractTransformation transformation : transformations) {
             transformation.addListener(this);
         }
+        scheduler = new TransformationScheduler(transformations, Runtime.getRuntime().availableProcessors(),
+                new TransformationResultCache(RESULTS_CACHE_MAX_SIZE),
+                new TransformationResultStore(new File(RESULTS_STORE_DIRECTORY), RESULTS_STORE_MAX_SIZE), this);
         forceRecomputingAllTransformations = true;
+        pendingChangedSettings.add(NO_CHANGED_SETTINGS);
         start();
     }
 
     /**
-     * Compute the Transformation with the specified settings
+     * Compute the Transformations depending on the specified changed settings
      * 
-     * @param settings the SettingsSet to use for the computation
+     * @param settings the SettingsSet containing the changed settings
      */
     public void compute(SettingsSet settings) {
-        settingsForNextRecomputation = settings;
-        if (transformationBeingComputed != null) {
-            transformationBeingComputed.abortUpdate();
+        long changeTime = System.nanoTime();
+        isChangesBurstOngoing = changeTime - lastChangeTime < TimeUnit.MILLISECONDS
+                .toNanos(CHANGES_BURST_DEBOUNCE_DELAY);
+        lastChangeTime = changeTime;
+        synchronized (pendingChangedSettings) {
+            pendingChangedSettings.add(settings);
+            scheduler.abort();
         }
     }
 
@@ -83,6 +180,88 @@ public class ComputationThread extends Thread implements TransformationResultCha
      */
     public void exportGcode() {
         shouldExportGcode = true;
+        pendingChangedSettings.add(NO_CHANGED_SETTINGS);
+    }
+
+    /**
+     * Wait for settings changes, and merge all the ones received until the next re-computation
+     * 
+     * Isolated changes are returned immediately, but during a burst of changes (e.g. while dragging a slider or
+     * holding a spinner arrow), the changes are merged until none is received for CHANGES_BURST_DEBOUNCE_DELAY ms
+     * 
+     * The scheduler abort request is cleared once all the pending changes have been taken, atomically with respect to
+     * the changes and abort requests of compute(), so that the next run is aborted only by changes it does not include
+     * 
+     * @return the names of the changed settings, empty if the thread has only been woken up
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private Set<String> waitForChangedSettings() throws InterruptedException {
+        Set<String> changedSettingsNames = new HashSet<String>();
+        SettingsSet changedSettings = pendingChangedSettings.take();
+        while (changedSettings != null) {
+            changedSettingsNames.addAll(changedSettings.getSettingsNames());
+            changedSettings = pendingChangedSettings.poll();
+            if (changedSettings == null && isChangesBurstOngoing) {
+                changedSettings = pendingChangedSettings.poll(CHANGES_BURST_DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+            }
+            if (changedSettings == null) {
+                synchronized (pendingChangedSettings) {
+                    changedSettings = pendingChangedSettings.poll();
+                    if (changedSettings == null) {
+                        scheduler.clearAbort();
+                    }
+                }
+            }
+        }
+        return changedSettingsNames;
+    }
+
+    /**
+     * Indicate if previews should be computed before the full resolution Transformations, i.e. if the source image
+     * is large and if some of the Transformations to recompute are quicker at a lower resolution
+     * 
+     * @param settings                        the settings with which to compute the Transformations
+     * @param changedSettingsNames            the names of the changed settings
+     * @param isRecomputingAllTransformations true if all the Transformations are recomputed
+     * @return true if previews should be computed, false otherwise
+     */
+    private boolean shouldComputePreviews(SettingsSet settings, Set<String> changedSettingsNames,
+            boolean isRecomputingAllTransformations) {
+        Dimension imageDimensions = ImageImportTransformation
+                .readImageDimensions(settings.getFileSetting(Setting.IMAGE_FILE));
+        double importScale = ImageImportTransformation.getImportScale(settings);
+        if (imageDimensions == null || (long) imageDimensions.width * imageDimensions.height * importScale
+                * importScale < PREVIEW_MIN_NB_PIXELS) {
+            return false;
+        }
+        if (isRecomputingAllTransformations) {
+            return true;
+        }
+        for (AbstractTransformation transformation : transformations) {
+            if (transformation.getTransformationStep().ordinal() <= LAST_PREVIEW_STEP.ordinal()
+                    && transformation.dependsOnSettings(changedSettingsNames)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the settings with which to compute a preview: the source image is downscaled, and its DPI scaled
+     * accordingly so that the Transformations dimensions in mm are kept
+     * 
+     * The DPI being an integer, the source image is downscaled by the ratio of the rounded preview DPI to the source
+     * DPI rather than by the requested scale, so that both match exactly
+     * 
+     * @param settings     the settings with which to compute the full resolution Transformations
+     * @param previewScale the requested scale of the preview
+     * @return the settings with which to compute the preview
+     */
+    private static SettingsSet getPreviewSettings(SettingsSet settings, double previewScale) {
+        int imageDpi = settings.getIntSetting(Setting.IMAGE_DPI);
+        int previewDpi = Math.max(1, (int) Math.round(imageDpi * previewScale));
+        return settings.withSettingValue(Setting.PREVIEW_SCALE, (double) previewDpi / imageDpi)
+                .withSettingValue(Setting.IMAGE_DPI, previewDpi);
     }
 
     /**
@@ -108,46 +287,68 @@ public class ComputationThread extends Thread implements TransformationResultCha
     @Override
     public void run() {
         while (true) {
-            if (forceRecomputingAllTransformations || settingsForNextRecomputation != null) {
-                if (settingsForNextRecomputation != null) {
-                    settings = (SettingsSet) settingsForNextRecomputation.clone();
-                    settingsForNextRecomputation = null;
+            Set<String> changedSettingsNames;
+            try {
+                changedSettingsNames = waitForChangedSettings();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (forceRecomputingAllTransformations || !changedSettingsNames.isEmpty()) {
+                boolean isRecomputingAllTransformations = forceRecomputingAllTransformations;
+                if (forceRecomputingAllTransformations) {
+                    forceRecomputingAllTransformations = false;
+                    scheduler.invalidateAll();
                 }
-                AbstractTransformation previousTransformation = null;
-                boolean transformationUpdated = false;
-                for (AbstractTransformation transformation : transformations) {
-                    fireCurrentTransformationStepChanged(transformation);
-                    if (forceRecomputingAllTransformations || transformationUpdated
-                            || transformation.dependsOnSettings(settings.getSettingsNames())) {
-                        transformationBeingComputed = transformation;
-                        transformation.updateTransformation(previousTransformation,
-                                Configuration.Instance.getCurrentSettings());
-                        transformationUpdated = true;
-                    }
-                    previousTransformation = transformation;
-                    if (!forceRecomputingAllTransformations && settingsForNextRecomputation != null) {
-                        /* New settings have been applied, abort the current Transformation flow */
-                        break;
+
+                /*
+                 * Only the Transformations depending on the changed settings, or on an updated Transformation, are
+                 * recomputed. If new settings are applied meanwhile, the run is aborted and the Transformations not
+                 * completed are recomputed on the next one
+                 */
+                SettingsSet settings = ImageImportTransformation
+                        .getImportSettings(Configuration.Instance.getCurrentSettings());
+                Set<String> runChangedSettingsNames = new HashSet<String>(changedSettingsNames);
+                if (!Collections.disjoint(changedSettingsNames, IMPORT_RESOLUTION_SETTINGS_NAMES)) {
+                    runChangedSettingsNames.addAll(IMPORT_SETTINGS_NAMES);
+                }
+                if (arePreviewsDisplayed) {
+                    runChangedSettingsNames.addAll(PREVIEW_SETTINGS_NAMES);
+                }
+                if (shouldComputePreviews(settings, changedSettingsNames, isRecomputingAllTransformations)) {
+                    runChangedSettingsNames.addAll(PREVIEW_SETTINGS_NAMES);
+                    for (double previewScale : PREVIEW_SCALES) {
+                        if (!pendingChangedSettings.isEmpty()) {
+                            break;
+                        }
+                        arePreviewsDisplayed = true;
+                        if (!scheduler.run(getPreviewSettings(settings, previewScale), runChangedSettingsNames,
+                                LAST_PREVIEW_STEP)) {
+                            break;
+                        }
                     }
                 }
+
+                /* The full resolution run is skipped if the settings changed again during the previews */
+                if (pendingChangedSettings.isEmpty() && scheduler.run(settings, runChangedSettingsNames)) {
+                    arePreviewsDisplayed = false;
+                }
                 fireCurrentTransformationStepChanged(null);
-                transformationBeingComputed = null;
             }
-            if (shouldExportGcode) {
+            if (shouldExportGcode && pendingChangedSettings.isEmpty()) {
                 shouldExportGcode = false;
                 ((PathsOptimizationTransformation) Project.Instance
                         .getTransformation(TransformationStep.PATHS_OPTIMIZATION)).exportGCode();
             }
-            forceRecomputingAllTransformations = false;
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
         }
 
     }
 
+    @Override
+    public void transformationStarted(AbstractTransformation transformation) {
+        fireCurrentTransformationStepChanged(transformation);
+    }
+
     @Override
     public void transformationResultChanged(AbstractTransformation transformation) {
         /* nothing to do */
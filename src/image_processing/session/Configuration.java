@@ -50,11 +50,20 @@ public class Configuration {
      */
     private Vector<ConfigurationChangeListener> listeners = new Vector<ConfigurationChangeListener>();
 
+    /**
+     * A flag indicating if the Configuration is saved as the last configuration whenever it changes
+     */
+    private final boolean isAutoSaved;
+
     /**
      * Instantiate a new Configuration
+     * 
+     * @param configurationFile the JSON file from which to read the initial configuration
+     * @param isAutoSaved       set at true to save the Configuration as the last configuration whenever it changes
      */
-    private Configuration() {
-        loadConfigurationFile(new File(".last-config.json"), false);
+    private Configuration(File configurationFile, boolean isAutoSaved) {
+        this.isAutoSaved = isAutoSaved;
+        loadConfigurationFile(configurationFile, false);
     }
 
     /**
@@ -64,24 +73,27 @@ public class Configuration {
      * @param keepInputImage    set at true to not override the IMAGE_FILE Setting
      */
     public void loadConfigurationFile(File configurationFile, boolean keepInputImage) {
-        String inputImage = settings.optString(Setting.IMAGE_FILE.getName(), "");
-        settings = getDefaultSettings();
         String configurationFileContent = null;
         try {
             configurationFileContent = Utils.readFile(configurationFile);
         } catch (IOException e) {
             System.out.println("Failed to load last configuration, use default configuration");
         }
+        JSONObject newSettings = getDefaultSettings();
         if (configurationFileContent != null) {
             JSONObject userSettings = new JSONObject(configurationFileContent);
             for (String settingName : userSettings.keySet()) {
-                settings.put(settingName, userSettings.get(settingName));
+                newSettings.put(settingName, userSettings.get(settingName));
             }
         }
-        if (keepInputImage && !inputImage.equals("")) {
-            settings.put(Setting.IMAGE_FILE.getName(), inputImage);
+        synchronized (this) {
+            String inputImage = settings.optString(Setting.IMAGE_FILE.getName(), "");
+            if (keepInputImage && !inputImage.equals("")) {
+                newSettings.put(Setting.IMAGE_FILE.getName(), inputImage);
+            }
+            settings = newSettings;
         }
-        fireConfigurationChanged(settings);
+        fireConfigurationChanged(newSettings);
     }
 
     /**
@@ -95,6 +107,7 @@ public class Configuration {
 
         settings.put(Setting.IMAGE_FILE.getName(), "data/images/tulip.png");
         settings.put(Setting.IMAGE_DPI.getName(), 150);
+        settings.put(Setting.LIMIT_IMPORT_RESOLUTION.getName(), false);
         settings.put(Setting.COLOR_SPACE.getName(), ColorSpace.SRGB.ordinal());
 
         settings.put(Setting.NB_QUANTIZATION_COLORS.getName(), 8);
@@ -117,6 +130,7 @@ public class Configuration {
         settings.put(Setting.ENABLE_FINE_OUTLINING.getName(), false);
         settings.put(Setting.ENABLE_THICK_OUTLINING.getName(), false);
         settings.put(Setting.MULTICOLOR_THICK_OUTLINING.getName(), false);
+        settings.put(Setting.THIN_THICK_OUTLINES.getName(), false);
         settings.put(Setting.OUTLINE_LPMM.getName(), 4.0);
         settings.put(Setting.CANNY_HIGH_THRESHOLD.getName(), 1);
         settings.put(Setting.CANNY_LOW_THRESHOLD.getName(), 0.5);
@@ -149,8 +163,10 @@ public class Configuration {
      * @param settings a JSONObject containing the settings to set and their new values
      */
     public void setSettingsValues(JSONObject settings) {
-        for (String settingName : settings.keySet()) {
-            this.settings.put(settingName, settings.get(settingName));
+        synchronized (this) {
+            for (String settingName : settings.keySet()) {
+                this.settings.put(settingName, settings.get(settingName));
+            }
         }
         fireConfigurationChanged(settings);
     }
@@ -165,9 +181,12 @@ public class Configuration {
      * @param value   the new setting value
      */
     public void setArraySettingValue(Setting setting, int index, Object value) {
-        settings.getJSONArray(setting.getName()).put(index, value);
         JSONObject settingJsonObject = new JSONObject();
-        settingJsonObject.put(setting.getName(), settings.get(setting.getName()));
+        synchronized (this) {
+            JSONArray arraySetting = settings.getJSONArray(setting.getName());
+            arraySetting.put(index, value);
+            settingJsonObject.put(setting.getName(), new JSONArray(arraySetting.toString()));
+        }
         fireConfigurationChanged(settingJsonObject);
     }
 
@@ -178,7 +197,7 @@ public class Configuration {
      * 
      * @return a SettingsSet containing the current configuration settings and their values
      */
-    public SettingsSet getCurrentSettings() {
+    public synchronized SettingsSet getCurrentSettings() {
         return new SettingsSet(settings);
     }
 
@@ -200,7 +219,9 @@ public class Configuration {
         for (ConfigurationChangeListener listener : listeners) {
             listener.configurationSettingsValuesChanged(new SettingsSet(changedSettings));
         }
-        save(".last-config");
+        if (isAutoSaved) {
+            save(".last-config");
+        }
     }
 
     /**
@@ -208,7 +229,7 @@ public class Configuration {
      * 
      * @param filename the filename under which to save the configuration
      */
-    public void save(String filename) {
+    public synchronized void save(String filename) {
         try {
             BufferedWriter bw = new BufferedWriter(new FileWriter(filename + ".json"));
             bw.write(settings.toString());
@@ -242,7 +263,18 @@ public class Configuration {
      */
     public static void initSingleton() {
         if (Instance == null) {
-            Instance = new Configuration();
+            Instance = new Configuration(new File(".last-config.json"), true);
+        }
+    }
+
+    /**
+     * Init the Configuration Singleton from a preset Configuration file, without saving it as the last configuration
+     * 
+     * @param configurationFile the JSON file from which to read the Configuration
+     */
+    public static void initHeadlessSingleton(File configurationFile) {
+        if (Instance == null) {
+            Instance = new Configuration(configurationFile, false);
         }
     }
 
@@ -10,6 +10,7 @@ import image_processing.transformations.PathsGenerationTransformation;
 import image_processing.transformations.PathsOptimizationTransformation;
 import image_processing.transformations.RecolorizationTransformation;
 import image_processing.transformations.ThickOutliningTransformation;
+import image_processing.transformations.ThinningTransformation;
 import image_processing.transformations.TransformationStep;
 import streaming.session.PlotterConfiguration;
 
@@ -41,10 +42,7 @@ public class Project implements ConfigurationChangeListener {
      */
     private Project() {
         Configuration.Instance.addListener(this);
-        transformations = new AbstractTransformation[] { new ImageImportTransformation(),
-                new ColorQuantizationTransformation(), new RecolorizationTransformation(),
-                new ThickOutliningTransformation(), new FineOutliningTransformation(),
-                new PathsGenerationTransformation(), new PathsOptimizationTransformation() };
+        transformations = createTransformations();
         // TODO-022: handle transformations "paths" that does not include all transformations
 //        if (transformations.length != TransformationStep.values().length) {
 //            System.err.println("Not all transformations steps have a transformation registered");
@@ -60,6 +58,20 @@ public class Project implements ConfigurationChangeListener {
         computationThread.compute(settings);
     }
 
+    /**
+     * Create the Transformations to apply to an image to get the final result, sorted by step
+     * 
+     * @return the Transformations to apply to an image
+     */
+    static AbstractTransformation[] createTransformations() {
+        ThinningTransformation thinningTr = new ThinningTransformation();
+        FineOutliningTransformation fineOutliningTr = new FineOutliningTransformation();
+        fineOutliningTr.setDisplayedOutlinesTransformation(thinningTr);
+        return new AbstractTransformation[] { new ImageImportTransformation(), new ColorQuantizationTransformation(),
+                new RecolorizationTransformation(), new ThickOutliningTransformation(), thinningTr, fineOutliningTr,
+                new PathsGenerationTransformation(), new PathsOptimizationTransformation() };
+    }
+
     /**
      * Get the Transformation corresponding to the specified step
      * 
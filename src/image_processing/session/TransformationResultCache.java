@@ -0,0 +1,83 @@
+package image_processing.session;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import image_processing.transformations.TransformationResult;
+
+/**
+ * A memory-bounded cache of Transformation results, indexed by their keys and evicting the least recently used ones
+ * 
+ * @author Terence
+ *
+ */
+public class TransformationResultCache {
+
+    /**
+     * The maximum estimated size of the cached results, in bytes
+     */
+    private final long maxSize;
+
+    /**
+     * The estimated size of the cached results, in bytes
+     */
+    private long size = 0;
+
+    /**
+     * The cached results per key, ordered from the least to the most recently used
+     */
+    private final LinkedHashMap<String, TransformationResult> results = new LinkedHashMap<String, TransformationResult>(
+            16, 0.75f, true);
+
+    /**
+     * Instantiate a new Transformation results cache
+     * 
+     * @param maxSize the maximum estimated size of the cached results, in bytes
+     */
+    public TransformationResultCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the cached result corresponding to the specified key
+     * 
+     * @param key the key of the result to retrieve
+     * @return the cached result, or null if there is none
+     */
+    public synchronized TransformationResult get(String key) {
+        return results.get(key);
+    }
+
+    /**
+     * Add a result to the cache, evicting the least recently used results if needed
+     * 
+     * @param result the result to add
+     */
+    public synchronized void put(TransformationResult result) {
+        if (result.getKey() == null || result.getEstimatedSize() > maxSize) {
+            return;
+        }
+        TransformationResult previousResult = results.put(result.getKey(), result);
+        if (previousResult != null) {
+            size -= previousResult.getEstimatedSize();
+        }
+        size += result.getEstimatedSize();
+        Iterator<TransformationResult> iterator = results.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            TransformationResult eldestResult = iterator.next();
+            if (eldestResult != result) {
+                size -= eldestResult.getEstimatedSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all the cached results
+     */
+    public synchronized void clear() {
+        results.clear();
+        size = 0;
+    }
+
+}
@@ -0,0 +1,243 @@
+package image_processing.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import image_processing.engine.ColorPalette;
+import image_processing.engine.Image;
+import image_processing.transformations.AbstractTransformation;
+import image_processing.transformations.TransformationResult;
+
+/**
+ * A persistent store of Transformation results, saved as compressed binary files named after their keys, so that
+ * they can be reloaded instead of recomputed after a restart
+ * 
+ * @author Terence
+ *
+ */
+public class TransformationResultStore {
+
+    /**
+     * The magic number at the beginning of every result file
+     */
+    private static final int FILE_MAGIC_NUMBER = 0x54524553;
+
+    /**
+     * The version of the result files format, to increase whenever the format of a result changes
+     */
+    private static final int FILE_FORMAT_VERSION = 2;
+
+    /**
+     * The extension of the result files
+     */
+    private static final String FILE_EXTENSION = ".bin";
+
+    /**
+     * The size of the buffers used to read and write the result files, in bytes
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The directory in which the results are stored
+     */
+    private final File directory;
+
+    /**
+     * The maximum size of the stored results, in bytes
+     */
+    private final long maxSize;
+
+    /**
+     * The thread on which the results are written, in order not to delay the computations
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "transformation-result-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Instantiate a new Transformation results store
+     * 
+     * @param directory the directory in which to store the results
+     * @param maxSize   the maximum size of the stored results, in bytes
+     */
+    public TransformationResultStore(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Cannot create the cache directory " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Get the file in which the result with the specified key is stored
+     * 
+     * @param key the result key
+     * @return the file in which the result is stored
+     */
+    private File getResultFile(String key) {
+        return new File(directory, key + FILE_EXTENSION);
+    }
+
+    /**
+     * Load a stored result of a Transformation
+     * 
+     * @param transformation the Transformation of which to load the result
+     * @param key            the key of the result to load
+     * @return the result, or null if it is not stored or cannot be read
+     */
+    public TransformationResult load(AbstractTransformation transformation, String key) {
+        File file = getResultFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file), inflater, BUFFER_SIZE), BUFFER_SIZE))) {
+            if (in.readInt() != FILE_MAGIC_NUMBER || in.readInt() != FILE_FORMAT_VERSION
+                    || !in.readUTF().equals(transformation.getTransformationStep().name())
+                    || !in.readUTF().equals(key)) {
+                throw new IOException("Unexpected header");
+            }
+            Image outputImage = in.readBoolean() ? Image.readFrom(in) : null;
+            ColorPalette outputColorPalette = in.readBoolean() ? ColorPalette.readFrom(in) : null;
+            Object specificResult = in.readBoolean() ? transformation.readSpecificResult(in) : null;
+
+            /* Mark the result as recently used */
+            file.setLastModified(System.currentTimeMillis());
+            return new TransformationResult(key, outputImage, outputColorPalette, specificResult, 0);
+        } catch (IOException e) {
+            System.err.println("Cannot read the stored result " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Store a result of a Transformation, in background
+     * 
+     * @param transformation the Transformation of which to store the result
+     * @param result         the result to store
+     */
+    public void save(AbstractTransformation transformation, TransformationResult result) {
+        if (result == null || result.getKey() == null || getResultFile(result.getKey()).isFile()) {
+            return;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(transformation, result);
+                evictLeastRecentlyUsedResults();
+            }
+        });
+    }
+
+    /**
+     * Wait for the results being stored to be written, and stop storing new results
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write a result of a Transformation in its file
+     * 
+     * @param transformation the Transformation of which to write the result
+     * @param result         the result to write
+     */
+    private void write(AbstractTransformation transformation, TransformationResult result) {
+        File file = getResultFile(result.getKey());
+        File tmpFile = new File(directory, result.getKey() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(tmpFile), deflater, BUFFER_SIZE), BUFFER_SIZE))) {
+                out.writeInt(FILE_MAGIC_NUMBER);
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeUTF(transformation.getTransformationStep().name());
+                out.writeUTF(result.getKey());
+                out.writeBoolean(result.getOutputImage() != null);
+                if (result.getOutputImage() != null) {
+                    result.getOutputImage().writeTo(out);
+                }
+                out.writeBoolean(result.getOutputColorPalette() != null);
+                if (result.getOutputColorPalette() != null) {
+                    result.getOutputColorPalette().writeTo(out);
+                }
+                out.writeBoolean(result.getSpecificResult() != null);
+                if (result.getSpecificResult() != null) {
+                    transformation.writeSpecificResult(result.getSpecificResult(), out);
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Cannot store the result " + file.getName() + ": " + e.getMessage());
+            tmpFile.delete();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Delete the least recently used results until the stored results fit in the maximum size
+     */
+    private void evictLeastRecentlyUsedResults() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f0, File f1) {
+                return Long.compare(f0.lastModified(), f1.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (size <= maxSize) {
+                break;
+            }
+            if (file.getName().endsWith(FILE_EXTENSION)) {
+                size -= file.length();
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+package image_processing.session;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import common.engine.SettingsSet;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
+import image_processing.transformations.AbstractTransformation;
+import image_processing.transformations.TransformationResult;
+import image_processing.transformations.TransformationStep;
+
+/**
+ * A scheduler computing the Transformations as a dependency graph: only the Transformations that need to be updated
+ * are recomputed, and the independent ones are computed concurrently on a pool of workers
+ * 
+ * @author Terence
+ *
+ */
+public class TransformationScheduler {
+
+    /**
+     * The Transformations to schedule, sorted so that each Transformation comes after its inputs
+     */
+    private final Vector<AbstractTransformation> sortedTransformations = new Vector<AbstractTransformation>();
+
+    /**
+     * The Transformations that have to be recomputed, because their last update did not complete
+     */
+    private final Set<AbstractTransformation> staleTransformations = new HashSet<AbstractTransformation>();
+
+    /**
+     * The Transformations currently being computed, with the token allowing to abort their current update
+     */
+    private final HashMap<AbstractTransformation, CancellationToken> runningTransformations =
+            new HashMap<AbstractTransformation, CancellationToken>();
+
+    /**
+     * The cache of the previously computed Transformations results
+     */
+    private final TransformationResultCache resultsCache;
+
+    /**
+     * The persistent store of the Transformations results, null if the results are not persisted
+     */
+    private final TransformationResultStore resultsStore;
+
+    /**
+     * The workers on which the Transformations are computed
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The listener notified when a Transformation starts being computed
+     */
+    private final TransformationStartListener startListener;
+
+    /**
+     * A flag indicating if the runs should be aborted, until the abort request is cleared
+     */
+    private volatile boolean isRunAborted;
+
+    /**
+     * A listener to be notified when a Transformation starts being computed
+     * 
+     * @author Terence
+     *
+     */
+    public interface TransformationStartListener {
+
+        /**
+         * Callback called when a Transformation starts being computed
+         * 
+         * @param transformation the Transformation being computed
+         */
+        public void transformationStarted(AbstractTransformation transformation);
+    }
+
+    /**
+     * Instantiate a new Transformation scheduler, connecting each Transformation to its inputs
+     * 
+     * @param transformations the Transformations to schedule
+     * @param nbWorkers       the number of workers on which to compute the Transformations
+     * @param resultsCache    the cache of the Transformations results to use
+     * @param resultsStore    the persistent store of the Transformations results to use, or null to not persist them
+     * @param startListener   the listener to notify when a Transformation starts being computed, or null
+     */
+    public TransformationScheduler(AbstractTransformation[] transformations, int nbWorkers,
+            TransformationResultCache resultsCache, TransformationResultStore resultsStore,
+            TransformationStartListener startListener) {
+        this.resultsCache = resultsCache;
+        this.resultsStore = resultsStore;
+        this.startListener = startListener;
+        HashMap<TransformationStep, AbstractTransformation> transformationsPerStep =
+                new HashMap<TransformationStep, AbstractTransformation>();
+        for (AbstractTransformation transformation : transformations) {
+            transformationsPerStep.put(transformation.getTransformationStep(), transformation);
+        }
+        for (AbstractTransformation transformation : transformations) {
+            for (TransformationStep inputStep : transformation.getInputSteps()) {
+                AbstractTransformation input = transformationsPerStep.get(inputStep);
+                if (input == null) {
+                    System.err.println("No transformation for step " + inputStep.name() + ", needed by "
+                            + transformation.getTransformationStep().name());
+                } else {
+                    transformation.connectInput(input);
+                }
+            }
+        }
+
+        /* Sort the Transformations so that their inputs are always computed before them */
+        HashSet<AbstractTransformation> visitedTransformations = new HashSet<AbstractTransformation>();
+        for (AbstractTransformation transformation : transformations) {
+            sortTransformation(transformation, transformationsPerStep, visitedTransformations,
+                    new HashSet<AbstractTransformation>());
+        }
+        staleTransformations.addAll(sortedTransformations);
+
+        workers = Executors.newFixedThreadPool(nbWorkers, new ThreadFactory() {
+            private int nbThreads = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "transformation-worker-" + nbThreads++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Add a Transformation to the sorted Transformations, after having recursively added its inputs
+     * 
+     * @param transformation         the Transformation to add
+     * @param transformationsPerStep the Transformations per step
+     * @param visitedTransformations the Transformations already sorted
+     * @param pathTransformations    the Transformations being sorted, used to detect the dependency cycles
+     */
+    private void sortTransformation(AbstractTransformation transformation,
+            HashMap<TransformationStep, AbstractTransformation> transformationsPerStep,
+            HashSet<AbstractTransformation> visitedTransformations,
+            HashSet<AbstractTransformation> pathTransformations) {
+        if (visitedTransformations.contains(transformation)) {
+            return;
+        }
+        if (!pathTransformations.add(transformation)) {
+            throw new IllegalStateException(
+                    "Dependency cycle on step " + transformation.getTransformationStep().name());
+        }
+        for (TransformationStep inputStep : transformation.getInputSteps()) {
+            AbstractTransformation input = transformationsPerStep.get(inputStep);
+            if (input != null) {
+                sortTransformation(input, transformationsPerStep, visitedTransformations, pathTransformations);
+            }
+        }
+        pathTransformations.remove(transformation);
+        visitedTransformations.add(transformation);
+        sortedTransformations.add(transformation);
+    }
+
+    /**
+     * Compute the Transformations that need to be updated, and wait for their completion
+     * 
+     * A Transformation needs to be updated if its previous update did not complete, if it depends on one of the
+     * changed settings, or if one of its inputs needs to be updated
+     * 
+     * @param settings             the SettingsSet with which to compute the Transformations
+     * @param changedSettingsNames the names of the settings that changed since the last run
+     * @return true if all the Transformations have been updated, false if the run has been aborted or failed
+     */
+    public boolean run(SettingsSet settings, Set<String> changedSettingsNames) {
+        return run(settings, changedSettingsNames, null);
+    }
+
+    /**
+     * Compute the Transformations that need to be updated up to the specified step, and wait for their completion
+     * 
+     * The Transformations after the last step are not updated, but are marked as needing to be updated on the next run
+     * 
+     * @param settings             the SettingsSet with which to compute the Transformations
+     * @param changedSettingsNames the names of the settings that changed since the last run
+     * @param lastStep             the step of the last Transformation to update, or null to update them all
+     * @return true if all the Transformations up to the last step have been updated, false if the run has been
+     *         aborted or failed
+     */
+    public boolean run(SettingsSet settings, Set<String> changedSettingsNames, TransformationStep lastStep) {
+        int runId = ExecutionProfiler.Instance.startRun();
+
+        /* Build the futures of the Transformations to update, in the dependency order */
+        HashMap<AbstractTransformation, CompletableFuture<Void>> futures =
+                new HashMap<AbstractTransformation, CompletableFuture<Void>>();
+        for (AbstractTransformation transformation : sortedTransformations) {
+            Vector<CompletableFuture<Void>> inputsFutures = new Vector<CompletableFuture<Void>>();
+            for (TransformationStep inputStep : transformation.getInputSteps()) {
+                for (AbstractTransformation input : futures.keySet()) {
+                    if (input.getTransformationStep() == inputStep) {
+                        inputsFutures.add(futures.get(input));
+                    }
+                }
+            }
+            boolean isStale;
+            synchronized (staleTransformations) {
+                isStale = staleTransformations.contains(transformation);
+            }
+            if (isStale || !inputsFutures.isEmpty() || transformation.dependsOnSettings(changedSettingsNames)) {
+                synchronized (staleTransformations) {
+                    staleTransformations.add(transformation);
+                }
+                if (lastStep != null && transformation.getTransformationStep().ordinal() > lastStep.ordinal()) {
+                    continue;
+                }
+                futures.put(transformation,
+                        CompletableFuture.allOf(inputsFutures.toArray(new CompletableFuture<?>[0])).thenRunAsync(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        updateTransformation(transformation, settings, runId,
+                                                changedSettingsNames);
+                                    }
+                                }, workers));
+            }
+        }
+
+        /* Wait for all the updates to complete */
+        boolean isRunComplete = true;
+        for (CompletableFuture<Void> future : futures.values()) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                isRunComplete = false;
+            }
+        }
+        return isRunComplete && !isRunAborted;
+    }
+
+    /**
+     * Update a Transformation, unless the run has been aborted
+     * 
+     * If a result computed with the same inputs and settings is cached or stored, it is restored instead
+     * 
+     * @param transformation       the Transformation to update
+     * @param settings             the SettingsSet with which to update the Transformation
+     * @param runId                the id of the run, used to profile the update
+     * @param changedSettingsNames the names of the settings that changed since the last run
+     */
+    private void updateTransformation(AbstractTransformation transformation, SettingsSet settings, int runId,
+            Set<String> changedSettingsNames) {
+        /* Each update has its own token, so that aborting a run cannot cancel the update of the next one */
+        CancellationToken cancellationToken = new CancellationToken();
+        synchronized (runningTransformations) {
+            if (isRunAborted) {
+                throw new CompletionException(new InterruptedException("Run aborted"));
+            }
+            runningTransformations.put(transformation, cancellationToken);
+        }
+        ExecutionMeasure measure = ExecutionProfiler.Instance
+                .startTransformation(transformation.getTransformationStep().name(), runId, changedSettingsNames);
+        String outcome = "failed";
+        try {
+            if (startListener != null) {
+                startListener.transformationStarted(transformation);
+            }
+            String resultKey = transformation.computeResultKey(settings);
+            TransformationResult cachedResult = resultKey != null ? resultsCache.get(resultKey) : null;
+            TransformationResult storedResult = null;
+            if (cachedResult == null && resultKey != null && resultsStore != null) {
+                storedResult = resultsStore.load(transformation, resultKey);
+            }
+            if (cachedResult != null) {
+                transformation.restoreResult(cachedResult, settings);
+                outcome = "cached";
+            } else if (storedResult != null) {
+                transformation.restoreResult(storedResult, settings);
+                resultsCache.put(transformation.getResult());
+                outcome = "stored";
+            } else {
+                transformation.updateTransformation(settings, cancellationToken);
+                outcome = transformation.isTransformationDone() ? "computed" : "aborted";
+                if (transformation.isTransformationDone()) {
+                    TransformationResult result = transformation.getResult();
+                    resultsCache.put(result);
+                    if (resultsStore != null) {
+                        resultsStore.save(transformation, result);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Failed to compute step " + transformation.getTransformationStep().name());
+            e.printStackTrace();
+            throw e;
+        } finally {
+            synchronized (runningTransformations) {
+                runningTransformations.remove(transformation);
+            }
+            TransformationResult result = transformation.getResult();
+            measure.stop(outcome, result != null ? result.getEstimatedSize() : 0);
+        }
+        if (!transformation.isTransformationDone()) {
+            throw new CompletionException(new InterruptedException("Transformation aborted"));
+        }
+        synchronized (staleTransformations) {
+            staleTransformations.remove(transformation);
+        }
+    }
+
+    /**
+     * Abort the current run: the Transformations being computed are aborted, and the ones not started yet are skipped
+     * 
+     * The following runs are aborted as well until the abort request is cleared, so that an abort requested just
+     * before a run starts is not lost
+     */
+    public void abort() {
+        synchronized (runningTransformations) {
+            isRunAborted = true;
+            for (CancellationToken cancellationToken : runningTransformations.values()) {
+                cancellationToken.cancel();
+            }
+        }
+    }
+
+    /**
+     * Clear the abort request, once the changes which caused it have been taken into account by the caller
+     */
+    public void clearAbort() {
+        isRunAborted = false;
+    }
+
+    /**
+     * Stop the workers once the current run is complete, the scheduler cannot be run anymore afterwards
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Mark all the Transformations as needing to be recomputed on the next run
+     */
+    public void invalidateAll() {
+        synchronized (staleTransformations) {
+            staleTransformations.addAll(sortedTransformations);
+        }
+    }
+
+}
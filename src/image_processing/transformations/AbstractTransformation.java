@@ -1,10 +1,19 @@
 package image_processing.transformations;
 
 import java.awt.Graphics2D;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
 
+import common.engine.Ink;
 import common.engine.SettingsSet;
+import common.engine.Utils;
+import image_processing.engine.CancellationToken;
 import image_processing.engine.ColorPalette;
 import image_processing.engine.Image;
 import image_processing.enums.Setting;
@@ -13,7 +22,7 @@ import image_processing.session.Configuration;
 
 /**
  * An abstract class for a Transformation, that apply a transformation algorithm depending on various parameters on the
- * previous transformation outputed image to output its own result image
+ * outputs of its input Transformations to output its own result image
  * 
  * @author Terence
  *
@@ -25,6 +34,17 @@ public abstract class AbstractTransformation {
      */
     private final TransformationStep transformationStep;
 
+    /**
+     * The steps of the Transformations of which the outputs are used as inputs by this Transformation
+     */
+    private final TransformationStep[] inputSteps;
+
+    /**
+     * The input Transformations, per step
+     */
+    private final HashMap<TransformationStep, AbstractTransformation> inputs =
+            new HashMap<TransformationStep, AbstractTransformation>();
+
     /**
      * The settings the Transformation depends on
      */
@@ -46,19 +66,19 @@ public abstract class AbstractTransformation {
     protected ColorPalette outputColorPalette;
 
     /**
-     * The listeners waiting for a new output from the Transformation
+     * The key identifying the current result of the Transformation, null if the result cannot be identified
      */
-    protected Vector<TransformationResultChangeListener> listeners = new Vector<TransformationResultChangeListener>();
+    private volatile String resultKey;
 
     /**
-     * A flag indicating if the Transformation update should be aborted
+     * The listeners waiting for a new output from the Transformation
      */
-    protected boolean shouldAbortUpdate;
+    protected Vector<TransformationResultChangeListener> listeners = new Vector<TransformationResultChangeListener>();
 
     /**
      * A flag indicating if the Transformation is complete
      */
-    private boolean isTransformationDone;
+    private volatile boolean isTransformationDone;
 
     /**
      * A flag indicating if the output image is vectorized or not
@@ -69,17 +89,53 @@ public abstract class AbstractTransformation {
      * Instantiate a Transformation
      * 
      * @param transformationStep      the corresponding Transformation step
+     * @param inputSteps              the steps of the Transformations of which the outputs are used as inputs
      * @param settingsDependingOn     the settings on which the Transformation depend
      * @param isOutputImageVectorized indicate if the output image is vectorized
      */
-    public AbstractTransformation(TransformationStep transformationStep, Setting[] settingsDependingOn,
-            boolean isOutputImageVectorized) {
+    public AbstractTransformation(TransformationStep transformationStep, TransformationStep[] inputSteps,
+            Setting[] settingsDependingOn, boolean isOutputImageVectorized) {
         this.transformationStep = transformationStep;
+        this.inputSteps = inputSteps;
         this.settingsDependingOn = settingsDependingOn;
         this.isOutputImageVectorized = isOutputImageVectorized;
         this.settingsValues = Configuration.Instance.getCurrentSettings();
     }
 
+    /**
+     * Get the steps of the Transformations of which the outputs are used as inputs by this Transformation
+     * 
+     * @return the input Transformations steps
+     */
+    public final TransformationStep[] getInputSteps() {
+        return inputSteps;
+    }
+
+    /**
+     * Connect an input Transformation, which must correspond to one of the input steps
+     * 
+     * @param input the input Transformation to connect
+     */
+    public final void connectInput(AbstractTransformation input) {
+        for (TransformationStep inputStep : inputSteps) {
+            if (inputStep == input.getTransformationStep()) {
+                inputs.put(inputStep, input);
+                return;
+            }
+        }
+        System.err.println(input.getTransformationStep().name() + " is not an input of " + transformationStep.name());
+    }
+
+    /**
+     * Get the connected input Transformation corresponding to the specified step
+     * 
+     * @param inputStep the step of the input Transformation to retrieve
+     * @return the input Transformation corresponding to the specified step
+     */
+    protected final AbstractTransformation getInput(TransformationStep inputStep) {
+        return inputs.get(inputStep);
+    }
+
     /**
      * Get the settings which the Transformation depends on
      * 
@@ -132,6 +188,16 @@ public abstract class AbstractTransformation {
         return settingsValues;
     }
 
+    /**
+     * Get the scale at which the Transformation has been computed, lower than 1 for a preview
+     * 
+     * @return the scale at which the Transformation has been computed, 1 if computed at full resolution
+     */
+    public final double getPreviewScale() {
+        double previewScale = settingsValues != null ? settingsValues.getDoubleSetting(Setting.PREVIEW_SCALE) : 0;
+        return previewScale > 0 ? previewScale : 1;
+    }
+
     /**
      * Get the output image generated by the Transformation
      * 
@@ -174,28 +240,103 @@ public abstract class AbstractTransformation {
     }
 
     /**
-     * Trigger the update of the Transformation
+     * Trigger the update of the Transformation, from the outputs of its input Transformations
+     * 
+     * Note: if the update is aborted, the Transformation keeps its previous output and is not considered as done
+     * 
+     * @param settings          the settings with which to update the Transformation
+     * @param cancellationToken the token allowing to abort this update only, a new token being used for each update
+     */
+    public final void updateTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        isTransformationDone = false;
+        resultKey = null;
+        String newResultKey = computeResultKey(settings);
+        try {
+            Image newOutputImage = executeTransformation(settings, cancellationToken);
+            cancellationToken.throwIfCancelled();
+            outputImage = newOutputImage;
+            settingsValues = settings;
+            resultKey = newResultKey;
+            isTransformationDone = true;
+        } catch (CancellationException e) {
+            /* The update has been aborted, the Transformation will be updated again */
+            return;
+        }
+        for (TransformationResultChangeListener listener : listeners) {
+            listener.transformationResultChanged(this);
+        }
+    }
+
+    /**
+     * Restore a previously computed result of the Transformation, instead of updating it
      * 
-     * @param previousTransformation the previous Transformation, which this Transformation is then applied on the
-     *                               output image
-     * @param settings               the settings with which to update the Transformation
+     * @param result   the result to restore
+     * @param settings the settings with which the result has been computed
      */
-    public final void updateTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
+    public final void restoreResult(TransformationResult result, SettingsSet settings) {
         isTransformationDone = false;
-        outputImage = executeTransformation(previousTransformation, settings);
+        outputImage = result.getOutputImage();
+        outputColorPalette = result.getOutputColorPalette();
+        setSpecificResult(result.getSpecificResult());
         settingsValues = settings;
+        resultKey = result.getKey();
         isTransformationDone = true;
-        shouldAbortUpdate = false;
         for (TransformationResultChangeListener listener : listeners) {
             listener.transformationResultChanged(this);
         }
     }
 
     /**
-     * Abort the Transformation update
+     * Get a snapshot of the current result of the Transformation
+     * 
+     * @return the current result of the Transformation, or null if the Transformation is not complete
+     */
+    public final TransformationResult getResult() {
+        if (!isTransformationDone) {
+            return null;
+        }
+        return new TransformationResult(resultKey, outputImage, outputColorPalette, getSpecificResult(),
+                estimateSpecificResultSize());
+    }
+
+    /**
+     * Get the key identifying the current result of the Transformation
+     * 
+     * @return the key identifying the current result, or null if it cannot be identified
+     */
+    public final String getResultKey() {
+        return resultKey;
+    }
+
+    /**
+     * Compute the key identifying the result the Transformation would output with the specified settings, from the
+     * keys of its inputs results and the values of the settings it depends on
+     * 
+     * @param settings the settings with which the Transformation would be computed
+     * @return the key identifying the result, or null if an input result cannot be identified or if the result should
+     *         not be reused
      */
-    public final void abortUpdate() {
-        shouldAbortUpdate = true;
+    public final String computeResultKey(SettingsSet settings) {
+        if (!isResultReusable(settings)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(transformationStep.name());
+        for (TransformationStep inputStep : inputSteps) {
+            AbstractTransformation input = inputs.get(inputStep);
+            String inputResultKey = input != null ? input.getResultKey() : null;
+            if (inputResultKey == null) {
+                return null;
+            }
+            sb.append('|').append(inputStep.name()).append('=').append(inputResultKey);
+        }
+        for (Setting setting : settingsDependingOn) {
+            sb.append('|').append(setting.getName()).append('=').append(getSettingSignature(settings, setting));
+        }
+        sb.append("|inks=");
+        for (Ink ink : Ink.getAvailableInks()) {
+            sb.append(ink.getName()).append(':').append(ink.getColorAsHexString()).append(',');
+        }
+        return Utils.sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -217,14 +358,87 @@ public abstract class AbstractTransformation {
     }
 
     /**
-     * Execute the Transformation
+     * Execute the Transformation, the input Transformations being retrieved with getInput()
+     * 
+     * @param settings          the SettingsSet containing the settings with which to execute the Transformation
+     * @param cancellationToken the token to poll regularly, allowing to abort the execution
+     * @return the output image
+     * @throws CancellationException if the execution has been aborted
+     */
+    protected abstract Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken);
+
+    /**
+     * Indicate if a previously computed result can be reused instead of executing the Transformation with the
+     * specified settings, i.e. if executing it has no other side effect than producing its result
+     * 
+     * @param settings the settings with which the Transformation would be computed
+     * @return true if a previously computed result can be reused, false otherwise
+     */
+    protected boolean isResultReusable(SettingsSet settings) {
+        return true;
+    }
+
+    /**
+     * Get the signature of a setting value, used to identify the Transformation results
+     * 
+     * @param settings the settings with which the Transformation would be computed
+     * @param setting  the setting of which to get the signature
+     * @return the signature of the setting value, by default its canonical value
+     */
+    protected String getSettingSignature(SettingsSet settings, Setting setting) {
+        return settings.getCanonicalSetting(setting);
+    }
+
+    /**
+     * Get the result specific to the Transformation, i.e. other than its output image and color palette
      * 
-     * @param previousTransformation the previous Transformation, which this Transformation is then applied on the
-     *                               output image
-     * @param settings               the SettingsSet containing the settings with which to execute the Transformation
-     * @return
+     * Note: the returned object must not be modified by further updates
+     * 
+     * @return the result specific to the Transformation, or null if there is none
+     */
+    protected Object getSpecificResult() {
+        return null;
+    }
+
+    /**
+     * Set the result specific to the Transformation, as returned by getSpecificResult()
+     * 
+     * @param specificResult the result specific to the Transformation
+     */
+    protected void setSpecificResult(Object specificResult) {
+        /* nothing to do */
+    }
+
+    /**
+     * Estimate the size in memory of the result specific to the Transformation
+     * 
+     * @return the estimated size of the result specific to the Transformation, in bytes
      */
-    protected abstract Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings);
+    protected long estimateSpecificResultSize() {
+        return 0;
+    }
+
+    /**
+     * Write a result specific to the Transformation in a binary stream
+     * 
+     * @param specificResult the result specific to the Transformation, as returned by getSpecificResult()
+     * @param out            the stream in which to write the result
+     * @throws IOException if the result cannot be written
+     */
+    public void writeSpecificResult(Object specificResult, DataOutputStream out) throws IOException {
+        /* nothing to do */
+    }
+
+    /**
+     * Read a result specific to the Transformation from a binary stream, as written by writeSpecificResult()
+     * 
+     * @param in the stream from which to read the result
+     * @return the result specific to the Transformation
+     * @throws IOException if the result cannot be read
+     */
+    public Object readSpecificResult(DataInputStream in) throws IOException {
+        return null;
+    }
 
     /**
      * Draw the vectorized image output, if applicable
@@ -1,10 +1,15 @@
 package image_processing.transformations;
 
-import java.awt.image.BufferedImage;
-import java.util.HashMap;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 import common.engine.SettingsSet;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
+import image_processing.engine.LabelRaster;
 import image_processing.enums.ColorQuantizationMethod;
 import image_processing.enums.ColorSelectionMethod;
 import image_processing.enums.Setting;
@@ -21,55 +26,97 @@ import image_processing.generators.ImageGenerator;
 public class ColorQuantizationTransformation extends AbstractTransformation {
 
     /**
-     * An HashMap containing the quantized colors and their corresponding monochromes images
+     * The label raster of the quantized image, labeling each pixel with its quantized color
      */
-    private HashMap<Integer, BufferedImage> monochromesImagesPerColor = new HashMap<Integer, BufferedImage>();
+    private LabelRaster labelRaster;
 
     /**
      * Instantiate a Color Quantization Transformation
      */
     public ColorQuantizationTransformation() {
-        super(TransformationStep.COLOR_QUANTIZATION,
+        super(TransformationStep.COLOR_QUANTIZATION, new TransformationStep[] { TransformationStep.IMAGE_IMPORT },
                 new Setting[] { Setting.COLOR_SPACE, Setting.NB_QUANTIZATION_COLORS, Setting.BLURRING_RADIUS,
                         Setting.BLURRING_INTENSITY, Setting.COLOR_QUANTIZATION_METHOD, Setting.COLOR_SELECTION_METHOD },
                 false);
     }
 
     /**
-     * Get the monochromes images per quantized color corresponding to the Transformation
+     * Get the label raster of the quantized image corresponding to the Transformation
      * 
-     * @return an HashMap containing the quantized colors and their corresponding monochromes images
+     * @return the label raster of the quantized image, labeling each pixel with its quantized color
      */
-    public HashMap<Integer, BufferedImage> getMonochromesImagesPerColor() {
-        return monochromesImagesPerColor;
+    public LabelRaster getLabelRaster() {
+        return labelRaster;
     }
 
     @Override
-    public Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
-        Image inputImage = previousTransformation.getOutputImage();
+    protected void setSpecificResult(Object specificResult) {
+        labelRaster = (LabelRaster) specificResult;
+    }
+
+    @Override
+    protected Object getSpecificResult() {
+        return labelRaster;
+    }
+
+    @Override
+    protected long estimateSpecificResultSize() {
+        return labelRaster != null ? labelRaster.estimateSize() : 0;
+    }
+
+    @Override
+    public void writeSpecificResult(Object specificResult, DataOutputStream out) throws IOException {
+        ((LabelRaster) specificResult).writeTo(out);
+    }
+
+    @Override
+    public Object readSpecificResult(DataInputStream in) throws IOException {
+        return LabelRaster.readFrom(in);
+    }
+
+    @Override
+    public Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        Image inputImage = getInput(TransformationStep.IMAGE_IMPORT).getOutputImage();
 
         /* Generate the output color palette */
-        if (settings.getColorQuantizationMethodSetting(
-                Setting.COLOR_QUANTIZATION_METHOD) == ColorQuantizationMethod.USE_AVAILABLE_INKS) {
-            outputColorPalette = BrushPaletteGenerator
-                    .generateBrushPaletteFromInks(settings.getIntSetting(Setting.NB_QUANTIZATION_COLORS))
-                    .getInputColorPalette();
-        } else {
-            outputColorPalette = ColorPaletteGenerator.generateReducedPaletteColorFromImage(inputImage,
-                    settings.getIntSetting(Setting.NB_QUANTIZATION_COLORS),
-                    ColorQuantizationMethod.values()[settings.getIntSetting(Setting.COLOR_QUANTIZATION_METHOD)],
-                    ColorSelectionMethod.values()[settings.getIntSetting(Setting.COLOR_SELECTION_METHOD)]);
+        ExecutionMeasure paletteGenerationStage = ExecutionProfiler.Instance.startStage("Palette generation");
+        try {
+            if (settings.getColorQuantizationMethodSetting(
+                    Setting.COLOR_QUANTIZATION_METHOD) == ColorQuantizationMethod.USE_AVAILABLE_INKS) {
+                outputColorPalette = BrushPaletteGenerator
+                        .generateBrushPaletteFromInks(settings.getIntSetting(Setting.NB_QUANTIZATION_COLORS))
+                        .getInputColorPalette();
+            } else {
+                outputColorPalette = ColorPaletteGenerator.generateReducedPaletteColorFromImage(inputImage,
+                        settings.getIntSetting(Setting.NB_QUANTIZATION_COLORS),
+                        ColorQuantizationMethod.values()[settings.getIntSetting(Setting.COLOR_QUANTIZATION_METHOD)],
+                        ColorSelectionMethod.values()[settings.getIntSetting(Setting.COLOR_SELECTION_METHOD)],
+                        settings.getColorSpaceSetting(Setting.COLOR_SPACE), cancellationToken);
+            }
+        } finally {
+            paletteGenerationStage.stop();
         }
 
         /* Blur the image if needed, useful to get rid of small area of different colors */
-        Image blurredImage = ImageGenerator.generateBlurredImage(inputImage,
-                settings.getIntSetting(Setting.BLURRING_RADIUS), settings.getDoubleSetting(Setting.BLURRING_INTENSITY));
+        Image blurredImage;
+        ExecutionMeasure blurringStage = ExecutionProfiler.Instance.startStage("Blurring");
+        try {
+            blurredImage = ImageGenerator.generateBlurredImage(inputImage,
+                    settings.getIntSetting(Setting.BLURRING_RADIUS),
+                    settings.getDoubleSetting(Setting.BLURRING_INTENSITY), cancellationToken);
+        } finally {
+            blurringStage.stop();
+        }
 
         /* Re-color the image with the quantized color palette we just generated */
-        Image recoloredImage = ImageGenerator.generateRecoloredImage(blurredImage, outputColorPalette,
-                monochromesImagesPerColor, settings.getColorSpaceSetting(Setting.COLOR_SPACE));
-
-        return recoloredImage;
+        ExecutionMeasure recoloringStage = ExecutionProfiler.Instance.startStage("Recoloring");
+        try {
+            labelRaster = ImageGenerator.generateLabelRaster(blurredImage, outputColorPalette,
+                    settings.getColorSpaceSetting(Setting.COLOR_SPACE), cancellationToken);
+            return labelRaster.createColorImage(cancellationToken);
+        } finally {
+            recoloringStage.stop();
+        }
     }
 
 }
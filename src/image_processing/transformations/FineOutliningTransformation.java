@@ -4,8 +4,9 @@ import java.awt.Graphics2D;
 import java.awt.Stroke;
 import java.awt.geom.Line2D;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Vector;
 
 import common.engine.Ink;
@@ -15,11 +16,13 @@ import common.engine.SettingsSet;
 import common.engine.Utils;
 import image_processing.engine.Brush;
 import image_processing.engine.BrushPalette;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
-import image_processing.engine.canny.ImageUtils;
+import image_processing.engine.LabelRaster;
 import image_processing.enums.Setting;
 import image_processing.generators.ImageFineOutliner;
-import image_processing.session.Project;
 
 /**
  * Outline an image
@@ -34,12 +37,30 @@ public class FineOutliningTransformation extends AbstractTransformation {
      */
     private Vector<Path> outlinePaths = new Vector<Path>();
 
+    /**
+     * The Transformation whose outlines are drawn below the outline paths, for display purpose only: it is not an
+     * input, the outline paths not depending on it
+     */
+    private AbstractTransformation displayedOutlinesTransformation;
+
     /**
      * Instantiate a Fine Outlining Transformation
      */
     public FineOutliningTransformation() {
         super(TransformationStep.FINE_OUTLINING,
-                new Setting[] { Setting.ENABLE_FINE_OUTLINING, Setting.PEN_TIP_DIAMETER }, true);
+                new TransformationStep[] { TransformationStep.COLOR_QUANTIZATION },
+                new Setting[] { Setting.ENABLE_FINE_OUTLINING, Setting.PEN_TIP_DIAMETER, Setting.BRUSH_PALETTES,
+                        Setting.ID_SELECTED_BRUSH_PALETTE },
+                true);
+    }
+
+    /**
+     * Set the Transformation whose outlines are drawn below the outline paths, without making it an input
+     * 
+     * @param displayedOutlinesTransformation the Transformation whose output image is drawn, or null to draw none
+     */
+    public void setDisplayedOutlinesTransformation(AbstractTransformation displayedOutlinesTransformation) {
+        this.displayedOutlinesTransformation = displayedOutlinesTransformation;
     }
 
     /**
@@ -51,18 +72,69 @@ public class FineOutliningTransformation extends AbstractTransformation {
         return outlinePaths;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void setSpecificResult(Object specificResult) {
+        outlinePaths = (Vector<Path>) specificResult;
+    }
+
+    @Override
+    protected Object getSpecificResult() {
+        return outlinePaths;
+    }
+
+    @Override
+    protected long estimateSpecificResultSize() {
+        long size = 0;
+        for (Path path : outlinePaths) {
+            size += path.getEstimatedSize();
+        }
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeSpecificResult(Object specificResult, DataOutputStream out) throws IOException {
+        Vector<Path> paths = (Vector<Path>) specificResult;
+        out.writeInt(paths.size());
+        for (Path path : paths) {
+            path.writeTo(out);
+        }
+    }
+
+    @Override
+    public Object readSpecificResult(DataInputStream in) throws IOException {
+        int nbPaths = in.readInt();
+        Vector<Path> paths = new Vector<Path>(nbPaths);
+        for (int idPath = 0; idPath < nbPaths; idPath++) {
+            paths.add(Path.readFrom(in));
+        }
+        return paths;
+    }
+
     @Override
     public void drawVectorizedImageOutput(Graphics2D g) {
-        /* Draw the thick outlining transformation output image */
-        g.setColor(Ink.getBlackestAvailableInk().getColor());
-        Image thickOutlineImg = Project.Instance.getTransformation(TransformationStep.THICK_OUTLINING).getOutputImage();
+        /* Draw the thinned thick outlining output image, for display purpose only */
+        Image thickOutlineImg = displayedOutlinesTransformation != null
+                ? displayedOutlinesTransformation.getOutputImage()
+                : null;
         if (thickOutlineImg != null) {
             g.drawImage(thickOutlineImg.getBufferedImage(), 0, 0, null);
         }
 
-        /* Draw the fine outlining paths */
+        drawOutlinePaths(g, settingsValues.getDoubleSetting(Setting.PEN_TIP_DIAMETER));
+    }
+
+    /**
+     * Draw the fine outlining paths
+     * 
+     * @param g              the Graphics2D object with which to draw the paths
+     * @param penTipDiameter the pen tip diameter, in mm
+     */
+    private void drawOutlinePaths(Graphics2D g, double penTipDiameter) {
+        g.setColor(Ink.getBlackestAvailableInk().getColor());
         Stroke defaultStroke = g.getStroke();
-        g.setStroke(Utils.getPenStrokeInMm(settingsValues.getDoubleSetting(Setting.PEN_TIP_DIAMETER)));
+        g.setStroke(Utils.getPenStrokeInMm(penTipDiameter));
         for (Path path : outlinePaths) {
             for (Line line : path.getLines()) {
                 g.draw(new Line2D.Double(line.x0, line.y0, line.x1, line.y1));
@@ -72,42 +144,48 @@ public class FineOutliningTransformation extends AbstractTransformation {
     }
 
     @Override
-    protected Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
-        ColorQuantizationTransformation cqt = (ColorQuantizationTransformation) Project.Instance
-                .getTransformation(TransformationStep.COLOR_QUANTIZATION);
+    protected Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        ColorQuantizationTransformation cqt = (ColorQuantizationTransformation) getInput(
+                TransformationStep.COLOR_QUANTIZATION);
         if (settings.getBoolSetting(Setting.ENABLE_FINE_OUTLINING)) {
             /* The fine outlining is enabled, compute it */
-            HashMap<Integer, BufferedImage> monochromesImagesPerColor = cqt.getMonochromesImagesPerColor();
+            LabelRaster labelRaster = cqt.getLabelRaster();
             BrushPalette brushPalette = settings.getSelectedBrushPalette();
 
-            /* Merge all the monochromes images for which the fine outlining is enabled into a single one */
-            Vector<BufferedImage> imagesToOutline = new Vector<BufferedImage>();
-            for (Entry<Integer, BufferedImage> entry : monochromesImagesPerColor.entrySet()) {
-                int color = entry.getKey();
-                Brush brush = brushPalette.getBrushByInputColor(color);
-                if (brush != null && brush.isFineOutliningEnabled()) {
-                    imagesToOutline.add(entry.getValue());
-                }
+            /* Merge all the quantized colors for which the fine outlining is enabled into a single image */
+            boolean[] labelsToOutline = new boolean[labelRaster.getNbLabels()];
+            for (int label = 0; label < labelRaster.getNbLabels(); label++) {
+                Brush brush = brushPalette.getBrushByInputColor(labelRaster.getColor(label));
+                labelsToOutline[label] = brush != null && brush.isFineOutliningEnabled();
+            }
+            BufferedImage img;
+            ExecutionMeasure mergingStage = ExecutionProfiler.Instance.startStage("Merging");
+            try {
+                img = labelRaster.createMergedImage(labelsToOutline, 0x000000, cancellationToken);
+            } finally {
+                mergingStage.stop();
             }
-            BufferedImage img = ImageUtils.mergeImages(imagesToOutline.toArray(new BufferedImage[0]), 0x00000000);
 
             /* Compute the fine outline on the merged image */
-            outlinePaths = ImageFineOutliner.generateImageFineOutlinePaths(img);
-            int W = previousTransformation.getOutputImage().getWidth();
-            int H = previousTransformation.getOutputImage().getHeight();
-            BufferedImage outlineImg = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
-            drawVectorizedImageOutput((Graphics2D) outlineImg.getGraphics());
-
-            /* Merge the thick and fine outlining results into a single image */
-            BufferedImage mergedThickAndFineOutlinings = ImageUtils.mergeImages(
-                    new BufferedImage[] { outlineImg, previousTransformation.getOutputImage().getBufferedImage() },
-                    0x00000000);
-
-            return new Image(mergedThickAndFineOutlinings);
+            ExecutionMeasure fineOutliningStage = ExecutionProfiler.Instance.startStage("Fine outlining");
+            try {
+                outlinePaths = ImageFineOutliner.generateImageFineOutlinePaths(img, cancellationToken);
+            } finally {
+                fineOutliningStage.stop();
+            }
+            if (outlinePaths == null) {
+                /* No color to outline */
+                outlinePaths = new Vector<Path>();
+            }
         } else {
-            /* The fine outlining is disabled, return the previous transformation output image */
-            outlinePaths.clear();
-            return previousTransformation.getOutputImage();
+            /* The fine outlining is disabled */
+            outlinePaths = new Vector<Path>();
         }
+
+        /* Render the fine outline paths only, the thick outlining being computed independently */
+        BufferedImage outlineImg = new BufferedImage(cqt.getOutputImage().getWidth(),
+                cqt.getOutputImage().getHeight(), BufferedImage.TYPE_INT_ARGB);
+        drawOutlinePaths((Graphics2D) outlineImg.getGraphics(), settings.getDoubleSetting(Setting.PEN_TIP_DIAMETER));
+        return new Image(outlineImg);
     }
 }
@@ -1,28 +1,240 @@
 package image_processing.transformations;
 
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
 import common.engine.SettingsSet;
+import common.engine.Utils;
+import image_processing.engine.CancellationToken;
 import image_processing.engine.Image;
 import image_processing.enums.Setting;
+import image_processing.generators.ImageGenerator;
 
 /**
  * A Transformation that simply import an image from a file
  * 
+ * If an import scale is set, the image is imported at a lower resolution: it is decoded subsampled, then downscaled by
+ * averaging, so that the following Transformations only process the pixels the Plotter can reproduce
+ * 
+ * If a preview scale is set, the image is downscaled, so that the following Transformations compute a quick preview
+ * 
  * @author Terence
  *
  */
 public class ImageImportTransformation extends AbstractTransformation {
 
+    /**
+     * The content hashes of the imported files, per file path and version
+     */
+    private static final HashMap<String, String> filesHashes = new HashMap<String, String>();
+
+    /**
+     * The number of pixels per finest detail drawn by the Plotter needed to keep the detail in the imported image, as
+     * per the Nyquist-Shannon sampling theorem
+     */
+    private static final double USEFUL_PIXELS_PER_DETAIL = 2;
+
+    /**
+     * The oversampling with which a downscaled image is decoded, before being downscaled by averaging
+     */
+    private static final int DECODING_OVERSAMPLING = 2;
+
+    /**
+     * The last image imported at full resolution, reused by the previews and the full resolution import following them
+     */
+    private Image sourceImage;
+
+    /**
+     * The path, version and import scale of the file from which the source image has been imported
+     */
+    private String sourceImageFileVersion;
+
     /**
      * Instantiate an Image Import Transformation
      */
     public ImageImportTransformation() {
-        super(TransformationStep.IMAGE_IMPORT, new Setting[] { Setting.IMAGE_FILE }, false);
+        super(TransformationStep.IMAGE_IMPORT, new TransformationStep[] {},
+                new Setting[] { Setting.IMAGE_FILE, Setting.IMPORT_SCALE, Setting.PREVIEW_SCALE }, false);
+
+    }
 
+    @Override
+    protected String getSettingSignature(SettingsSet settings, Setting setting) {
+        if (setting != Setting.IMAGE_FILE) {
+            return super.getSettingSignature(settings, setting);
+        }
+
+        /* Identify the image by its content rather than its path, hashing it only once per file version */
+        File imageFile = settings.getFileSetting(Setting.IMAGE_FILE);
+        if (imageFile == null || !imageFile.isFile()) {
+            return "";
+        }
+        String fileVersion = imageFile.getAbsolutePath() + "@" + imageFile.length() + "@" + imageFile.lastModified();
+        synchronized (filesHashes) {
+            String fileHash = filesHashes.get(fileVersion);
+            if (fileHash == null) {
+                try {
+                    fileHash = Utils.sha256(imageFile);
+                } catch (IOException e) {
+                    System.err.println("Cannot hash " + imageFile.getAbsolutePath());
+                    return fileVersion;
+                }
+                filesHashes.put(fileVersion, fileHash);
+            }
+            return fileHash;
+        }
     }
 
     @Override
-    protected Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
-        return new Image(settings.getFileSetting(Setting.IMAGE_FILE));
+    protected Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        File imageFile = settings.getFileSetting(Setting.IMAGE_FILE);
+        double importScale = getImportScale(settings);
+        String fileVersion = imageFile.getAbsolutePath() + "@" + imageFile.length() + "@" + imageFile.lastModified()
+                + "@" + importScale;
+        if (sourceImage == null || !fileVersion.equals(sourceImageFileVersion)) {
+            sourceImage = null; /* release the previous image before importing the new one */
+            sourceImage = importScale < 1 ? readDownscaledImage(imageFile, importScale, cancellationToken)
+                    : new Image(imageFile);
+            sourceImageFileVersion = fileVersion;
+        }
+
+        double previewScale = settings.getDoubleSetting(Setting.PREVIEW_SCALE);
+        if (previewScale > 0 && previewScale < 1) {
+            return ImageGenerator.generateDownscaledImage(sourceImage, previewScale, cancellationToken);
+        }
+        return sourceImage;
+    }
+
+    /**
+     * Read an image file at a lower resolution: the image is decoded subsampled, keeping DECODING_OVERSAMPLING times
+     * the pixels needed, then downscaled by averaging to reduce the aliasing of the subsampling
+     * 
+     * @param imageFile         the image file to read
+     * @param scale             the scale at which to read the image, between 0 and 1
+     * @param cancellationToken the token to poll, allowing to abort the reading
+     * @return the downscaled image
+     */
+    private static Image readDownscaledImage(File imageFile, double scale, CancellationToken cancellationToken) {
+        int subsampling = Math.max(1, (int) Math.floor(1 / (scale * DECODING_OVERSAMPLING)));
+        Image decodedImage = null;
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageFile)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage img = reader.read(0, param);
+                    decodedImage = new Image(img);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot decode " + imageFile.getAbsolutePath() + " subsampled");
+        }
+        if (decodedImage == null) {
+            decodedImage = new Image(imageFile);
+            subsampling = 1;
+        }
+        cancellationToken.throwIfCancelled();
+        return ImageGenerator.generateDownscaledImage(decodedImage, scale * subsampling, cancellationToken);
+    }
+
+    /**
+     * Get the scale at which the source image is imported
+     * 
+     * @param settings the settings with which the source image is imported
+     * @return the scale at which the source image is imported, 1 if imported at full resolution
+     */
+    public static double getImportScale(SettingsSet settings) {
+        double importScale = settings.getDoubleSetting(Setting.IMPORT_SCALE);
+        return importScale > 0 ? importScale : 1;
+    }
+
+    /**
+     * Get the maximum useful resolution of the source image, i.e. the resolution at which the finest details the
+     * Plotter can draw are kept: the finest detail is the largest of the pen tip diameter and of the minimum space
+     * between two lines
+     * 
+     * @param settings the settings with which the Transformations are computed
+     * @return the maximum useful resolution, in DPI, or 0 if it cannot be computed from the settings
+     */
+    public static double getUsefulDpi(SettingsSet settings) {
+        double lpmmMax = settings.getDoubleSetting(Setting.LPMM_MAX);
+        double detailSize = Math.max(settings.getDoubleSetting(Setting.PEN_TIP_DIAMETER),
+                lpmmMax > 0 ? 1 / lpmmMax : 0);
+        return detailSize > 0 ? USEFUL_PIXELS_PER_DETAIL * 25.4 / detailSize : 0;
+    }
+
+    /**
+     * Get the settings with which to compute the Transformations: if the import resolution is limited and the source
+     * image is finer than the maximum useful resolution, it is imported at the useful resolution, and its DPI scaled
+     * accordingly so that the Transformations dimensions in mm are kept
+     * 
+     * @param settings the settings set by the user
+     * @return the settings with which to compute the Transformations
+     */
+    public static SettingsSet getImportSettings(SettingsSet settings) {
+        int imageDpi = settings.getIntSetting(Setting.IMAGE_DPI);
+        int usefulDpi = (int) Math.ceil(getUsefulDpi(settings));
+        if (!settings.getBoolSetting(Setting.LIMIT_IMPORT_RESOLUTION) || usefulDpi <= 0 || usefulDpi >= imageDpi) {
+            return settings;
+        }
+        return settings.withSettingValue(Setting.IMPORT_SCALE, (double) usefulDpi / imageDpi)
+                .withSettingValue(Setting.IMAGE_DPI, usefulDpi);
+    }
+
+    /**
+     * Get the settings set by the user from the settings with which the Transformations have been computed, i.e.
+     * revert the changes of getImportSettings()
+     * 
+     * @param settings the settings with which the Transformations have been computed
+     * @return the settings set by the user
+     */
+    public static SettingsSet getUserSettings(SettingsSet settings) {
+        if (!settings.has(Setting.IMPORT_SCALE)) {
+            return settings;
+        }
+        return settings.withoutSetting(Setting.IMPORT_SCALE).withSettingValue(Setting.IMAGE_DPI,
+                (int) Math.round(settings.getIntSetting(Setting.IMAGE_DPI) / getImportScale(settings)));
+    }
+
+    /**
+     * Read the dimensions of an image file, without decoding the whole image
+     * 
+     * @param imageFile the image file of which to read the dimensions
+     * @return the dimensions of the image, in pixels, or null if they cannot be read
+     */
+    public static Dimension readImageDimensions(File imageFile) {
+        if (imageFile == null || !imageFile.isFile()) {
+            return null;
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageFile)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
     }
 
 }
@@ -4,6 +4,9 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Stroke;
 import java.awt.geom.Line2D;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map.Entry;
@@ -16,9 +19,11 @@ import common.engine.SettingsSet;
 import common.engine.Utils;
 import image_processing.engine.Brush;
 import image_processing.engine.BrushPalette;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
 import image_processing.enums.Setting;
-import image_processing.session.Project;
 
 /**
  * A Transformation that generate the pens Paths
@@ -45,8 +50,10 @@ public class PathsGenerationTransformation extends AbstractTransformation {
      */
     public PathsGenerationTransformation() {
         super(TransformationStep.PATHS_GENERATION,
+                new TransformationStep[] { TransformationStep.COLOR_QUANTIZATION, TransformationStep.THINNING,
+                        TransformationStep.FINE_OUTLINING },
                 new Setting[] { Setting.LPMM_MAX, Setting.BRUSH_PALETTES, Setting.ID_SELECTED_BRUSH_PALETTE,
-                        Setting.OUTLINE_LPMM, Setting.CLEAR_Z_HEIGHT, Setting.MIN_SEGMENT_LENGTH },
+                        Setting.OUTLINE_LPMM, Setting.CLEAR_Z_HEIGHT, Setting.MIN_SEGMENT_LENGTH, Setting.IMAGE_DPI },
                 true);
     }
 
@@ -59,13 +66,45 @@ public class PathsGenerationTransformation extends AbstractTransformation {
         return pathsPerInk;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void setSpecificResult(Object specificResult) {
+        pathsPerInk = (HashMap<Ink, Path>) specificResult;
+    }
+
+    @Override
+    protected Object getSpecificResult() {
+        return pathsPerInk;
+    }
+
+    @Override
+    protected long estimateSpecificResultSize() {
+        long size = 0;
+        for (Path path : pathsPerInk.values()) {
+            size += path.getEstimatedSize();
+        }
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeSpecificResult(Object specificResult, DataOutputStream out) throws IOException {
+        Path.writePathsPerInk((HashMap<Ink, Path>) specificResult, out);
+    }
+
+    @Override
+    public Object readSpecificResult(DataInputStream in) throws IOException {
+        return Path.readPathsPerInk(in);
+    }
+
     /**
      * Generate an optimized path from the specified path by reordering the segments to minimize the flying cost
      * 
-     * @param path the path from which to generate the optimized one
+     * @param path              the path from which to generate the optimized one
+     * @param cancellationToken the token to poll, allowing to abort the generation
      * @return the optimized path
      */
-    private Path generateOptimizedPath(Path path) {
+    private Path generateOptimizedPath(Path path, CancellationToken cancellationToken) {
         if (path.getNbLines() == 0) {
             return path;
         }
@@ -74,6 +113,7 @@ public class PathsGenerationTransformation extends AbstractTransformation {
         Line lastLine = remainingLines.remove(0);
         continuousPath.addLine(lastLine);
         while (remainingLines.size() > 0) {
+            cancellationToken.throwIfCancelled();
             int idClosestLine = 0;
             double smallestCost = Double.MAX_VALUE;
             for (int idLine = 0; idLine < remainingLines.size(); idLine++) {
@@ -99,9 +139,11 @@ public class PathsGenerationTransformation extends AbstractTransformation {
      * 
      * @param pathsPerInk          the paths per ink
      * @param minSegmentLengthInMm the minimum length in mm a path segment must have to be kept
+     * @param cancellationToken    the token to poll, allowing to abort the cleaning
      * @return an HashMap containing the paths per ink cleaned from the paths segments too shord
      */
-    private HashMap<Ink, Path> removeSegmentsTooShort(HashMap<Ink, Path> pathsPerInk, double minSegmentLengthInMm) {
+    private HashMap<Ink, Path> removeSegmentsTooShort(HashMap<Ink, Path> pathsPerInk, double minSegmentLengthInMm,
+            CancellationToken cancellationToken) {
         if (minSegmentLengthInMm == 0) {
             return pathsPerInk;
         }
@@ -135,7 +177,7 @@ public class PathsGenerationTransformation extends AbstractTransformation {
 //            cleanedPathsPerInk.put(entry.getKey(), cleanedPathBis);
 
             // Path path = entry.getValue();
-            Path path = generateOptimizedPath(entry.getValue());
+            Path path = generateOptimizedPath(entry.getValue(), cancellationToken);
             Path cleanedPath = new Path(path.getZClearHeight());
             for (int idLine = 0; idLine < path.getNbLines(); idLine++) {
                 Line line = path.getLine(idLine);
@@ -224,14 +266,15 @@ public class PathsGenerationTransformation extends AbstractTransformation {
     /**
      * Generate the pens paths
      * 
-     * @param img          the image from which to generate the paths
-     * @param brushPalette the Brush Palette to use
-     * @param lpmmMax      the maximum number of lines per mm
-     * @param imageDpi     the image DPI
-     * @param pathsPerInk  the paths per ink
+     * @param img               the image from which to generate the paths
+     * @param brushPalette      the Brush Palette to use
+     * @param lpmmMax           the maximum number of lines per mm
+     * @param imageDpi          the image DPI
+     * @param pathsPerInk       the paths per ink
+     * @param cancellationToken the token to poll, allowing to abort the generation
      */
     private void generatePaths(Image img, BrushPalette brushPalette, double lpmmMax, int imageDpi,
-            HashMap<Ink, Path> pathsPerInk) {
+            HashMap<Ink, Path> pathsPerInk, CancellationToken cancellationToken) {
         double W = Utils.pxToMm(img.getWidth(), imageDpi);
         double H = Utils.pxToMm(img.getHeight(), imageDpi);
         int nbBrushes = brushPalette.getNbBrushes();
@@ -258,9 +301,7 @@ public class PathsGenerationTransformation extends AbstractTransformation {
             }
             int nbLines = (int) Math.ceil((yTo - yFrom) / deltaY);
             for (int idLine = 0; idLine < nbLines; idLine++) {
-                if (shouldAbortUpdate) {
-                    return;
-                }
+                cancellationToken.throwIfCancelled();
                 Vector<Line> segmentsInLine = new Vector<Line>(); // TODO-048: find better names
                 setProgression((double) idBrush / nbBrushes + (double) idLine / nbLines / nbBrushes, false);
                 double xStart = a != 90 ? 0 : idLine * p;
@@ -326,31 +367,40 @@ public class PathsGenerationTransformation extends AbstractTransformation {
     }
 
     @Override
-    protected Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
+    protected Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
         int imageDpi = settings.getIntSetting(Setting.IMAGE_DPI);
         /* clear paths */
-        pathsPerInk.clear();
+        pathsPerInk = new HashMap<Ink, Path>();
         for (Ink ink : Ink.getAvailableInks()) {
             pathsPerInk.put(ink, new Path(settings.getDoubleSetting(Setting.CLEAR_Z_HEIGHT)));
         }
 
         /* generate image paths */
-        Image colorQuantizedImage = Project.Instance.getTransformation(TransformationStep.COLOR_QUANTIZATION)
-                .getOutputImage();
-        generatePaths(colorQuantizedImage, settings.getSelectedBrushPalette(),
-                settings.getDoubleSetting(Setting.LPMM_MAX), imageDpi, pathsPerInk);
+        Image colorQuantizedImage = getInput(TransformationStep.COLOR_QUANTIZATION).getOutputImage();
+        ExecutionMeasure imagePathsStage = ExecutionProfiler.Instance.startStage("Image paths");
+        try {
+            generatePaths(colorQuantizedImage, settings.getSelectedBrushPalette(),
+                    settings.getDoubleSetting(Setting.LPMM_MAX), imageDpi, pathsPerInk, cancellationToken);
+        } finally {
+            imagePathsStage.stop();
+        }
 
         /* generate thick outline paths */
         BrushPalette outlineBrushPalette = new BrushPalette();
         for (Ink ink : Ink.getAvailableInks()) {
             outlineBrushPalette.addBrush(new Brush(ink.getColorAsRgb(), ink, 1, 45, false, false));
         }
-        generatePaths(Project.Instance.getTransformation(TransformationStep.THICK_OUTLINING).getOutputImage(),
-                outlineBrushPalette, settings.getDoubleSetting(Setting.OUTLINE_LPMM), imageDpi, pathsPerInk);
+        ExecutionMeasure thickOutlinePathsStage = ExecutionProfiler.Instance.startStage("Thick outline paths");
+        try {
+            generatePaths(getInput(TransformationStep.THINNING).getOutputImage(), outlineBrushPalette,
+                    settings.getDoubleSetting(Setting.OUTLINE_LPMM), imageDpi, pathsPerInk, cancellationToken);
+        } finally {
+            thickOutlinePathsStage.stop();
+        }
 
         /* add fine outline paths */
-        FineOutliningTransformation fineOutliningTr = (FineOutliningTransformation) Project.Instance
-                .getTransformation(TransformationStep.FINE_OUTLINING);
+        FineOutliningTransformation fineOutliningTr = (FineOutliningTransformation) getInput(
+                TransformationStep.FINE_OUTLINING);
         for (Path pathInPx : fineOutliningTr.getOutlinePaths()) {
             Path pathInMm = pathInPx.convertFromPxToMm(imageDpi);
             for (Line line : pathInMm.getLines()) {
@@ -359,7 +409,13 @@ public class PathsGenerationTransformation extends AbstractTransformation {
         }
 
         /* remove segments too short */
-        pathsPerInk = removeSegmentsTooShort(pathsPerInk, settings.getDoubleSetting(Setting.MIN_SEGMENT_LENGTH));
+        ExecutionMeasure segmentsCleaningStage = ExecutionProfiler.Instance.startStage("Segments cleaning");
+        try {
+            pathsPerInk = removeSegmentsTooShort(pathsPerInk,
+                    settings.getDoubleSetting(Setting.MIN_SEGMENT_LENGTH), cancellationToken);
+        } finally {
+            segmentsCleaningStage.stop();
+        }
 
         return null;
     }
@@ -5,6 +5,8 @@ import java.awt.Graphics2D;
 import java.awt.Stroke;
 import java.awt.geom.Line2D;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -19,12 +21,13 @@ import common.engine.Line;
 import common.engine.Path;
 import common.engine.SettingsSet;
 import common.engine.Utils;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
 import image_processing.enums.OutputMirroring;
 import image_processing.enums.OutputPosition;
 import image_processing.enums.Setting;
-import image_processing.session.Configuration;
-import image_processing.session.Project;
 import streaming.enums.PlotterSetting;
 import streaming.session.PlotterConfiguration;
 
@@ -57,7 +60,9 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
      * Instantiate a Paths Optimization Transformation
      */
     public PathsOptimizationTransformation() {
-        super(TransformationStep.PATHS_OPTIMIZATION, new Setting[] {}, true);
+        super(TransformationStep.PATHS_OPTIMIZATION,
+                new TransformationStep[] { TransformationStep.PATHS_GENERATION, TransformationStep.IMAGE_IMPORT },
+                new Setting[] {}, true);
     }
 
     /**
@@ -78,24 +83,100 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
         return optimizedPathsPerInk;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void setSpecificResult(Object specificResult) {
+        originalPathsPerInk = (HashMap<Ink, Path>) ((Object[]) specificResult)[0];
+        optimizedPathsPerInk = (HashMap<Ink, Path>) ((Object[]) specificResult)[1];
+    }
+
+    @Override
+    protected Object getSpecificResult() {
+        return new Object[] { originalPathsPerInk, optimizedPathsPerInk };
+    }
+
+    @Override
+    protected long estimateSpecificResultSize() {
+        /* Only count the optimized paths, the original ones belonging to the Paths Generation result */
+        long size = 0;
+        for (Entry<Ink, Path> entry : optimizedPathsPerInk.entrySet()) {
+            if (entry.getValue() != originalPathsPerInk.get(entry.getKey())) {
+                size += entry.getValue().getEstimatedSize();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeSpecificResult(Object specificResult, DataOutputStream out) throws IOException {
+        HashMap<Ink, Path> originalPaths = (HashMap<Ink, Path>) ((Object[]) specificResult)[0];
+        HashMap<Ink, Path> optimizedPaths = (HashMap<Ink, Path>) ((Object[]) specificResult)[1];
+        Path.writePathsPerInk(originalPaths, out);
+
+        /* Only write the paths that have been optimized, the other ones being shared with the original paths */
+        out.writeInt(optimizedPaths.size());
+        for (Entry<Ink, Path> entry : optimizedPaths.entrySet()) {
+            out.writeUTF(entry.getKey().getName());
+            boolean isPathOptimized = entry.getValue() != originalPaths.get(entry.getKey());
+            out.writeBoolean(isPathOptimized);
+            if (isPathOptimized) {
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+
+    @Override
+    public Object readSpecificResult(DataInputStream in) throws IOException {
+        HashMap<Ink, Path> originalPaths = Path.readPathsPerInk(in);
+        HashMap<Ink, Path> optimizedPaths = new HashMap<Ink, Path>();
+        int nbPaths = in.readInt();
+        for (int idPath = 0; idPath < nbPaths; idPath++) {
+            String inkName = in.readUTF();
+            Ink ink = Ink.getAvailableInkByName(inkName);
+            if (ink == null) {
+                throw new IOException("Unavailable ink " + inkName);
+            }
+            optimizedPaths.put(ink, in.readBoolean() ? Path.readFrom(in) : originalPaths.get(ink));
+        }
+        return new Object[] { originalPaths, optimizedPaths };
+    }
+
     /**
-     * Export the G-Code corresponding to the optimized paths
+     * Export the G-Code corresponding to the optimized paths, in a directory named after the image within the working
+     * directory
      */
     public void exportGCode() {
+        exportGCode(new File("."));
+    }
+
+    /**
+     * Export the G-Code corresponding to the optimized paths, along with the settings used to generate them
+     * 
+     * @param outputDirectory the directory in which to create the export directory, named after the image
+     * @return true if the G-Code has been exported, false otherwise
+     */
+    public boolean exportGCode(File outputDirectory) {
         /* create export directory */
         String projectName = settingsValues.getFileSetting(Setting.IMAGE_FILE).getName();
         projectName = projectName.substring(0, projectName.lastIndexOf("."));
-        File exportDir = new File(projectName);
-        if (exportDir.exists()) {
-            exportDir.delete();
+        File exportDir = new File(outputDirectory, projectName);
+        if (!exportDir.isDirectory() && !exportDir.mkdirs()) {
+            System.err.println("Cannot create the export directory " + exportDir.getAbsolutePath());
+            return false;
+        }
+        try {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(new File(exportDir, projectName + ".json")));
+            bw.write(ImageImportTransformation.getUserSettings(settingsValues).toJSonObject().toString());
+            bw.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        exportDir.mkdir();
-        Configuration.Instance.save(projectName + "/" + projectName);
 
         /* generate and export G-Code */
         int imageDpi = settingsValues.getIntSetting(Setting.IMAGE_DPI);
         int rotationAngle = settingsValues.getOutputRotationSetting(Setting.OUTPUT_ROTATION).getAngle();
-        Image originalImage = Project.Instance.getTransformation(TransformationStep.IMAGE_IMPORT).getOutputImage();
+        Image originalImage = getInput(TransformationStep.IMAGE_IMPORT).getOutputImage();
         double xMax = Utils.pxToMm(originalImage.getWidth(), imageDpi);
         double yMax = Utils.pxToMm(originalImage.getHeight(), imageDpi);
         OutputPosition position = settingsValues.getOutputPositionSetting(Setting.OUTPUT_POSITION);
@@ -114,7 +195,7 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
             nbLinesToGenerate += path.getNbLines();
         }
         try {
-            String filename = projectName + "/" + projectName + ".gcode";
+            String filename = new File(exportDir, projectName + ".gcode").getPath();
             BufferedWriter allColorsBw = new BufferedWriter(new FileWriter(filename));
             double feedrate = Utils.speedToFeedrate(
                     PlotterConfiguration.Instance.getDoubleSettingValue(PlotterSetting.FLYING_XY_MAX_SPEED),
@@ -122,7 +203,7 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
             String header = String.format(Locale.US, "G21 (use mm)\nG90 (use absolute coordinates)\nF%.0f\n", feedrate);
             allColorsBw.write(header);
             for (Ink ink : Ink.getAvailableInks()) {
-                filename = projectName + "/" + projectName + "-" + ink.getName() + ".gcode";
+                filename = new File(exportDir, projectName + "-" + ink.getName() + ".gcode").getPath();
                 Path path = optimizedPathsPerInk.get(ink);
                 if (path.getNbLines() > 0) {
                     allColorsBw.write(String.format(Locale.US, "T%d M6 ;change pen color: %s\n", ink.getColorAsRgb(),
@@ -169,8 +250,10 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
             allColorsBw.close();
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
         setProgression("Done", 1.0, false);
+        return true;
     }
 
     /**
@@ -194,8 +277,10 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
      * @param ink               the ink of the path to optimize
      * @param idPathToOptimize  the id of the path to optimize (useful for computing to overall progression)
      * @param nbPathsToOptimize the number of paths to optimize (useful for computing to overall progression)
+     * @param cancellationToken the token to poll, allowing to abort the optimization
      */
-    public void optimizePath(Ink ink, int idPathToOptimize, int nbPathsToOptimize) {
+    public void optimizePath(Ink ink, int idPathToOptimize, int nbPathsToOptimize,
+            CancellationToken cancellationToken) {
         if (DISABLE_PATH_OPTIMIZATION) {
             this.setProgression(1, true);
             return;
@@ -246,9 +331,7 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
                 System.out.println("generation " + idGen + " -----------------");
                 this.setProgression((double) idPathToOptimize / nbPathsToOptimize
                         + (double) idGen / NB_GENERATIONS / nbPathsToOptimize, true);
-                if (shouldAbortUpdate) {
-                    return;
-                }
+                cancellationToken.throwIfCancelled();
                 /* selection by roulette wheel */
                 int idBestPath = 0;
                 double bestFitness = 0;
@@ -483,14 +566,20 @@ public class PathsOptimizationTransformation extends AbstractTransformation {
     }
 
     @Override
-    protected Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
-        originalPathsPerInk = ((PathsGenerationTransformation) previousTransformation).getPathsPerInk();
-        optimizedPathsPerInk = (HashMap<Ink, Path>) ((PathsGenerationTransformation) previousTransformation)
-                .getPathsPerInk().clone();
+    protected Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        PathsGenerationTransformation pathsGenerationTr = (PathsGenerationTransformation) getInput(
+                TransformationStep.PATHS_GENERATION);
+        originalPathsPerInk = pathsGenerationTr.getPathsPerInk();
+        optimizedPathsPerInk = (HashMap<Ink, Path>) pathsGenerationTr.getPathsPerInk().clone();
         int idInk = 0;
         for (Entry<Ink, Path> entry : optimizedPathsPerInk.entrySet()) {
             Ink ink = entry.getKey();
-            optimizePath(ink, idInk, optimizedPathsPerInk.size());
+            ExecutionMeasure optimizationStage = ExecutionProfiler.Instance.startStage("Optimization " + ink.getName());
+            try {
+                optimizePath(ink, idInk, optimizedPathsPerInk.size(), cancellationToken);
+            } finally {
+                optimizationStage.stop();
+            }
             idInk++;
         }
         return null;
@@ -2,6 +2,9 @@ package image_processing.transformations;
 
 import common.engine.SettingsSet;
 import image_processing.engine.BrushPalette;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
 import image_processing.enums.Setting;
 import image_processing.generators.BrushPaletteGenerator;
@@ -16,32 +19,76 @@ import image_processing.session.Configuration;
  */
 public class RecolorizationTransformation extends AbstractTransformation {
 
+    /**
+     * The BrushPalette used for the last re-colorization
+     */
+    private volatile BrushPalette brushPalette;
+
     /**
      * Instantiate a Re-colorization Transformation
      */
     public RecolorizationTransformation() {
-        super(TransformationStep.RECOLORIZATION,
+        super(TransformationStep.RECOLORIZATION, new TransformationStep[] { TransformationStep.COLOR_QUANTIZATION },
                 new Setting[] { Setting.BRUSH_PALETTES, Setting.ID_SELECTED_BRUSH_PALETTE }, false);
     }
 
+    /**
+     * Get the BrushPalette used for the last re-colorization, possibly regenerated from the quantized colors
+     * 
+     * @return the BrushPalette used for the last re-colorization
+     */
+    public BrushPalette getBrushPalette() {
+        return brushPalette;
+    }
+
     @Override
-    protected Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
+    protected boolean isResultReusable(SettingsSet settings) {
+        /* The BrushPalette is regenerated and saved in the Configuration if it is empty */
+        return settings.getSelectedBrushPalette().getNbBrushes() > 0;
+    }
+
+    @Override
+    protected Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        AbstractTransformation colorQuantizationTr = getInput(TransformationStep.COLOR_QUANTIZATION);
+
         /* Retrieve the BrushPalette to use for the re-colorization */
         BrushPalette brushPalette = settings.getSelectedBrushPalette();
 
         /* If needed, regenerate the BrushPalette */
         if (brushPalette.getNbBrushes() == 0) {
-            brushPalette = BrushPaletteGenerator.generateBrushPalette(previousTransformation.getOutputColorPalette(),
-                    settings.getDoubleSetting(Setting.LPMM_MAX), settings.getIntSetting(Setting.NB_LEVELS_PER_COLOR),
-                    settings.getDoubleSetting(Setting.GREY_SATURATION_THRESHOLD),
-                    settings.getColorSpaceSetting(Setting.COLOR_SPACE),
-                    settings.getColorAttributionMethodSetting(Setting.COLOR_ATTRIBUTION_METHOD));
-            Configuration.Instance.setArraySettingValue(Setting.BRUSH_PALETTES,
-                    settings.getIntSetting(Setting.ID_SELECTED_BRUSH_PALETTE), brushPalette.toJSonObject());
+            ExecutionMeasure brushPaletteGenerationStage = ExecutionProfiler.Instance
+                    .startStage("Brush palette generation");
+            try {
+                brushPalette = BrushPaletteGenerator.generateBrushPalette(colorQuantizationTr.getOutputColorPalette(),
+                        settings.getDoubleSetting(Setting.LPMM_MAX),
+                        settings.getIntSetting(Setting.NB_LEVELS_PER_COLOR),
+                        settings.getDoubleSetting(Setting.GREY_SATURATION_THRESHOLD),
+                        settings.getColorSpaceSetting(Setting.COLOR_SPACE),
+                        settings.getColorAttributionMethodSetting(Setting.COLOR_ATTRIBUTION_METHOD));
+            } finally {
+                brushPaletteGenerationStage.stop();
+            }
+
+            /*
+             * The BrushPalette regenerated by a preview is only used for display: it is saved in the Configuration by
+             * the full resolution run, from the colors quantized at full resolution
+             */
+            double previewScale = settings.getDoubleSetting(Setting.PREVIEW_SCALE);
+            if (previewScale <= 0 || previewScale >= 1) {
+                Configuration.Instance.setArraySettingValue(Setting.BRUSH_PALETTES,
+                        settings.getIntSetting(Setting.ID_SELECTED_BRUSH_PALETTE), brushPalette.toJSonObject());
+            }
         }
 
-        Image outputImage = ImageGenerator.generateImagePaintedWithBrushPalette(previousTransformation.getOutputImage(),
-                brushPalette);
+        Image outputImage;
+        ExecutionMeasure paintingStage = ExecutionProfiler.Instance.startStage("Painting");
+        try {
+            outputImage = ImageGenerator.generateImagePaintedWithBrushPalette(colorQuantizationTr.getOutputImage(),
+                    brushPalette, cancellationToken);
+        } finally {
+            paintingStage.stop();
+        }
+        this.brushPalette = brushPalette;
         return outputImage;
     }
 
@@ -3,19 +3,26 @@ package image_processing.transformations;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.Vector;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import common.engine.Ink;
 import common.engine.SettingsSet;
 import image_processing.engine.Brush;
 import image_processing.engine.BrushPalette;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
-import image_processing.engine.canny.ImageUtils;
+import image_processing.engine.LabelRaster;
+import image_processing.engine.TileScheduler;
 import image_processing.engine.canny.JCanny;
 import image_processing.enums.Setting;
-import image_processing.session.Project;
 
 /**
  * A Transformation to add a thick outline on an image
@@ -28,48 +35,216 @@ import image_processing.session.Project;
  */
 public class ThickOutliningTransformation extends AbstractTransformation {
 
+    /**
+     * The label raster of the thick outlines, labeling each outline pixel with the index of its outline, whose color
+     * is the outline color
+     */
+    private LabelRaster outlineRaster;
+
+    /**
+     * The maximum number of quantized images whose edge candidates are cached: one per resolution at which an image is
+     * computed, i.e. the two preview resolutions and the full one
+     */
+    private static final int MAX_NB_CACHED_CANDIDATES = 3;
+
+    /**
+     * The edge candidates of the monochrome image of each label of the recently quantized images, indexed by label and
+     * null until computed, per result key of the Color Quantization Transformation, ordered from the least to the most
+     * recently used: they do not depend on the Canny thresholds, so that changing them only runs the hysteresis
+     */
+    private final LinkedHashMap<String, JCanny.EdgeCandidates[]> candidatesPerQuantization =
+            new LinkedHashMap<String, JCanny.EdgeCandidates[]>(16, 0.75f, true);
+
     /**
      * Instantiate a Thick Outlining Transformation
      */
     public ThickOutliningTransformation() {
-        super(TransformationStep.THICK_OUTLINING, new Setting[] { Setting.ENABLE_THICK_OUTLINING,
-                Setting.MULTICOLOR_THICK_OUTLINING, Setting.CANNY_HIGH_THRESHOLD, Setting.CANNY_LOW_THRESHOLD }, false);
+        super(TransformationStep.THICK_OUTLINING, new TransformationStep[] { TransformationStep.COLOR_QUANTIZATION },
+                new Setting[] { Setting.ENABLE_THICK_OUTLINING, Setting.MULTICOLOR_THICK_OUTLINING,
+                        Setting.CANNY_HIGH_THRESHOLD, Setting.CANNY_LOW_THRESHOLD, Setting.BRUSH_PALETTES,
+                        Setting.ID_SELECTED_BRUSH_PALETTE },
+                false);
+    }
+
+    /**
+     * Get the label raster of the thick outlines corresponding to the Transformation
+     * 
+     * @return the label raster of the thick outlines, or null if the thick outlining is disabled
+     */
+    public LabelRaster getOutlineRaster() {
+        return outlineRaster;
+    }
+
+    @Override
+    protected void setSpecificResult(Object specificResult) {
+        outlineRaster = (LabelRaster) specificResult;
+    }
+
+    @Override
+    protected Object getSpecificResult() {
+        return outlineRaster;
+    }
+
+    @Override
+    protected long estimateSpecificResultSize() {
+        return outlineRaster != null ? outlineRaster.estimateSize() : 0;
+    }
+
+    @Override
+    public void writeSpecificResult(Object specificResult, DataOutputStream out) throws IOException {
+        ((LabelRaster) specificResult).writeTo(out);
     }
 
     @Override
-    protected Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
-        ColorQuantizationTransformation cqt = (ColorQuantizationTransformation) Project.Instance
-                .getTransformation(TransformationStep.COLOR_QUANTIZATION);
+    public Object readSpecificResult(DataInputStream in) throws IOException {
+        return LabelRaster.readFrom(in);
+    }
+
+    @Override
+    protected Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        ColorQuantizationTransformation cqt = (ColorQuantizationTransformation) getInput(
+                TransformationStep.COLOR_QUANTIZATION);
         if (settings.getBoolSetting(Setting.ENABLE_THICK_OUTLINING)) {
             /* The thick outlining is enabled, compute it */
             BrushPalette brushPalette = settings.getSelectedBrushPalette();
             boolean multicolor = settings.getBoolSetting(Setting.MULTICOLOR_THICK_OUTLINING);
 
-            /* For each monochrome image of the Color Quantization Transformation, compute the thick outline */
-            HashMap<Integer, BufferedImage> monochromesImagesPerColor = cqt.getMonochromesImagesPerColor();
-            Vector<BufferedImage> outlinesImages = new Vector<BufferedImage>();
-            for (Entry<Integer, BufferedImage> entry : monochromesImagesPerColor.entrySet()) {
-                Brush brush = brushPalette.getBrushByInputColor(entry.getKey());
-                if (brush != null && brush.isThickOutliningEnabled() && brush.getInk() != null) {
-                    int outlineColor = multicolor ? brush.getInk().getColorAsRgb()
+            /*
+             * Select the quantized colors of the Color Quantization Transformation to outline, the colors absent from
+             * the image being skipped
+             */
+            LabelRaster labelRaster = cqt.getLabelRaster();
+            int W = labelRaster.getWidth();
+            int H = labelRaster.getHeight();
+            int[] outlinedLabels = new int[labelRaster.getNbLabels()];
+            int[] outlineColors = new int[labelRaster.getNbLabels()];
+            int nbOutlines = 0;
+            for (int label = 0; label < labelRaster.getNbLabels(); label++) {
+                Brush brush = brushPalette.getBrushByInputColor(labelRaster.getColor(label));
+                if (brush != null && brush.isThickOutliningEnabled() && brush.getInk() != null
+                        && labelRaster.getNbPixels(label) > 0) {
+                    outlinedLabels[nbOutlines] = label;
+                    outlineColors[nbOutlines] = multicolor ? brush.getInk().getColorAsRgb()
                             : Ink.getBlackestAvailableInk().getColorAsRgb();
-                    // TODO-049: try to get rid of the canny package
-                    outlinesImages.add(
-                            JCanny.CannyEdges(entry.getValue(), settings.getIntSetting(Setting.CANNY_HIGH_THRESHOLD),
-                                    settings.getDoubleSetting(Setting.CANNY_LOW_THRESHOLD), outlineColor));
+                    nbOutlines++;
                 }
             }
 
-            /* Merge all the outlines in a single image */
-            return new Image(ImageUtils.mergeImages(outlinesImages.toArray(new BufferedImage[0]), 0xFFFFFF));
+            /*
+             * Compute the thick outline of the monochrome image of each color, the colors being outlined in parallel,
+             * by Canny edge detectors reused from one color to the next with their scratch buffers. The edge
+             * candidates of each color are computed only once per quantized image and resolution
+             */
+            JCanny.EdgeCandidates[] cachedCandidates = getCachedCandidates(cqt);
+            ConcurrentLinkedQueue<JCanny> idleCannyEngines = new ConcurrentLinkedQueue<JCanny>();
+            int highThreshold = settings.getIntSetting(Setting.CANNY_HIGH_THRESHOLD);
+            double lowThreshold = settings.getDoubleSetting(Setting.CANNY_LOW_THRESHOLD);
+            long[][] outlines = new long[nbOutlines][];
+            ExecutionMeasure cannyEdgesStage = ExecutionProfiler.Instance.startStage("Canny edges");
+            try {
+                TileScheduler.forEachItem(nbOutlines, cancellationToken, new TileScheduler.TileKernel() {
+                    @Override
+                    public void apply(TileScheduler.Tile tile) {
+                        int idOutline = tile.getX0();
+                        JCanny canny = idleCannyEngines.poll();
+                        if (canny == null) {
+                            canny = new JCanny();
+                        }
+                        // TODO-049: try to get rid of the canny package
+                        int label = outlinedLabels[idOutline];
+                        if (cachedCandidates[label] == null) {
+                            cachedCandidates[label] = canny.computeCandidates(labelRaster.createMonochromeImage(label),
+                                    cancellationToken);
+                        }
+                        outlines[idOutline] = canny.detectEdges(cachedCandidates[label], highThreshold, lowThreshold,
+                                cancellationToken);
+                        idleCannyEngines.offer(canny);
+                    }
+                });
+            } finally {
+                cannyEdgesStage.stop();
+            }
+
+            /*
+             * Merge all the outlines in a label raster, labeling each pixel with its outline, the outline of the first
+             * color covering the other ones
+             */
+            ExecutionMeasure mergingStage = ExecutionProfiler.Instance.startStage("Merging");
+            try {
+                byte[] outlineLabels = new byte[W * H];
+                int nbMergedOutlines = nbOutlines;
+                TileScheduler.forEachTile(W, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+                    @Override
+                    public void apply(TileScheduler.Tile tile) {
+                        for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                            for (int x = tile.getX0(); x < tile.getX1(); x++) {
+                                int pixel = y * W + x;
+                                int outlineLabel = LabelRaster.NO_LABEL;
+                                for (int idOutline = 0; idOutline < nbMergedOutlines; idOutline++) {
+                                    if ((outlines[idOutline][pixel / Long.SIZE] & (1L << pixel)) != 0) {
+                                        outlineLabel = idOutline;
+                                        break;
+                                    }
+                                }
+                                outlineLabels[pixel] = (byte) outlineLabel;
+                            }
+                        }
+                    }
+                });
+                outlineRaster = new LabelRaster(W, H, outlineLabels, Arrays.copyOf(outlineColors, nbOutlines));
+                boolean[] allOutlines = new boolean[nbOutlines];
+                Arrays.fill(allOutlines, true);
+                BufferedImage img = outlineRaster.createMergedImage(allOutlines, 0xFFFFFF, cancellationToken);
+                return img != null ? new Image(img) : createBlankImage(W, H);
+            } finally {
+                mergingStage.stop();
+            }
         } else {
             /* The thick outlining is disabled, generate a blank image */
-            BufferedImage img = new BufferedImage(cqt.getOutputImage().getWidth(), cqt.getOutputImage().getHeight(),
-                    BufferedImage.TYPE_INT_ARGB);
-            Graphics g = img.getGraphics();
-            g.setColor(Color.white);
-            g.fillRect(0, 0, img.getWidth(), img.getHeight());
-            return new Image(img);
+            outlineRaster = null;
+            candidatesPerQuantization.clear();
+            return createBlankImage(cqt.getOutputImage().getWidth(), cqt.getOutputImage().getHeight());
         }
     }
+
+    /**
+     * Get the cached edge candidates of the labels of the quantized image, evicting the least recently used ones if
+     * needed
+     * 
+     * @param cqt the Color Quantization Transformation whose label raster is outlined
+     * @return the edge candidates of each label, indexed by label and null until computed, not cached if the
+     *         quantized image cannot be identified
+     */
+    private JCanny.EdgeCandidates[] getCachedCandidates(ColorQuantizationTransformation cqt) {
+        String quantizationKey = cqt.getResultKey();
+        if (quantizationKey == null) {
+            return new JCanny.EdgeCandidates[cqt.getLabelRaster().getNbLabels()];
+        }
+        JCanny.EdgeCandidates[] candidatesPerLabel = candidatesPerQuantization.get(quantizationKey);
+        if (candidatesPerLabel == null) {
+            candidatesPerLabel = new JCanny.EdgeCandidates[cqt.getLabelRaster().getNbLabels()];
+            candidatesPerQuantization.put(quantizationKey, candidatesPerLabel);
+            Iterator<JCanny.EdgeCandidates[]> iterator = candidatesPerQuantization.values().iterator();
+            while (candidatesPerQuantization.size() > MAX_NB_CACHED_CANDIDATES) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return candidatesPerLabel;
+    }
+
+    /**
+     * Create a blank image, without any outline
+     * 
+     * @param W the image width, in pixels
+     * @param H the image height, in pixels
+     * @return the white image
+     */
+    private static Image createBlankImage(int W, int H) {
+        BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+        Graphics g = img.getGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, img.getWidth(), img.getHeight());
+        return new Image(img);
+    }
 }
@@ -1,15 +1,21 @@
 package image_processing.transformations;
 
-import java.awt.image.BufferedImage;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import common.engine.SettingsSet;
+import image_processing.engine.CancellationToken;
+import image_processing.engine.ExecutionMeasure;
+import image_processing.engine.ExecutionProfiler;
 import image_processing.engine.Image;
+import image_processing.engine.TileScheduler;
 import image_processing.enums.Setting;
 
 /**
- * A Transformation to thin (i.e. skeletonize) an image
+ * A Transformation to thin (i.e. skeletonize) the thick outlines into their centerlines, using the Zhang-Suen
+ * algorithm
  * 
- * TODO-024: implement this algorithm in the transformation flow and check that it works as expected
+ * The non-white pixels are thinned as a single shape, the remaining pixels keeping their original color
  * 
  * @author Terence
  *
@@ -17,120 +23,239 @@ import image_processing.enums.Setting;
 public class ThinningTransformation extends AbstractTransformation {
 
     /**
-     * Instantiate a Thinning Transformation
+     * The flag of the neighbourhoods whose center pixel is removed during the first sub-iteration of an iteration
      */
-    public ThinningTransformation() {
-        super(TransformationStep.THINNING, new Setting[] {}, false);
-    }
+    private static final int FIRST_SUB_ITERATION = 1;
 
     /**
-     * Get the number of black neighboring pixels at the specified position
-     * 
-     * Note: assume that the pixel has 8 neighbours
+     * The flag of the neighbourhoods whose center pixel is removed during the second sub-iteration of an iteration
+     */
+    private static final int SECOND_SUB_ITERATION = 2;
+
+    /**
+     * The sub-iterations in which the center pixel of each neighbourhood is removed, indexed by neighbourhood mask
      * 
-     * @param pixelsMap the pixels map, true being a black pixel and false a white pixel
-     * @param x         the x position at which to count the black neighbours
-     * @param y         the y position at which to count the black neighbours
-     * @return the number of black neighboring pixels at the specified position
+     * The mask bits are, from the lowest one, the north-west, north, north-east, west, east, south-west, south and
+     * south-east neighbours, set for the black ones: this is the layout of the 3 bits wide windows read from the rows
+     * above, at and below the pixel
      */
-    private int getNbBlackNeighbours(boolean[][] pixelsMap, int x, int y) {
-        //
-        int nbBlackNeighbours = 0;
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                if (i != 0 || j != 0 && pixelsMap[x + i][y + j]) {
+    private static final byte[] REMOVED_SUB_ITERATIONS = new byte[256];
+
+    static {
+        /* The mask bits of the neighbours P2 to P9 of the Zhang-Suen algorithm, clockwise from the north */
+        int[] neighbourBits = new int[] { 1, 2, 4, 7, 6, 5, 3, 0 };
+        for (int mask = 0; mask < 256; mask++) {
+            boolean[] p = new boolean[10];
+            int nbBlackNeighbours = 0;
+            for (int idNeighbour = 0; idNeighbour < 8; idNeighbour++) {
+                p[idNeighbour + 2] = (mask & (1 << neighbourBits[idNeighbour])) != 0;
+                if (p[idNeighbour + 2]) {
                     nbBlackNeighbours++;
                 }
             }
+            int nbWhiteToBlackTransitions = 0;
+            for (int idNeighbour = 2; idNeighbour < 10; idNeighbour++) {
+                if (!p[idNeighbour] && p[idNeighbour == 9 ? 2 : idNeighbour + 1]) {
+                    nbWhiteToBlackTransitions++;
+                }
+            }
+            if (nbBlackNeighbours >= 2 && nbBlackNeighbours <= 6 && nbWhiteToBlackTransitions == 1) {
+                /* at least one white on N, E or S, and at least one white on E, S or W */
+                if (!(p[2] && p[4] && p[6]) && !(p[4] && p[6] && p[8])) {
+                    REMOVED_SUB_ITERATIONS[mask] |= FIRST_SUB_ITERATION;
+                }
+                /* at least one white on N, E or W, and at least one white on N, S or W */
+                if (!(p[2] && p[4] && p[8]) && !(p[2] && p[6] && p[8])) {
+                    REMOVED_SUB_ITERATIONS[mask] |= SECOND_SUB_ITERATION;
+                }
+            }
         }
-        return nbBlackNeighbours;
     }
 
     /**
-     * Get the number of color transitions around the specified position
-     * 
-     * Note: assume that the pixel has 8 neighbours
+     * Instantiate a Thinning Transformation
+     */
+    public ThinningTransformation() {
+        super(TransformationStep.THINNING, new TransformationStep[] { TransformationStep.THICK_OUTLINING },
+                new Setting[] { Setting.THIN_THICK_OUTLINES }, false);
+    }
+
+    /**
+     * Read the 3 bits wide window centered on a pixel of a row of a bitset
      * 
-     * @param pixelsMap the pixels map, true being a black pixel and false a white pixel
-     * @param x         the x position at which to count the black neighbours
-     * @param y         the y position at which to count the black neighbours
-     * @return the number of color transitions around the specified position
+     * @param bits     the bitset, each row starting on a new word
+     * @param rowStart the index of the first word of the row
+     * @param x        the column of the pixel, neither the first nor the last one of the row
+     * @return the bits of the pixels x - 1, x and x + 1, from the lowest one
      */
-    private int getNbColorTransitions(boolean[][] pixels, int x, int y) {
-        int lastColor = -1;
-        int nbColorTransitions = 0;
-        int[] dx = new int[] { -1, -1, 0, 1, 1, 1, 0, -1 };
-        int[] dy = new int[] { 0, -1, -1, -1, 0, 1, 1, 1 };
-        for (int i = 0; i < 9; i++) {
-            int id = i & 0b111;
-            int color = pixels[x + dx[id]][y + dy[id]] ? 1 : 0;
-            if (lastColor == -1) {
-                lastColor = color;
-            } else if (color != lastColor) {
-                nbColorTransitions++;
-                lastColor = color;
-            }
+    private static int getWindow(long[] bits, int rowStart, int x) {
+        int idFirstBit = x - 1;
+        int idWord = rowStart + (idFirstBit >>> 6);
+        int shift = idFirstBit & 63;
+        long window = bits[idWord] >>> shift;
+        if (shift > 61) {
+            window |= bits[idWord + 1] << (64 - shift);
         }
-        return nbColorTransitions;
+        return (int) window & 0b111;
     }
 
     @Override
-    protected Image executeTransformation(AbstractTransformation previousTransformation, SettingsSet settings) {
-        Image sourceImg = previousTransformation.getOutputImage();
+    protected Image executeTransformation(SettingsSet settings, CancellationToken cancellationToken) {
+        Image sourceImg = getInput(TransformationStep.THICK_OUTLINING).getOutputImage();
+        if (!settings.getBoolSetting(Setting.THIN_THICK_OUTLINES)) {
+            /* The thinning is disabled, keep the thick outlines as they are */
+            return sourceImg;
+        }
+
+        /*
+         * Pack the non-white pixels in a bitset surrounded by a white border, so that every pixel has 8 neighbours,
+         * each row starting on a new word so that the rows can be updated concurrently
+         */
         int W = sourceImg.getWidth();
         int H = sourceImg.getHeight();
-        boolean[][] pixels = new boolean[W][H]; /* true for black pixels, false for whites */
-        for (int x = 0; x < W; x++) {
-            for (int y = 0; y < H; y++) {
-                pixels[x][y] = sourceImg.getPixel(x, y) != 0xFFFFFF;
+        IntBuffer sourcePixels = sourceImg.getPixels();
+        int nbWordsPerRow = (W + 2 + 63) >>> 6;
+        long[] pixels = new long[(H + 2) * nbWordsPerRow];
+        TileScheduler.forEachTile(1, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                    int rowStart = (y + 1) * nbWordsPerRow;
+                    for (int x = 0; x < W; x++) {
+                        if ((sourcePixels.get(y * W + x) & 0xFFFFFF) != 0xFFFFFF) {
+                            pixels[rowStart + ((x + 1) >>> 6)] |= 1L << (x + 1);
+                        }
+                    }
+                }
             }
-        }
+        });
 
-        int nbPixelsRemoved = 1;
-        while (nbPixelsRemoved > 0) {
-            nbPixelsRemoved = 0;
-            for (int idPass = 0; idPass < 2; idPass++) {
-                for (int x = 1; x < W - 1; x++) {
-                    for (int y = 1; y < H - 1; y++) {
-                        if (pixels[x][y]) {
-                            int nbBlackNeighbours = getNbBlackNeighbours(pixels, x, y);
-                            if (nbBlackNeighbours >= 2 && nbBlackNeighbours <= 6) {
-                                if (getNbColorTransitions(pixels, x, y) == 1) {
-                                    if (idPass == 1) {
-                                        /* at least one white on N, E or S */
-                                        if (!pixels[x][y - 1] || !pixels[x - 1][y] || !pixels[x][y + 1]) {
-                                            /* at least one white on E, S or W */
-                                            if (!pixels[x + 1][y] || !pixels[x][y + 1] || !pixels[x - 1][y]) {
-                                                pixels[x][y] = false;
-                                                nbPixelsRemoved++;
-                                            }
-                                        }
-                                    } else {
-                                        /* at least one white on N, E or W */
-                                        if (!pixels[x][y - 1] || !pixels[x - 1][y] || !pixels[x + 1][y]) {
-                                            /* at least one white on N, S or W */
-                                            if (!pixels[x][y - 1] || !pixels[x][y + 1] || !pixels[x - 1][y]) {
-                                                pixels[x][y] = false;
-                                                nbPixelsRemoved++;
-                                            }
-                                        }
+        /*
+         * Only the black pixels with a white 4-neighbour can be removed: they make the initial worklist of the active
+         * pixels, stored as a bitset. The bits shifted in from the previous and next rows are always white borders
+         */
+        long[] activePixels = new long[pixels.length];
+        long[] removedPixels = new long[pixels.length];
+        AtomicInteger nbActivePixels = new AtomicInteger();
+        TileScheduler.forEachTile(1, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                int nbTileActivePixels = 0;
+                for (int y = tile.getY0() + 1; y < tile.getY1() + 1; y++) {
+                    for (int idWord = y * nbWordsPerRow; idWord < (y + 1) * nbWordsPerRow; idWord++) {
+                        long west = (pixels[idWord] << 1) | (pixels[idWord - 1] >>> 63);
+                        long east = (pixels[idWord] >>> 1) | (pixels[idWord + 1] << 63);
+                        long north = pixels[idWord - nbWordsPerRow];
+                        long south = pixels[idWord + nbWordsPerRow];
+                        activePixels[idWord] = pixels[idWord] & ~(west & east & north & south);
+                        nbTileActivePixels += Long.bitCount(activePixels[idWord]);
+                    }
+                }
+                nbActivePixels.addAndGet(nbTileActivePixels);
+            }
+        });
+
+        ExecutionMeasure thinningStage = ExecutionProfiler.Instance.startStage("Thinning");
+        try {
+            for (int idSubIteration = 0; nbActivePixels.get() > 0; idSubIteration++) {
+                int subIteration = (idSubIteration & 1) == 0 ? FIRST_SUB_ITERATION : SECOND_SUB_ITERATION;
+                int otherSubIteration = FIRST_SUB_ITERATION + SECOND_SUB_ITERATION - subIteration;
+
+                /*
+                 * Mark the active pixels to remove row by row in parallel, all the pixels being read before any of
+                 * them is removed. The active pixels that are kept remain active only if they would be removed by the
+                 * other sub-iteration, their neighbourhood being unchanged
+                 */
+                TileScheduler.forEachTile(1, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+                    @Override
+                    public void apply(TileScheduler.Tile tile) {
+                        for (int y = tile.getY0() + 1; y < tile.getY1() + 1; y++) {
+                            int rowStart = y * nbWordsPerRow;
+                            for (int idWord = rowStart; idWord < rowStart + nbWordsPerRow; idWord++) {
+                                long removed = 0;
+                                long active = activePixels[idWord];
+                                for (long bits = active; bits != 0; bits &= bits - 1) {
+                                    int bit = Long.numberOfTrailingZeros(bits);
+                                    int x = ((idWord - rowStart) << 6) + bit;
+                                    int middle = getWindow(pixels, rowStart, x);
+                                    int mask = getWindow(pixels, rowStart - nbWordsPerRow, x) | (middle & 0b001) << 3
+                                            | (middle & 0b100) << 2
+                                            | getWindow(pixels, rowStart + nbWordsPerRow, x) << 5;
+                                    int removedSubIterations = REMOVED_SUB_ITERATIONS[mask];
+                                    if ((removedSubIterations & subIteration) != 0) {
+                                        removed |= 1L << bit;
+                                    } else if ((removedSubIterations & otherSubIteration) == 0) {
+                                        active &= ~(1L << bit);
                                     }
                                 }
+                                removedPixels[idWord] = removed;
+                                activePixels[idWord] = active & ~removed;
                             }
                         }
                     }
-                }
+                });
+
+                /*
+                 * Remove the marked pixels row by row in parallel, and activate their black 8-neighbours, whose
+                 * neighbourhood has changed
+                 */
+                nbActivePixels.set(0);
+                TileScheduler.forEachTile(1, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+                    @Override
+                    public void apply(TileScheduler.Tile tile) {
+                        int nbTileActivePixels = 0;
+                        for (int y = tile.getY0() + 1; y < tile.getY1() + 1; y++) {
+                            int rowStart = y * nbWordsPerRow;
+                            long previous = 0;
+                            long current = getVerticallyRemoved(removedPixels, rowStart, nbWordsPerRow);
+                            for (int idWord = rowStart; idWord < rowStart + nbWordsPerRow; idWord++) {
+                                long next = idWord + 1 < rowStart + nbWordsPerRow
+                                        ? getVerticallyRemoved(removedPixels, idWord + 1, nbWordsPerRow)
+                                        : 0;
+                                long neighbours = current | (current << 1) | (previous >>> 63) | (current >>> 1)
+                                        | (next << 63);
+                                pixels[idWord] &= ~removedPixels[idWord];
+                                activePixels[idWord] |= neighbours & pixels[idWord];
+                                nbTileActivePixels += Long.bitCount(activePixels[idWord]);
+                                previous = current;
+                                current = next;
+                            }
+                        }
+                        nbActivePixels.addAndGet(nbTileActivePixels);
+                    }
+                });
             }
+        } finally {
+            thinningStage.stop();
         }
 
-        BufferedImage outputImg = new BufferedImage(sourceImg.getWidth(), sourceImg.getHeight(),
-                BufferedImage.TYPE_INT_RGB);
-        for (int x = 0; x < W; x++) {
-            for (int y = 0; y < H; y++) {
-                outputImg.setRGB(x, y, pixels[x][y] ? 0xFF000000 : 0xFFFFFFFF);
+        /* Keep the original color of the remaining pixels, the other ones becoming white */
+        IntBuffer outputPixels = Image.allocatePixels(W, H);
+        TileScheduler.forEachTile(1, H, 0, cancellationToken, new TileScheduler.TileKernel() {
+            @Override
+            public void apply(TileScheduler.Tile tile) {
+                for (int y = tile.getY0(); y < tile.getY1(); y++) {
+                    int rowStart = (y + 1) * nbWordsPerRow;
+                    for (int x = 0; x < W; x++) {
+                        boolean isKept = (pixels[rowStart + ((x + 1) >>> 6)] & (1L << (x + 1))) != 0;
+                        outputPixels.put(y * W + x, isKept ? sourcePixels.get(y * W + x) : 0xFFFFFFFF);
+                    }
+                }
             }
-        }
-        return new Image(outputImg);
+        });
+        return new Image(W, H, outputPixels);
+    }
+
+    /**
+     * Get the pixels removed in a word of a row or in the same word of the rows above and below
+     * 
+     * @param removedPixels the bitset of the removed pixels
+     * @param idWord        the index of the word, in a row surrounded by other rows
+     * @param nbWordsPerRow the number of words of each row
+     * @return the pixels removed in the word column, for each bit
+     */
+    private static long getVerticallyRemoved(long[] removedPixels, int idWord, int nbWordsPerRow) {
+        return removedPixels[idWord - nbWordsPerRow] | removedPixels[idWord] | removedPixels[idWord + nbWordsPerRow];
     }
 
 }
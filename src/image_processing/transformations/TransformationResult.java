@@ -0,0 +1,115 @@
+package image_processing.transformations;
+
+import image_processing.engine.ColorPalette;
+import image_processing.engine.Image;
+
+/**
+ * An immutable snapshot of a Transformation result, identified by a key depending on the Transformation inputs and
+ * settings
+ * 
+ * @author Terence
+ *
+ */
+public class TransformationResult {
+
+    /**
+     * The key identifying the result
+     */
+    private final String key;
+
+    /**
+     * The Transformation output image
+     */
+    private final Image outputImage;
+
+    /**
+     * The Transformation output color palette
+     */
+    private final ColorPalette outputColorPalette;
+
+    /**
+     * The result specific to the Transformation, e.g. the generated paths
+     */
+    private final Object specificResult;
+
+    /**
+     * The estimated size of the result in memory, in bytes
+     */
+    private final long estimatedSize;
+
+    /**
+     * Instantiate a new Transformation result
+     * 
+     * @param key                   the key identifying the result
+     * @param outputImage           the Transformation output image
+     * @param outputColorPalette    the Transformation output color palette
+     * @param specificResult        the result specific to the Transformation
+     * @param specificEstimatedSize the estimated size in memory of the result specific to the Transformation, in bytes
+     */
+    public TransformationResult(String key, Image outputImage, ColorPalette outputColorPalette, Object specificResult,
+            long specificEstimatedSize) {
+        this.key = key;
+        this.outputImage = outputImage;
+        this.outputColorPalette = outputColorPalette;
+        this.specificResult = specificResult;
+        long imageSize = outputImage != null ? estimateImageSize(outputImage.getWidth(), outputImage.getHeight()) : 0;
+        this.estimatedSize = imageSize + specificEstimatedSize;
+    }
+
+    /**
+     * Get the key identifying the result
+     * 
+     * @return the key identifying the result
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the Transformation output image
+     * 
+     * @return the Transformation output image
+     */
+    public Image getOutputImage() {
+        return outputImage;
+    }
+
+    /**
+     * Get the Transformation output color palette
+     * 
+     * @return the Transformation output color palette
+     */
+    public ColorPalette getOutputColorPalette() {
+        return outputColorPalette;
+    }
+
+    /**
+     * Get the result specific to the Transformation
+     * 
+     * @return the result specific to the Transformation
+     */
+    public Object getSpecificResult() {
+        return specificResult;
+    }
+
+    /**
+     * Get the estimated size of the result in memory
+     * 
+     * @return the estimated size of the result in memory, in bytes
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Estimate the size in memory of an image, whose ARGB pixels are shared by its BufferedImage and its pixels array
+     * 
+     * @param W the image width
+     * @param H the image height
+     * @return the estimated size of the image, in bytes
+     */
+    public static long estimateImageSize(int W, int H) {
+        return (long) Integer.BYTES * W * H;
+    }
+
+}
@@ -8,8 +8,8 @@ package image_processing.transformations;
  */
 public enum TransformationStep {
     IMAGE_IMPORT("Image import"), COLOR_QUANTIZATION("Color Quantization"), RECOLORIZATION("Recolorization"),
-    THICK_OUTLINING("Thick outlining"), FINE_OUTLINING("Outlining"), PATHS_GENERATION("Paths generation"),
-    PATHS_OPTIMIZATION("Paths optimization"), THINNING("Thinning");
+    THICK_OUTLINING("Thick outlining"), THINNING("Thinning"), FINE_OUTLINING("Outlining"),
+    PATHS_GENERATION("Paths generation"), PATHS_OPTIMIZATION("Paths optimization");
 
     /**
      * The Transformation step name
@@ -37,8 +37,6 @@ public enum TransformationStep {
     /**
      * Get the total number of steps
      * 
-     * TODO-024: check that it is still used properly with the new thinning transformation
-     * 
      * @return the total number of steps
      */
     public int getNbSteps() {